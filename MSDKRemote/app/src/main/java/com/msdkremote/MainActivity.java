@@ -22,8 +22,10 @@ import com.msdkremote.commandserver.CommandServerStateListener;
 import com.msdkremote.livecontrol.ActionCallback;
 import com.msdkremote.livecontrol.ControlServerManager;
 import com.msdkremote.livecontrol.regularStickManager.RegularStickManager;
+import com.msdkremote.livemultiplex.MultiplexServerManager;
 import com.msdkremote.livequery.QueryServerManager;
 import com.msdkremote.livevideo.VideoServerManager;
+import com.msdkremote.metrics.MetricsServerManager;
 import com.msdkremote.networkstate.NetworkMonitor;
 
 import java.net.InetAddress;
@@ -100,7 +102,7 @@ public class MainActivity extends AppCompatActivity
         checkBoxVideo.setOnCheckedChangeListener(
                 (buttonView, isChecked) -> {
                     if (isChecked) {
-                        VideoServerManager.getInstance().startServer(9999);
+                        VideoServerManager.getInstance().startServer(9999, 9994);
                         textViewVideoStatus.setText(R.string.video_status_running);
                     }
                     else {
@@ -250,8 +252,8 @@ public class MainActivity extends AppCompatActivity
     {
         Log.i(TAG, "onRegistered(): starting default services.");
 
-        // Start video server
-        VideoServerManager.getInstance().startServer(9999);
+        // Start video server, raw and framed
+        VideoServerManager.getInstance().startServer(9999, 9994);
 
         // Start command server
         ControlServerManager.getInstance().startServer(9998);
@@ -259,6 +261,12 @@ public class MainActivity extends AppCompatActivity
         // Start query server
         QueryServerManager.getInstance().startServer(9997);
 
+        // Start single port server, carrying all the above
+        MultiplexServerManager.getInstance().startServer(9996);
+
+        // Start metrics scrape server
+        MetricsServerManager.getInstance().startServer(9995);
+
         // Set controller status views
         setControllerViews();
 
@@ -406,6 +414,12 @@ public class MainActivity extends AppCompatActivity
 
             // Close query server
             QueryServerManager.getInstance().killServer();
+
+            // Close single port server
+            MultiplexServerManager.getInstance().killServer();
+
+            // Close metrics scrape server
+            MetricsServerManager.getInstance().killServer();
         }
         catch (InterruptedException e) {
             Log.e(TAG, "onUnregistered: Interrupted Exception occurred on UI thread");
@@ -0,0 +1,171 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Constants and helpers of the binary framing protocol.
+ * <p>
+ * By default, commands and messages are lines of text, terminated by "\r\n".
+ * A client can switch its connection to binary framing, by sending
+ * {@link #HANDSHAKE} as its very first line. If the server allows it, the server
+ * answers with the same line, and from then on both sides send only frames.
+ * Otherwise, the line is handled as a regular command.
+ * <p>
+ * Every frame starts with fixed header of {@link #HEADER_SIZE} bytes, big endian:
+ * <pre>
+ *   offset  size  field
+ *   0       1     type     - {@link #TYPE_TEXT}, {@link #TYPE_BINARY}, {@link #TYPE_PING} or {@link #TYPE_PONG}
+ *   1       1     flags    - {@link #FLAG_MORE}, other bits are reserved and zero
+ *   2       2     channel  - unsigned, {@link #COMMAND_CHANNEL} for commands and their messages
+ *   4       4     length   - unsigned, the number of payload bytes that follow
+ * </pre>
+ * Text payload is UTF-8 without line terminator, so it may contain new lines.
+ * <p>
+ * Ping payload is {@link #PING_SIZE} bytes timestamp of the sender, meaningful only to it.
+ * The other side answers every ping with pong of the same payload, on the command channel,
+ * so the sender measures the round trip time, see {@link CommandServer#setHeartbeat(long, int)}.
+ * <p>
+ * Other channels exist only on servers that multiplex several servers on a single
+ * connection, see {@link CommandServer#setChannel(int, CommandServer)}.
+ * Binary payload longer than {@link #MAX_DATA_CHUNK} is split to several frames
+ * of the same channel, all but the last carry {@link #FLAG_MORE}.
+ */
+final class BinaryFraming
+{
+    // The first line that switches the connection to frames
+    static final String HANDSHAKE = "FRAMING BINARY";
+
+    // Header layout
+    static final int HEADER_SIZE = 8;
+
+    // Frame types
+    static final int TYPE_TEXT = 1;
+    static final int TYPE_BINARY = 2;
+    static final int TYPE_PING = 3;
+    static final int TYPE_PONG = 4;
+
+    // Payload of ping and pong frames
+    static final int PING_SIZE = 8;
+
+    // Frame flags, the payload continues in the next frame of the same channel
+    static final int FLAG_MORE = 0x01;
+
+    // The channel of the commands, and the messages sent on the session
+    static final int COMMAND_CHANNEL = 0;
+    static final int MAX_CHANNEL = 0xFFFF;
+
+    // Largest binary payload of a single frame, so other channels are not held back by it
+    static final int MAX_DATA_CHUNK = 16 * 1024;
+
+
+    private BinaryFraming() { }
+
+
+    /**
+     * Checks if a line is the binary framing handshake.
+     *
+     * @param line the first line of the connection.
+     * @return true if the client asks for binary framing.
+     */
+    static boolean isHandshake(@NonNull CommandLine line)
+    {
+        return line.getTokenCount() == 2
+                && line.tokenEqualsIgnoreCase(0, "FRAMING")
+                && line.tokenEqualsIgnoreCase(1, "BINARY");
+    }
+
+
+    /**
+     * Writes frame header.
+     *
+     * @param buffer buffer with at least {@link #HEADER_SIZE} bytes remaining.
+     * @param type the frame type.
+     * @param flags the frame flags.
+     * @param channel the channel of the frame.
+     * @param length the number of payload bytes.
+     */
+    static void putHeader(@NonNull ByteBuffer buffer, int type, int flags, int channel, int length)
+    {
+        buffer.put((byte) type);
+        buffer.put((byte) flags);
+        buffer.putShort((short) channel);
+        buffer.putInt(length);
+    }
+
+
+    /**
+     * Reads the unsigned payload length from frame header.
+     *
+     * @param header the header bytes.
+     * @return the payload length.
+     */
+    static long getLength(@NonNull byte[] header)
+    {
+        return ((header[4] & 0xFFL) << 24) | ((header[5] & 0xFFL) << 16)
+                | ((header[6] & 0xFFL) << 8) | (header[7] & 0xFFL);
+    }
+
+
+    /**
+     * Reads the timestamp of ping or pong payload.
+     *
+     * @param payload the payload bytes, at least {@link #PING_SIZE}.
+     * @return the timestamp.
+     */
+    static long getTimestamp(@NonNull byte[] payload)
+    {
+        long timestamp = 0;
+        for (int i = 0; i < PING_SIZE; i++)
+            timestamp = (timestamp << 8) | (payload[i] & 0xFFL);
+
+        return timestamp;
+    }
+
+
+    /**
+     * Reads the unsigned channel from frame header.
+     *
+     * @param header the header bytes.
+     * @return the channel.
+     */
+    static int getChannel(@NonNull byte[] header) {
+        return ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+    }
+
+
+    /**
+     * Counts the bytes of the UTF-8 encoding of a string, without encoding it.
+     * Unpaired surrogates count as one byte, same as their replacement.
+     *
+     * @param string the string to measure.
+     * @return the length of the encoded string.
+     */
+    static int utf8Length(@NonNull String string)
+    {
+        int length = 0;
+
+        for (int i = 0; i < string.length(); i++)
+        {
+            char c = string.charAt(i);
+
+            if (c < 0x80)
+                length += 1;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c)
+                    && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c))
+                length += 1;
+            else
+                length += 3;
+        }
+
+        return length;
+    }
+}
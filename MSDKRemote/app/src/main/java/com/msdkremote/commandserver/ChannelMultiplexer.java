@@ -0,0 +1,347 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The channels of a single multiplexed connection, see {@link CommandServer#setChannel(int, CommandServer)}.
+ * <p>
+ * Every channel has session of its own, with outbound queue bounded by the policy
+ * of its server, so channel that produces faster than the client reads loses its
+ * own messages, and never delays the other channels. When the batch is gathered,
+ * the channels take turns, each adds a single message or a single chunk of its data,
+ * so large video frame is interleaved with the replies of the other channels.
+ * <p>
+ * Used only by the server thread, so it needs no locks.
+ */
+final class ChannelMultiplexer
+{
+    // Commands of data channels
+    private static final String COMMAND_OPEN = "OPEN";
+    private static final String COMMAND_CLOSE = "CLOSE";
+
+    // The session that owns the connection
+    private final Session connection;
+
+    // The open channels, in the order they take turns, the command channel first
+    private final List<Channel> channels = new ArrayList<>();
+    private int turn = 0;
+
+
+    /**
+     * Creates the channels of a connection, holding only its command channel.
+     *
+     * @param connection the session that owns the connection.
+     */
+    ChannelMultiplexer(@NonNull Session connection)
+    {
+        this.connection = connection;
+        this.channels.add(new Channel(null, connection));
+    }
+
+
+    /**
+     * Handles command that arrived on a channel, opening the channel on its first command.
+     * Commands of server channel go to the handlers of that server,
+     * while data channel accepts only {@code OPEN} and {@code CLOSE} of its stream.
+     *
+     * @param channelNumber the channel the command arrived on.
+     * @param command the command that was received.
+     */
+    void onCommand(int channelNumber, @NonNull CommandLine command)
+    {
+        CommandServer.ChannelBinding binding = this.connection.getServer().getChannelBinding(channelNumber);
+        Channel channel = find(channelNumber);
+
+        // The channel was bound to something else since, start over with new session
+        if (channel != null && channel.binding != binding) {
+            remove(channel);
+            channel = null;
+        }
+
+        if (binding == null)
+            return;
+
+        if (channel == null) {
+            CommandServer server = binding.server != null ? binding.server : this.connection.getServer();
+            Session session = new Session(server, server.newSessionId(),
+                    this.connection, channelNumber, server.createMessageQueue());
+
+            channel = new Channel(binding, session);
+
+            // The removed channel of the same number is still sending its last message,
+            // the new channel completes it first, so the chunks of the two never interleave
+            Channel draining = findDraining(channelNumber);
+            if (draining != null) {
+                channel.takePayload(draining);
+                this.channels.set(this.channels.indexOf(draining), channel);
+            }
+            else
+                this.channels.add(channel);
+        }
+
+        // Server channel, the commands are handled as if they arrived on its own port
+        if (binding.source == null) {
+            binding.server.onCommand(channel.session, command);
+            return;
+        }
+
+        if (command.getTokenCount() == 0)
+            return;
+
+        if (command.tokenEqualsIgnoreCase(0, COMMAND_OPEN)) {
+            if (channel.stream == null)
+                channel.stream = binding.source.openStream(channel.session, command);
+        }
+        else if (command.tokenEqualsIgnoreCase(0, COMMAND_CLOSE))
+            channel.closeStream();
+        else
+            channel.session.sendMessage("Unknown command: " + command.getToken(0));
+    }
+
+
+    /**
+     * Adds the next message or data chunk to the batch, from the channel whose turn it is.
+     * Channels with nothing to send are skipped.
+     *
+     * @param writer the writer of the connection, which must have room.
+     * @return false if no channel had anything to send.
+     */
+    boolean addNext(@NonNull CommandServerWriter writer)
+    {
+        int count = this.channels.size();
+
+        for (int i = 0; i < count; i++)
+        {
+            int index = (this.turn + i) % count;
+
+            if (this.channels.get(index).addNext(writer)) {
+                this.turn = index + 1;
+                return true;
+            }
+        }
+
+        // The writer has room, so the removed channels that completed their message are done
+        for (int i = this.channels.size() - 1; i >= 0; i--)
+            if (this.channels.get(i).isDrained())
+                this.channels.remove(i);
+
+        return false;
+    }
+
+
+    /**
+     * Checks if any channel has queued messages, or a partly sent data message.
+     *
+     * @return true if there is more to send.
+     */
+    boolean hasQueued()
+    {
+        for (Channel channel : this.channels)
+            if (channel.payload != null || channel.draining || channel.session.getQueueSize() > 0)
+                return true;
+
+        return false;
+    }
+
+
+    /**
+     * Checks if any channel did not keep up with its messages,
+     * and should be disconnected by {@link OverflowPolicy#DISCONNECT} policy.
+     *
+     * @return true if the connection should be closed.
+     */
+    boolean isOverflowed()
+    {
+        for (Channel channel : this.channels)
+            if (channel.session != this.connection && channel.session.isOverflowed())
+                return true;
+
+        return false;
+    }
+
+
+    /**
+     * Closes all the channels of the connection, other than its command channel.
+     * The connection is closed, so nothing more is written, and the messages in the middle are dropped.
+     */
+    void close()
+    {
+        for (Channel channel : this.channels.toArray(new Channel[0])) {
+            if (channel.session != this.connection) {
+                this.channels.remove(channel);
+                channel.closeStream();
+                channel.dropPayload();
+                channel.session.close();
+            }
+        }
+    }
+
+
+    @Nullable
+    private Channel find(int channelNumber)
+    {
+        for (Channel channel : this.channels)
+            if (!channel.draining && channel.session.getChannel() == channelNumber)
+                return channel;
+
+        return null;
+    }
+
+    @Nullable
+    private Channel findDraining(int channelNumber)
+    {
+        for (Channel channel : this.channels)
+            if (channel.draining && channel.session.getChannel() == channelNumber)
+                return channel;
+
+        return null;
+    }
+
+
+    /**
+     * Removes a channel of the open connection. A channel in the middle of a message keeps
+     * its turn until the message is completed and copied by the writer, so the client never
+     * gets half of it, and the memory of the stream is not given back while the writer reads it.
+     */
+    private void remove(@NonNull Channel channel)
+    {
+        channel.closeStream();
+        channel.session.close();
+
+        if (channel.payload != null || channel.payloadAdded)
+            channel.draining = true;
+        else
+            this.channels.remove(channel);
+    }
+
+
+    /**
+     * Single channel of the connection, its session and the stream of data channel.
+     */
+    private static class Channel
+    {
+        // What the channel was opened for, null for the command channel
+        private final CommandServer.ChannelBinding binding;
+        private final Session session;
+
+        // The stream of open data channel, and the message it is in the middle of
+        private DataChannelStream stream = null;
+        private ByteBuffer payload = null;
+
+        // The stream of the message in the middle, or of the last message until it was copied,
+        // kept after the stream is closed so the message is still completed
+        private DataChannelStream payloadStream = null;
+        private boolean payloadAdded = false;
+
+        // The channel was removed, and only completes its message, see ChannelMultiplexer#remove()
+        private boolean draining = false;
+
+        Channel(@Nullable CommandServer.ChannelBinding binding, @NonNull Session session) {
+            this.binding = binding;
+            this.session = session;
+        }
+
+        /**
+         * Adds the next queued message, or the next chunk of data.
+         * Messages go first, so replies on data channel are not held back by the data.
+         */
+        boolean addNext(@NonNull CommandServerWriter writer)
+        {
+            // The writer has room, so the last message was copied from the memory of the stream
+            if (this.payloadAdded) {
+                this.payloadAdded = false;
+                this.payloadStream.onSent();
+                this.payloadStream = null;
+            }
+
+            String message = this.draining ? null : this.session.pollMessage();
+            if (message != null) {
+                writer.addMessage(message, this.session.getChannel());
+                return true;
+            }
+
+            if (this.payload == null)
+            {
+                if (this.stream == null)
+                    return false;
+
+                this.payload = this.stream.poll();
+
+                if (this.payload == null)
+                    return false;
+
+                this.payloadStream = this.stream;
+            }
+
+            // The chunk is a view of the payload, consumed by the writer as it is written
+            int length = Math.min(this.payload.remaining(), BinaryFraming.MAX_DATA_CHUNK);
+            boolean last = length == this.payload.remaining();
+
+            ByteBuffer chunk = this.payload.duplicate();
+            chunk.limit(chunk.position() + length);
+            this.payload.position(this.payload.position() + length);
+
+            writer.addData(this.session.getChannel(), last ? 0 : BinaryFraming.FLAG_MORE, chunk);
+
+            if (last) {
+                this.payload = null;
+                this.payloadAdded = true;
+            }
+
+            return true;
+        }
+
+        void closeStream()
+        {
+            if (this.stream == null)
+                return;
+
+            // A message in the middle is still completed, so the client never gets half of it
+            this.stream.close();
+            this.stream = null;
+        }
+
+        /**
+         * Checks if the removed channel completed its message, and the writer copied it.
+         *
+         * @return true if the channel can be forgotten.
+         */
+        boolean isDrained() {
+            return this.draining && this.payload == null && !this.payloadAdded;
+        }
+
+        /**
+         * Continues the message in the middle of a removed channel of the same number.
+         *
+         * @param draining the removed channel, that sends nothing from now on.
+         */
+        void takePayload(@NonNull Channel draining)
+        {
+            this.payload = draining.payload;
+            this.payloadStream = draining.payloadStream;
+            this.payloadAdded = draining.payloadAdded;
+
+            draining.payload = null;
+            draining.payloadStream = null;
+            draining.payloadAdded = false;
+        }
+
+        /**
+         * Gives up the message in the middle, and the last message, once the connection is closed.
+         */
+        void dropPayload()
+        {
+            if (this.payloadStream != null)
+                this.payloadStream.onSent();
+
+            this.payload = null;
+            this.payloadStream = null;
+            this.payloadAdded = false;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Message queue that keeps only the latest pending message of each key.
+ * <p>
+ * New message of a key that already has a pending message replaces it in place,
+ * keeping the position of the old one in the queue. That way, after the client
+ * stalls, it receives only the current value of every key in a single drain,
+ * and the queue never holds more than one message per key.
+ * <p>
+ * Messages without a key are never replaced, so they go to a {@link RingMessageQueue} of
+ * their own, which takes no lock and allocates nothing. The consumer takes messages with
+ * and without a key in turns, so neither kind is starved by a flood of the other.
+ */
+class CoalescingMessageQueue extends MessageQueue
+{
+    // Pending messages by their key, in the order they were first added.
+    // Replacing the value of existing key keeps its position.
+    private final LinkedHashMap<String, String> pendingMessages = new LinkedHashMap<>();
+
+    // Size of the pending messages, readable without the lock
+    private volatile int pendingSize = 0;
+
+    // Producers waiting for room, guarded by the lock of this object
+    private int waitingProducers = 0;
+
+    // Messages without a key
+    private final RingMessageQueue unkeyedMessages;
+
+    // Whether the next message is taken from the messages without a key, touched only by the consumer
+    private boolean unkeyedTurn = false;
+
+    // The consumer, while it is parked waiting for a message
+    private volatile Thread waitingConsumer = null;
+
+
+    /**
+     * Creates new CoalescingMessageQueue object that cna hold only <strong>capacity</strong>
+     * distinct keys, and as many messages without a key, and handle overflow by the given policy.
+     *
+     * @param capacity the maximum number of messages of each kind that this queue can hold.
+     * @param overflowPolicy what to do with new message when the queue is full.
+     * @param blockTimeout_ms the maximum time to block the producer,
+     *                        used only with {@link OverflowPolicy#BLOCK_PRODUCER}.
+     */
+    public CoalescingMessageQueue(
+            int capacity, @NonNull OverflowPolicy overflowPolicy, long blockTimeout_ms)
+    {
+        super(capacity, overflowPolicy, blockTimeout_ms);
+
+        this.unkeyedMessages = new RingMessageQueue(capacity, overflowPolicy, blockTimeout_ms);
+    }
+
+
+    @Override
+    public void setConsumerThread(Thread consumerThread)
+    {
+        super.setConsumerThread(consumerThread);
+        this.unkeyedMessages.setConsumerThread(consumerThread);
+    }
+
+
+    @Override
+    public boolean isOverflowed() {
+        return super.isOverflowed() || this.unkeyedMessages.isOverflowed();
+    }
+
+
+    /**
+     * Gets snapshot of the counters of the messages with and without a key together.
+     *
+     * @return the current statistics.
+     */
+    @NonNull
+    @Override
+    public QueueStatistics getStatistics()
+    {
+        // Both kinds are counted as enqueued here, only the drops are counted by the ring itself
+        QueueStatistics statistics = super.getStatistics();
+
+        return new QueueStatistics(
+                (int) Math.min(2L * capacity, Integer.MAX_VALUE),
+                statistics.getSize(),
+                statistics.getEnqueued(),
+                statistics.getDropped() + this.unkeyedMessages.getStatistics().getDropped(),
+                statistics.getCoalesced(),
+                statistics.getHighWaterMark());
+    }
+
+
+    @Override
+    public int getSize() {
+        return this.pendingSize + this.unkeyedMessages.getSize();
+    }
+
+
+    /**
+     * Adds message that is never replaced by other messages.
+     *
+     * @param message message to add to the queue.
+     * @return true if the message was added, false if it was discarded.
+     */
+    @Override
+    public boolean addMessage(@NonNull String message) {
+        return addMessage(message, MessagePriority.TELEMETRY, null);
+    }
+
+
+    @Override
+    public boolean addMessage(
+            @NonNull String message,
+            @NonNull MessagePriority priority,
+            @Nullable String coalescingKey)
+    {
+        if (coalescingKey == null) {
+            if (!this.unkeyedMessages.addMessage(message))
+                return false;
+
+            countEnqueued(getSize());
+        }
+        else if (!addKeyedMessage(message, coalescingKey))
+            return false;
+
+        // Wake the consumer only if it is actually parked
+        Thread consumer = this.waitingConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+
+        return true;
+    }
+
+
+    /**
+     * Adds message that replaces the pending message of the same key.
+     *
+     * @param message message to add to the queue.
+     * @param coalescingKey key of the value the message holds.
+     * @return true if the message was added, false if it was discarded.
+     */
+    private synchronized boolean addKeyedMessage(@NonNull String message, @NonNull String coalescingKey)
+    {
+        // Replace the pending message of the same key.
+        // The queue does not grow, so there is no overflow to handle.
+        if (pendingMessages.containsKey(coalescingKey)) {
+            pendingMessages.put(coalescingKey, message);
+            countCoalesced();
+            countEnqueued(getSize());
+            return true;
+        }
+
+        if (pendingMessages.size() >= capacity)
+        {
+            switch (overflowPolicy)
+            {
+                case DROP_OLDEST:
+                    pollMessage();
+                    countDropped();
+                    break;
+
+                case DROP_NEWEST:
+                    countDropped();
+                    return false;
+
+                case BLOCK_PRODUCER:
+                    if (!waitForRoom()) {
+                        countDropped();
+                        return false;
+                    }
+                    break;
+
+                case DISCONNECT:
+                    markOverflowed();
+                    return false;
+            }
+        }
+
+        pendingMessages.put(coalescingKey, message);
+        pendingSize = pendingMessages.size();
+        countEnqueued(getSize());
+        return true;
+    }
+
+
+    /**
+     * Waits until there is room in the queue, for at most the block timeout.
+     * Must be called while holding the lock of this object.
+     *
+     * @return true if there is room for new message.
+     */
+    private boolean waitForRoom()
+    {
+        // The consumer cannot wait for itself.
+        if (isConsumerThread())
+            return false;
+
+        long endTime = System.currentTimeMillis() + blockTimeout_ms;
+        long currentTime;
+
+        waitingProducers++;
+        try {
+            while (pendingMessages.size() >= capacity
+                    && (currentTime = System.currentTimeMillis()) < endTime)
+                wait(endTime - currentTime);
+        }
+        catch (InterruptedException e) {
+            // Keep the flag for the caller, and give up on this message.
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally {
+            waitingProducers--;
+        }
+
+        return pendingMessages.size() < capacity;
+    }
+
+
+    @Override
+    public String getMessage()
+    {
+        String message;
+
+        if (this.unkeyedTurn) {
+            if ((message = this.unkeyedMessages.getMessage()) == null)
+                message = getKeyedMessage();
+        }
+        else {
+            if ((message = getKeyedMessage()) == null)
+                message = this.unkeyedMessages.getMessage();
+        }
+
+        this.unkeyedTurn = !this.unkeyedTurn;
+        return message;
+    }
+
+
+    @Override
+    public String getMessage(long timeout_ms) throws InterruptedException
+    {
+        // Timeout cannot be negative
+        if (timeout_ms < 0)
+            throw new InterruptedException("timeout cannot be negative.");
+
+        String message = getMessage();
+        if (message != null)
+            return message;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+
+        // Publish the consumer before checking again, so producer
+        // that adds message from now on will unpark it.
+        this.waitingConsumer = Thread.currentThread();
+
+        try {
+            while ((message = getMessage()) == null)
+            {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+
+                // If timeout equal zero, wait without timeout
+                if (timeout_ms == 0) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return null;
+
+                LockSupport.parkNanos(this, remaining);
+            }
+
+            return message;
+        }
+        finally {
+            this.waitingConsumer = null;
+        }
+    }
+
+
+    /**
+     * Takes the oldest message that has a key.
+     *
+     * @return the oldest message with a key, or null if there is none.
+     */
+    private String getKeyedMessage()
+    {
+        // Nothing to take, and no need for the lock to know it
+        if (this.pendingSize == 0)
+            return null;
+
+        synchronized (this) {
+            String message = pollMessage();
+
+            // Wake producers waiting for room, only if there are any.
+            if (message != null && waitingProducers > 0)
+                notifyAll();
+
+            return message;
+        }
+    }
+
+
+    /**
+     * Removes the oldest message that has a key.
+     * Must be called while holding the lock of this object.
+     *
+     * @return the oldest message with a key, or null if there is none.
+     */
+    private String pollMessage()
+    {
+        Iterator<Map.Entry<String, String>> iterator = pendingMessages.entrySet().iterator();
+
+        if (!iterator.hasNext())
+            return null;
+
+        String message = iterator.next().getValue();
+        iterator.remove();
+        pendingSize = pendingMessages.size();
+        return message;
+    }
+}
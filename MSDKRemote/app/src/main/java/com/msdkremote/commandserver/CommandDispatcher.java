@@ -0,0 +1,213 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.msdkremote.logging.AsyncLog;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs command handlers on an executor, keeping the order of commands with the same key.
+ * <p>
+ * Every ordering key has queue of its own, that is drained by a single task at a time,
+ * so commands of the same key never run at the same time, nor out of order.
+ * Queues of different keys run in parallel, as much as the executor allows.
+ */
+class CommandDispatcher
+{
+    // Tasks a queue runs in a row, before it lets other keys use the thread
+    private static final int MAX_TASKS_PER_RUN = 32;
+
+    // Tag for logcat
+    private final String TAG;
+
+    private final Executor executor;
+    private final CommandOrdering ordering;
+
+    // The queues of the keys that have pending tasks, guarded by itself
+    private final Map<Object, OrderedQueue> queues = new HashMap<>();
+
+    // Tasks dispatched and not yet finished
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+
+    /**
+     * Creates new CommandDispatcher.
+     *
+     * @param executor the executor to run the handlers on.
+     * @param ordering decides which commands are kept in order.
+     * @param TAG tag to print with on logcat, or null to not log.
+     */
+    CommandDispatcher(
+            @NonNull Executor executor,
+            @NonNull CommandOrdering ordering,
+            @Nullable String TAG)
+    {
+        this.executor = executor;
+        this.ordering = ordering;
+        this.TAG = TAG;
+    }
+
+
+    /**
+     * Gets the ordering key of a command.
+     *
+     * @param session the session the command arrived on.
+     * @param command the command that was received.
+     * @return the ordering key, or null if the command may be handled in any order.
+     */
+    @Nullable
+    Object getOrderingKey(@NonNull Session session, @NonNull CommandLine command) {
+        return this.ordering.getOrderingKey(session, command);
+    }
+
+
+    /**
+     * Gets the number of tasks that were dispatched, and did not finish yet.
+     *
+     * @return the number of pending and running tasks.
+     */
+    int getQueueDepth() {
+        return this.queueDepth.get();
+    }
+
+
+    /**
+     * Runs task on the executor, after all the previous tasks of the same key.
+     *
+     * @param key the ordering key of the task, or null to run it in any order.
+     * @param task the task to run.
+     */
+    void dispatch(@Nullable Object key, @NonNull Runnable task)
+    {
+        this.queueDepth.incrementAndGet();
+
+        // No order to keep, run it as is
+        if (key == null) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    runTask(task);
+                }
+            }, 1);
+            return;
+        }
+
+        OrderedQueue queue;
+        boolean schedule;
+
+        synchronized (this.queues)
+        {
+            queue = this.queues.get(key);
+            if (queue == null) {
+                queue = new OrderedQueue(key);
+                this.queues.put(key, queue);
+            }
+
+            queue.tasks.add(task);
+
+            // Only one drain of the queue at a time
+            schedule = !queue.scheduled;
+            queue.scheduled = true;
+        }
+
+        if (schedule)
+            execute(queue, 0);
+    }
+
+
+    /**
+     * Hands runnable to the executor, giving up its tasks if the executor refuses.
+     *
+     * @param runnable the runnable to execute.
+     * @param tasks the number of tasks that are lost if the executor refuses,
+     *              not counting the tasks of ordered queue.
+     */
+    private void execute(@NonNull Runnable runnable, int tasks)
+    {
+        try {
+            this.executor.execute(runnable);
+        }
+        catch (RejectedExecutionException e)
+        {
+            if (runnable instanceof OrderedQueue) {
+                synchronized (this.queues) {
+                    OrderedQueue queue = (OrderedQueue) runnable;
+                    this.queues.remove(queue.key);
+                    tasks += queue.tasks.size();
+                }
+            }
+
+            this.queueDepth.addAndGet(-tasks);
+
+            AsyncLog.w(this.TAG, "Dispatch executor rejected the command handlers.", e);
+        }
+    }
+
+
+    /**
+     * Runs single task, a failing handler does not stop the following ones.
+     *
+     * @param task the task to run.
+     */
+    private void runTask(@NonNull Runnable task)
+    {
+        try {
+            task.run();
+        }
+        catch (RuntimeException e) {
+            AsyncLog.w(this.TAG, "Command handler threw exception.", e);
+        }
+        finally {
+            this.queueDepth.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * The pending tasks of a single ordering key, and the runnable that drains them.
+     */
+    private class OrderedQueue implements Runnable
+    {
+        private final Object key;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        // Set while this queue is on the executor, guarded by the queues map
+        private boolean scheduled = false;
+
+        OrderedQueue(@NonNull Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run()
+        {
+            for (int i = 0; i < MAX_TASKS_PER_RUN; i++)
+            {
+                Runnable task;
+
+                synchronized (queues) {
+                    task = this.tasks.poll();
+
+                    // Drained, the next task of the key starts new queue
+                    if (task == null) {
+                        queues.remove(this.key);
+                        this.scheduled = false;
+                        return;
+                    }
+                }
+
+                runTask(task);
+            }
+
+            // Give other keys their turn, and continue later
+            execute(this, 0);
+        }
+    }
+}
@@ -12,12 +12,37 @@ public interface CommandHandler
      * received by the command server it is hooked to.
      * <p>
      * Note on implementation, this method is called
-     * on the same thread that handle the communication,
-     * so any time consuming operations should be
-     * handled carefully.
+     * on the same thread that handle the communication
+     * of all the clients, so any time consuming operations
+     * should be handled carefully. If the server has dispatch
+     * executor, this method is called on the executor instead,
+     * possibly on several threads at once, see
+     * {@link CommandServer#setDispatchExecutor}.
      *
-     * @param commandServer the server from which this call was made
+     * Responses should be sent on the session, so only the
+     * requesting client gets them. The server itself is
+     * available from {@link Session#getServer()}.
+     *
+     * @param session the session from which this call was made
+     * @param command the command that was received.
+     */
+    public void onCommand(@NonNull Session session, @NonNull String command);
+
+
+    /**
+     * This method is called whenever new command is
+     * received by the command server it is hooked to.
+     * <p>
+     * The command is a reusable view, that is overwritten by the next
+     * command, so it must not be kept after this method returns.
+     * Handlers of high rate commands should override this method,
+     * and read the command in place. By default, the command is converted
+     * to string and passed to {@link #onCommand(Session, String)}.
+     *
+     * @param session the session from which this call was made
      * @param command the command that was received.
      */
-    public void onCommand(@NonNull CommandServer commandServer, @NonNull String command);
+    default void onCommand(@NonNull Session session, @NonNull CommandLine command) {
+        onCommand(session, command.toString());
+    }
 }
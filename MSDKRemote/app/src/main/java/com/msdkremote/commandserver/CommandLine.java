@@ -0,0 +1,426 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.util.Arrays;
+
+/**
+ * Reusable view of a single command line, as received from the client.
+ * <p>
+ * The server decodes every line of a connection into the same object, so handlers
+ * must not keep a reference to it after {@code onCommand} returns.
+ * Use {@link #toString()} to keep the command for later.
+ * <p>
+ * The line is split on first use into tokens separated by whitespaces.
+ * The tokens can be compared and parsed in place, without creating strings,
+ * which keeps high rate commands, like the sticks updates, free of garbage.
+ */
+public final class CommandLine implements CharSequence
+{
+    // Initial sizes, both grow on demand
+    private static final int INITIAL_LENGTH = 256;
+    private static final int INITIAL_TOKENS = 8;
+
+    // Digits to collect before giving up on the fast path, so the mantissa does not overflow
+    private static final int MAX_FAST_DIGITS = 15;
+
+    // Mantissa below 2^24 and powers of ten up to 10^10 are exact as float, so single
+    // float division of the two is rounded once, exactly like Float.parseFloat
+    private static final long MAX_FAST_MANTISSA = 1 << 24;
+    private static final float[] POWERS_OF_TEN = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f,
+            1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
+    // The characters of the line
+    private char[] chars = new char[INITIAL_LENGTH];
+    private int length = 0;
+
+    // Bounds of the tokens, tokenCount is -1 until they are found
+    private int[] tokenStarts = new int[INITIAL_TOKENS];
+    private int[] tokenEnds = new int[INITIAL_TOKENS];
+    private int tokenCount = -1;
+
+    // The line as string, created only if someone asks for it
+    private String string = null;
+
+
+    /**
+     * Creates new empty CommandLine.
+     */
+    public CommandLine() { }
+
+
+    /**
+     * Creates new CommandLine holding copy of <strong>command</strong>.
+     * Mainly to pass commands that are already strings to handlers of this class.
+     *
+     * @param command the command line.
+     */
+    public CommandLine(@NonNull CharSequence command)
+    {
+        ensureLength(command.length());
+
+        for (int i = 0; i < command.length(); i++)
+            this.chars[i] = command.charAt(i);
+
+        this.length = command.length();
+    }
+
+
+    /**
+     * Replaces the content with the decoded <strong>count</strong> bytes of <strong>bytes</strong>.
+     * Pure ASCII lines, which are the common case, are copied without the decoder.
+     *
+     * @param bytes the encoded line, without its terminator.
+     * @param count the number of bytes in the line.
+     * @param decoder decoder of the line encoding, used for none-ASCII lines.
+     */
+    void decode(@NonNull byte[] bytes, int count, @NonNull CharsetDecoder decoder)
+    {
+        this.tokenCount = -1;
+        this.string = null;
+
+        // Never more characters than bytes
+        ensureLength(count);
+
+        int i = 0;
+        while (i < count && bytes[i] >= 0) {
+            this.chars[i] = (char) bytes[i];
+            i++;
+        }
+
+        if (i == count) {
+            this.length = count;
+            return;
+        }
+
+        CharBuffer out = CharBuffer.wrap(this.chars);
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(bytes, 0, count), out, true);
+        decoder.flush(out);
+        this.length = out.position();
+    }
+
+
+    /* --------------------------- CharSequence --------------------------- */
+
+    @Override
+    public int length() {
+        return this.length;
+    }
+
+
+    @Override
+    public char charAt(int index)
+    {
+        if (index < 0 || index >= this.length)
+            throw new IndexOutOfBoundsException("index " + index + ", length " + this.length);
+
+        return this.chars[index];
+    }
+
+
+    @NonNull
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+
+    /**
+     * Gets the line as string. The string is created once per line.
+     *
+     * @return the command line.
+     */
+    @NonNull
+    @Override
+    public String toString()
+    {
+        if (this.string == null)
+            this.string = new String(this.chars, 0, this.length);
+
+        return this.string;
+    }
+
+
+
+    /* --------------------------- Tokens --------------------------- */
+
+    /**
+     * Gets the number of whitespace separated tokens in the line.
+     *
+     * @return the number of tokens, zero for blank line.
+     */
+    public int getTokenCount()
+    {
+        if (this.tokenCount < 0)
+            findTokens();
+
+        return this.tokenCount;
+    }
+
+
+    /**
+     * Gets the index of the first character of a token.
+     *
+     * @param index the index of the token.
+     * @return index in the line.
+     */
+    public int getTokenStart(int index) {
+        checkToken(index);
+        return this.tokenStarts[index];
+    }
+
+
+    /**
+     * Gets the index after the last character of a token.
+     *
+     * @param index the index of the token.
+     * @return index in the line.
+     */
+    public int getTokenEnd(int index) {
+        checkToken(index);
+        return this.tokenEnds[index];
+    }
+
+
+    /**
+     * Checks if a token is equal to <strong>value</strong>.
+     *
+     * @param index the index of the token.
+     * @param value the value to compare to.
+     * @return true if the token exists and equals the value.
+     */
+    public boolean tokenEquals(int index, @NonNull String value)
+    {
+        if (index < 0 || index >= getTokenCount())
+            return false;
+
+        int start = this.tokenStarts[index];
+        if (this.tokenEnds[index] - start != value.length())
+            return false;
+
+        for (int i = 0; i < value.length(); i++)
+            if (this.chars[start + i] != value.charAt(i))
+                return false;
+
+        return true;
+    }
+
+
+    /**
+     * Checks if a token is equal to <strong>value</strong>, ignoring case.
+     *
+     * @param index the index of the token.
+     * @param value the value to compare to.
+     * @return true if the token exists and equals the value, ignoring case.
+     */
+    public boolean tokenEqualsIgnoreCase(int index, @NonNull String value)
+    {
+        if (index < 0 || index >= getTokenCount())
+            return false;
+
+        int start = this.tokenStarts[index];
+        if (this.tokenEnds[index] - start != value.length())
+            return false;
+
+        // Same comparison as String.equalsIgnoreCase()
+        for (int i = 0; i < value.length(); i++)
+        {
+            char a = this.chars[start + i];
+            char b = value.charAt(i);
+
+            if (a != b
+                    && Character.toUpperCase(a) != Character.toUpperCase(b)
+                    && Character.toLowerCase(a) != Character.toLowerCase(b))
+                return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Hashes a token in place, so tokens that are equal ignoring case have the same hash.
+     *
+     * @param index the index of the token.
+     * @return the hash of the token, same as {@link #hashIgnoreCase(CharSequence)} of its string.
+     */
+    public int tokenHashIgnoreCase(int index)
+    {
+        checkToken(index);
+
+        int hash = 0;
+        for (int i = this.tokenStarts[index]; i < this.tokenEnds[index]; i++)
+            hash = 31 * hash + foldCase(this.chars[i]);
+
+        return hash;
+    }
+
+
+    /**
+     * Hashes characters, so sequences that are equal ignoring case have the same hash.
+     *
+     * @param sequence the characters to hash.
+     * @return the hash of the characters.
+     */
+    static int hashIgnoreCase(@NonNull CharSequence sequence)
+    {
+        int hash = 0;
+        for (int i = 0; i < sequence.length(); i++)
+            hash = 31 * hash + foldCase(sequence.charAt(i));
+
+        return hash;
+    }
+
+
+    /**
+     * Maps character to the same value as all the characters equal to it ignoring case.
+     */
+    private static char foldCase(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+
+    /**
+     * Gets a token as string.
+     *
+     * @param index the index of the token.
+     * @return new string of the token.
+     */
+    @NonNull
+    public String getToken(int index) {
+        checkToken(index);
+        return new String(this.chars, this.tokenStarts[index],
+                this.tokenEnds[index] - this.tokenStarts[index]);
+    }
+
+
+    /**
+     * Gets the rest of the line, starting at a token.
+     * Whitespaces inside the rest are kept as is.
+     *
+     * @param index the index of the first token.
+     * @return new string from the token to the end of the line, or empty string if no such token.
+     */
+    @NonNull
+    public String getRemainder(int index)
+    {
+        if (index < 0 || index >= getTokenCount())
+            return "";
+
+        int start = this.tokenStarts[index];
+        int end = this.tokenEnds[this.tokenCount - 1];
+        return new String(this.chars, start, end - start);
+    }
+
+
+    /**
+     * Parses a token as float.
+     * Plain decimal numbers whose digits fit in 24 bits, with up to 10 decimals, are parsed
+     * in place, anything else is passed to {@link Float#parseFloat(String)}.
+     *
+     * @param index the index of the token.
+     * @return the value of the token.
+     * @throws NumberFormatException if the token is not a number.
+     * @throws IndexOutOfBoundsException if there is no such token.
+     */
+    public float parseFloatToken(int index) throws NumberFormatException
+    {
+        checkToken(index);
+
+        int start = this.tokenStarts[index];
+        int end = this.tokenEnds[index];
+        int i = start;
+
+        boolean negative = false;
+        if (this.chars[i] == '-' || this.chars[i] == '+')
+            negative = this.chars[i++] == '-';
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+
+        for (; i < end; i++)
+        {
+            char c = this.chars[i];
+
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (point) scale++;
+            }
+            else if (c == '.' && !point) {
+                point = true;
+            }
+            else {
+                // Exponent, NaN, Infinity or junk
+                digits = -1;
+                break;
+            }
+
+            if (digits > MAX_FAST_DIGITS)
+                break;
+        }
+
+        if (digits <= 0 || digits > MAX_FAST_DIGITS
+                || mantissa >= MAX_FAST_MANTISSA || scale >= POWERS_OF_TEN.length)
+            return Float.parseFloat(new String(this.chars, start, end - start));
+
+        float value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+
+    /**
+     * Splits the line to tokens.
+     */
+    private void findTokens()
+    {
+        int count = 0;
+        int i = 0;
+
+        while (true)
+        {
+            // Skip whitespaces, same as String.trim()
+            while (i < this.length && this.chars[i] <= ' ') i++;
+            if (i == this.length) break;
+
+            if (count == this.tokenStarts.length) {
+                this.tokenStarts = Arrays.copyOf(this.tokenStarts, count * 2);
+                this.tokenEnds = Arrays.copyOf(this.tokenEnds, count * 2);
+            }
+
+            this.tokenStarts[count] = i;
+            while (i < this.length && this.chars[i] > ' ') i++;
+            this.tokenEnds[count] = i;
+            count++;
+        }
+
+        this.tokenCount = count;
+    }
+
+
+    /**
+     * Throws if there is no token at <strong>index</strong>.
+     */
+    private void checkToken(int index)
+    {
+        if (index < 0 || index >= getTokenCount())
+            throw new IndexOutOfBoundsException("token " + index + ", count " + this.tokenCount);
+    }
+
+
+    /**
+     * Makes sure the characters array can hold <strong>length</strong> characters.
+     */
+    private void ensureLength(int length)
+    {
+        if (this.chars.length < length)
+            this.chars = new char[Math.max(length, this.chars.length * 2)];
+    }
+}
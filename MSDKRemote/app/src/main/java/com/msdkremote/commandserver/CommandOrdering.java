@@ -0,0 +1,27 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Interface to dictate which commands must be handled in the order they arrived,
+ * when the command handlers run on dispatch executor.
+ */
+public interface CommandOrdering
+{
+    /**
+     * Gets the ordering key of a command.
+     * Commands with equal keys are handled one after the other, in the order they arrived.
+     * Commands with different keys may be handled at the same time.
+     * <p>
+     * Note on implementation, this method is called on the thread that handle
+     * the communication of all the clients, so it should be fast.
+     * The command is a reusable view, and must not be kept.
+     *
+     * @param session the session the command arrived on.
+     * @param command the command that was received.
+     * @return the ordering key, or null if the command may be handled in any order.
+     */
+    @Nullable
+    public Object getOrderingKey(@NonNull Session session, @NonNull CommandLine command);
+}
@@ -7,14 +7,35 @@ import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.msdkremote.logging.AsyncLog;
+import com.msdkremote.metrics.Trace;
+import com.msdkremote.metrics.TraceStage;
+import com.msdkremote.metrics.Tracer;
+
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashSet;
-import java.util.Set;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Bidirectional command server, for receiving commands and sending messages.
+ * <p>
+ * All the clients are served by a single thread, which multiplex their
+ * non-blocking channels with a {@link Selector}.
  */
 public class CommandServer
 {
@@ -26,23 +47,71 @@ public class CommandServer
     private final CommandServerStateListener stateListener;
 
 
-    // Thread specific variables
-    private final Object threadLock = new Object();
+    // Thread specific variables, guarded by the lifecycle lock. The server thread takes
+    // the lock of this server to read its configuration, so stopServer() must not hold it.
+    private final Object lifecycleLock = new Object();
     private Thread serverThread = null;
     private boolean serverStarted = false;
 
-    private CommandServerReader commandReader = null;
-    private CommandServerWriter commandWriter = null;
+    private volatile Selector selector = null;
+    private ServerSocketChannel serverChannel = null;
+
+    // Connected clients, modified only by the server thread (under the list lock).
+    private final List<Session> sessions = new ArrayList<>();
+
+    // Session ids, also taken by channels of multiplexed connections of other servers
+    private final AtomicInteger nextSessionId = new AtomicInteger(1);
+
+    // Sessions that lost their connection and wait for their client to resume, by their token.
+    // Used only by the server thread.
+    private final Map<String, Session> detachedSessions = new HashMap<>();
+    private SecureRandom tokenRandom = null;
+
+    // Set when the server thread was asked to wake up and not yet woke up.
+    private final AtomicBoolean wakeupRequested = new AtomicBoolean(false);
+
+
+    // Command Handlers, the table is replaced on every change and read without lock
+    private volatile HandlerTable handlerTable = HandlerTable.EMPTY;
+    private final Object handlerTableLock = new Object();
+
+    // Runs the handlers off the server thread, or null to run them on it
+    private volatile CommandDispatcher commandDispatcher = null;
 
-    private ServerSocket serverSocket = null;
-    private Socket clientSocket = null;
+    // Channels of multiplexed connections, the map is replaced on every change and read without lock
+    private volatile Map<Integer, ChannelBinding> channels = Collections.emptyMap();
+    private final Object channelsLock = new Object();
 
 
-    // Command Handlers
-    private final Set<CommandHandler> commandHandlerSet = new HashSet<>();
-    private final Object commandHandlerSetLock = new Object();
+    // Outbound queue configuration, applied to new sessions
+    private int queueCapacity = Session.DEFAULT_QUEUE_CAPACITY;
+    private OverflowPolicy overflowPolicy = Session.DEFAULT_OVERFLOW_POLICY;
+    private long blockTimeout_ms = 0;
+    private boolean coalesceTelemetry = false;
+    private boolean binaryFramingAllowed = false;
 
-    private final MessageQueue messageQueue = new MessageQueue();
+    // Socket options of new clients
+    private SocketProfile socketProfile = SocketProfile.DEFAULT;
+
+    // The name of the metrics of this server, and the metrics while it runs
+    private String metricsName = null;
+    private volatile ServerMetrics metrics = null;
+
+    // Write batching configuration, applied to new sessions
+    private int batchSize = Session.DEFAULT_BATCH_SIZE;
+    private long batchDelay_ms = Session.DEFAULT_BATCH_DELAY_ms;
+
+    // Session resumption configuration, zero grace means no resumption
+    private long resumeGrace_ms = 0;
+    private int replayCapacity = 0;
+
+    // Heartbeat configuration, zero interval means no heartbeat
+    private long heartbeatInterval_ms = 0;
+    private int maxMissedHeartbeats = 0;
+
+    // When the next heartbeat is due, used only by the server thread
+    private boolean heartbeatStarted = false;
+    private long nextHeartbeat_ns = 0;
 
 
 
@@ -86,30 +155,33 @@ public class CommandServer
     /**
      * Start the server thread in a new thread.
      */
-    public synchronized void startServer()
+    public void startServer()
     {
-        // If the server is alive, don't do anything
-        if (serverStarted || (serverThread != null && serverThread.isAlive())) {
-            log_i("Start server called on running server.");
-            return;
-        }
-
-        // Flag to stop the server from double running
-        serverStarted = true;
+        synchronized (this.lifecycleLock)
+        {
+            // If the server is alive, don't do anything
+            if (serverStarted || (serverThread != null && serverThread.isAlive())) {
+                AsyncLog.i(this.TAG, "Start server called on running server.");
+                return;
+            }
 
-        // Lunch server
-        log_i("Starting server.");
+            // Flag to stop the server from double running
+            serverStarted = true;
 
-        // Reset all the inner variables
-        this.commandReader = null;
-        this.commandWriter = null;
+            // Lunch server
+            AsyncLog.i(this.TAG, "Starting server.");
 
-        this.serverSocket = null;
-        this.clientSocket = null;
+            // Reset all the inner variables
+            this.selector = null;
+            this.serverChannel = null;
+            synchronized (this.sessions) {
+                this.sessions.clear();
+            }
 
-        // Start the server thread
-        this.serverThread = new Thread(this::run);
-        this.serverThread.start();
+            // Start the server thread
+            this.serverThread = new Thread(this::run);
+            this.serverThread.start();
+        }
     }
 
 
@@ -119,55 +191,41 @@ public class CommandServer
      *
      * @throws InterruptedException if calling thread interrupted while executing this method.
      */
-    public synchronized void stopServer() throws InterruptedException
+    public void stopServer() throws InterruptedException
     {
-        // If the server is closed, don't do anything
-        if (serverThread == null) {
-            log_i("Stop server called on terminated server.");
-            return;
-        }
-
-        // Terminate server
-        log_i("Terminating the server.");
-
-        // Rise interrupt flag
-        this.serverThread.interrupt();
-
-        // Stop the thread if its waiting for new clients
-        if (this.serverSocket != null) {
-            try {
-                this.serverSocket.close();
+        synchronized (this.lifecycleLock)
+        {
+            // If the server is closed, don't do anything
+            if (serverThread == null) {
+                AsyncLog.i(this.TAG, "Stop server called on terminated server.");
+                return;
             }
-            catch (IOException ignored) { }
-        }
 
-        // Closing the client should be enough to make all the threads to close.
-        if (this.clientSocket != null) {
-            try {
-                this.clientSocket.close();
-            }
-            catch (IOException ignored) { }
-        }
+            // Terminate server
+            AsyncLog.i(this.TAG, "Terminating the server.");
 
-        // Wait for the thread to fully close.
-        this.serverThread.join();
-        log_i("Server terminated.");
+            // Rise interrupt flag
+            this.serverThread.interrupt();
 
-        // Reset all the inner variables
-        if (this.commandReader != null) {
-            this.commandReader.stopServer();
-            this.commandReader = null;
-        }
+            // Stop the thread if its waiting on the selector.
+            // The thread closes the channels and the selector by itself.
+            Selector selector = this.selector;
+            if (selector != null)
+                selector.wakeup();
 
-        if (this.commandWriter != null) {
-            this.commandWriter.stopServer();
-            this.commandWriter = null;
-        }
+            // Wait for the thread to fully close.
+            this.serverThread.join();
+            AsyncLog.i(this.TAG, "Server terminated.");
 
-        this.serverSocket = null;
-        this.clientSocket = null;
+            // Reset all the inner variables
+            this.selector = null;
+            this.serverChannel = null;
+            synchronized (this.sessions) {
+                this.sessions.clear();
+            }
 
-        this.serverThread = null;
+            this.serverThread = null;
+        }
     }
 
 
@@ -185,153 +243,1027 @@ public class CommandServer
         if (this.stateListener != null)
             this.stateListener.onServerRunning();
 
-        // Create server socket
+        // Create the selector and the server channel
         try {
-            log_v("Creating new server socket.");
-            this.serverSocket = new ServerSocket(this.port);
+            AsyncLog.v(this.TAG, "Creating new server channel.");
+            this.selector = Selector.open();
+
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.socket().setReuseAddress(true);
+            getSocketProfile().applyToServer(this.serverChannel.socket());
+            this.serverChannel.socket().bind(new InetSocketAddress(this.port));
+            this.serverChannel.configureBlocking(false);
+            this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
         }
         catch (IOException e) {
             // Inform about exception
             if (this.stateListener != null)
                 this.stateListener.onServerException(e);
 
-            log_w("Couldn't create server socket.", e);
+            AsyncLog.w(this.TAG, "Couldn't create server channel.", e);
+            closeServerChannels();
             return;
         }
 
+        // Instrument this run of the server, if it has a metrics name
+        String metricsName = getMetricsName();
+        if (metricsName != null) {
+            this.metrics = new ServerMetrics(this, metricsName);
+            this.metrics.registerGauges();
+        }
+
         try {
+            // Time until the earliest held batch should be written, and until the next heartbeat
+            long flushDelay_ns = Session.NO_FLUSH_DELAY;
+            long heartbeatDelay_ns = Session.NO_FLUSH_DELAY;
+
             // Network loop
             while (!this.serverThread.isInterrupted())
             {
-                // Accept new client
-                this.clientSocket = this.serverSocket.accept();
+                // Wait for network events, new messages, held batch, resumption deadline or interrupt.
+                long delay_ns = minDelay(flushDelay_ns, minDelay(heartbeatDelay_ns, expireDetachedSessions()));
 
-                // Catch interrupts that occurred while accepting the client.
+                if (delay_ns == Session.NO_FLUSH_DELAY)
+                    this.selector.select();
+                else
+                    this.selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay_ns)));
+                this.wakeupRequested.set(false);
+
+                // Catch interrupts that occurred while waiting.
                 if (this.serverThread.isInterrupted())
                     break;
 
-                // Inform the state listener about new client
-                if (this.stateListener != null)
-                    this.stateListener.onClientConnected(this.clientSocket.getInetAddress());
-
-                // Create command reader and writer without tag
-                if (this.TAG == null) {
-                    this.commandWriter = new CommandServerWriter(
-                            this.clientSocket.getOutputStream(),
-                            this.messageQueue);
-                    this.commandReader = new CommandServerReader(
-                            this.clientSocket.getInputStream(),
-                            this.commandDistribute);
-                }
-                // Create command reader and writer wit tag
-                else {
-                    this.commandWriter = new CommandServerWriter(
-                            this.clientSocket.getOutputStream(),
-                            this.messageQueue,
-                            this.TAG);
-                    this.commandReader = new CommandServerReader(
-                            this.clientSocket.getInputStream(),
-                            this.commandDistribute,
-                            this.TAG);
-                }
+                // Handle all the ready channels
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
 
-                // Wait for the command reader threads to close.
-                // this will happen when the connection is closed.
-                this.commandReader.joinServer();
-                this.commandWriter.stopServer();
+                    if (!key.isValid())
+                        continue;
 
-                this.commandWriter = null;
-                this.commandReader = null;
-                this.clientSocket = null;
+                    if (key.isAcceptable())
+                        acceptClient();
+                    else
+                        handleClient(key, (Session) key.attachment());
+                }
 
-                if (this.stateListener != null)
-                    this.stateListener.onClientDisconnected();
+                // Ping the clients when due, and write the scheduled messages of the clients
+                heartbeatDelay_ns = heartbeatSessions();
+                flushDelay_ns = flushSessions();
             }
         }
-        catch (InterruptedException e) {
-            log_i("Server thread was interrupted and closing.");
-        }
         catch (IOException e) {
             // Didn't call state listener as it might be due to closing the thread.
-            log_w("Server thread got IO exception", e);
+            AsyncLog.w(this.TAG, "Server thread got IO exception", e);
         }
         finally {
-            // Close the server socket
+            // Close the clients, the server channel and the selector
+            while (!this.sessions.isEmpty())
+                closeSession(this.sessions.get(this.sessions.size() - 1));
+
+            // No one can resume anymore
+            for (Session session : this.detachedSessions.values())
+                session.close();
+            this.detachedSessions.clear();
+
+            closeServerChannels();
+
+            if (this.metrics != null) {
+                this.metrics.removeGauges();
+                this.metrics = null;
+            }
+        }
+
+        AsyncLog.i(this.TAG, "Server thread is closing.");
+
+        // Inform the state listener that the server is closing
+        if (this.stateListener != null)
+            this.stateListener.onServerClosed();
+
+    }
+
+
+    /**
+     * Accepts new client from the server channel, and registers it on the selector.
+     *
+     * @throws IOException if the server channel failed to accept.
+     */
+    private void acceptClient() throws IOException
+    {
+        SocketChannel socketChannel = this.serverChannel.accept();
+
+        // Spurious wakeup, the client gave up before it was accepted.
+        if (socketChannel == null)
+            return;
+
+        int batchSize;
+        long batchDelay_ms;
+        SocketProfile socketProfile;
+        synchronized (this) {
+            batchSize = this.batchSize;
+            batchDelay_ms = this.batchDelay_ms;
+            socketProfile = this.socketProfile;
+        }
+
+        Session session = new Session(this, newSessionId(),
+                socketChannel, this.commandDistribute, createMessageQueue(),
+                batchSize, batchDelay_ms, this.TAG);
+
+        try {
+            session.setSocketSettings(socketProfile.apply(socketChannel.socket()));
+            socketChannel.configureBlocking(false);
+            session.setKey(socketChannel.register(this.selector, SelectionKey.OP_READ, session));
+        }
+        catch (IOException e) {
+            AsyncLog.w(this.TAG, "Couldn't register new client.", e);
+            session.close();
             try {
-                this.serverSocket.close();
+                socketChannel.close();
             } catch (IOException ignored) { }
+            return;
+        }
+
+        synchronized (this.sessions) {
+            this.sessions.add(session);
+        }
+
+        if (this.metrics != null)
+            this.metrics.onSessionOpened(session);
+
+        AsyncLog.v(this.TAG, "New client connected, {} clients in total, {}.",
+                this.sessions.size(), session.getSocketSettings());
+
+        // Inform the state listener about new client
+        if (this.stateListener != null)
+            this.stateListener.onClientConnected(socketChannel.socket().getInetAddress());
+    }
+
+
+    /**
+     * Creates outbound queue for new session, by the queue configuration of this server.
+     *
+     * @return new message queue.
+     */
+    @NonNull
+    synchronized MessageQueue createMessageQueue()
+    {
+        MessageQueue telemetryLane = this.coalesceTelemetry
+                ? new CoalescingMessageQueue(this.queueCapacity, this.overflowPolicy, this.blockTimeout_ms)
+                : new RingMessageQueue(this.queueCapacity, this.overflowPolicy, this.blockTimeout_ms);
+
+        return new PriorityMessageQueue(
+                new RingMessageQueue(this.queueCapacity, this.overflowPolicy, this.blockTimeout_ms),
+                telemetryLane);
+    }
+
+
+    /**
+     * Gets id for new session of this server.
+     *
+     * @return unique session id.
+     */
+    int newSessionId() {
+        return this.nextSessionId.getAndIncrement();
+    }
+
+
+    /**
+     * Handles ready operations on a client channel.
+     *
+     * @param key the selection key of the client.
+     * @param session the session which its channel is ready.
+     */
+    private void handleClient(@NonNull SelectionKey key, @NonNull Session session)
+    {
+        try {
+            // Read the commands, false means the client closed the connection.
+            if (key.isReadable() && !session.read()) {
+                dropSession(session);
+                return;
+            }
+
+            // The connection was taken by resumed session, which is flushed with the others.
+            if (session.isClosed())
+                return;
+
+            // Continue writing the leftovers of the last flush.
+            if (key.isValid() && key.isWritable())
+                session.flush();
+        }
+        catch (IOException e) {
+            AsyncLog.v(this.TAG, "IOException occurred on client (connection closed ?)");
+            dropSession(session);
+        }
+    }
+
+
+    /**
+     * Writes the scheduled messages of all the sessions.
+     *
+     * @return nanoseconds until the earliest held batch should be written,
+     *         or {@link Session#NO_FLUSH_DELAY} if no batch is held back.
+     */
+    private long flushSessions()
+    {
+        long flushDelay_ns = Session.NO_FLUSH_DELAY;
+
+        // Iterate on copy, as failing session removes itself from the list.
+        for (Session session : this.sessions.toArray(new Session[0]))
+        {
+            // Slow client under DISCONNECT policy
+            if (session.isOverflowed()) {
+                AsyncLog.w(this.TAG, "Client did not keep up with its messages, disconnecting.");
+                closeSession(session);
+                continue;
+            }
 
-            // Close the client socket
             try {
-                if (this.clientSocket != null)
-                    this.serverSocket.close();
-            } catch (IOException ignored) { }
+                long delay_ns = session.flush();
+
+                if (delay_ns != Session.NO_FLUSH_DELAY
+                        && (flushDelay_ns == Session.NO_FLUSH_DELAY || delay_ns < flushDelay_ns))
+                    flushDelay_ns = delay_ns;
+            }
+            catch (IOException e) {
+                AsyncLog.v(this.TAG, "IOException occurred while writing (connection closed ?)");
+                dropSession(session);
+            }
         }
 
-        // Inform the state listener that the server is closing
+        return flushDelay_ns;
+    }
+
+
+    /**
+     * Handles lost connection. Session that its client may resume is detached,
+     * and waits for the client, any other session is closed.
+     *
+     * @param session the session that lost its connection.
+     */
+    private void dropSession(@NonNull Session session)
+    {
+        long grace_ms = getResumeGrace_ms();
+
+        if (grace_ms == 0 || !session.isResumable()) {
+            closeSession(session);
+            return;
+        }
+
+        synchronized (this.sessions) {
+            if (!this.sessions.remove(session))
+                return;
+        }
+
+        session.detach(grace_ms);
+        this.detachedSessions.put(session.getResumeToken(), session);
+        AsyncLog.v(this.TAG, "Client disconnected, session kept for {}ms, {} clients left.",
+                grace_ms, this.sessions.size());
+
         if (this.stateListener != null)
-            this.stateListener.onServerClosed();
+            this.stateListener.onClientDisconnected();
+    }
+
+
+    /**
+     * Pings all the clients, once every heartbeat interval.
+     * Client that did not answer the last pings is considered gone, e.g. half-open connection.
+     *
+     * @return nanoseconds until the next heartbeat, or {@link Session#NO_FLUSH_DELAY} if disabled.
+     */
+    private long heartbeatSessions()
+    {
+        long interval_ms;
+        int maxMissed;
+        synchronized (this) {
+            interval_ms = this.heartbeatInterval_ms;
+            maxMissed = this.maxMissedHeartbeats;
+        }
+
+        if (interval_ms == 0) {
+            this.heartbeatStarted = false;
+            return Session.NO_FLUSH_DELAY;
+        }
 
+        long now = System.nanoTime();
+
+        if (!this.heartbeatStarted || now - this.nextHeartbeat_ns >= 0)
+        {
+            this.heartbeatStarted = true;
+            this.nextHeartbeat_ns = now + TimeUnit.MILLISECONDS.toNanos(interval_ms);
+
+            Session[] sessions;
+            synchronized (this.sessions) {
+                sessions = this.sessions.toArray(new Session[0]);
+            }
+
+            for (Session session : sessions)
+            {
+                if (!session.heartbeat(maxMissed)) {
+                    AsyncLog.w(this.TAG, "Client missed {} heartbeats, disconnecting.", maxMissed);
+                    dropSession(session);
+                }
+            }
+        }
+
+        return this.nextHeartbeat_ns - now;
+    }
+
+
+    /**
+     * Informs the state listener about new round trip time measure.
+     *
+     * @param session the session that was measured.
+     * @param rtt_us the round trip time in microseconds.
+     */
+    void onRoundTripTime(@NonNull Session session, long rtt_us)
+    {
+        ServerMetrics metrics = this.metrics;
+        if (metrics != null)
+            metrics.roundTripTime_us.record(rtt_us);
+
+        if (this.stateListener != null)
+            this.stateListener.onRoundTripTime(session, rtt_us);
     }
 
 
     /**
-     * Sending specific message over this command server.
-     * Note: this will schedule the message,
-     *   and send it only when a connection is established.
+     * Closes the detached sessions that their client did not resume in time,
+     * or did not keep up with their messages.
+     *
+     * @return nanoseconds until the next deadline, or {@link Session#NO_FLUSH_DELAY} if none.
+     */
+    private long expireDetachedSessions()
+    {
+        if (this.detachedSessions.isEmpty())
+            return Session.NO_FLUSH_DELAY;
+
+        long now = System.nanoTime();
+        long delay_ns = Session.NO_FLUSH_DELAY;
+
+        Iterator<Session> iterator = this.detachedSessions.values().iterator();
+        while (iterator.hasNext())
+        {
+            Session session = iterator.next();
+            long remaining_ns = session.getResumeDeadline() - now;
+
+            if (remaining_ns <= 0 || session.isOverflowed()) {
+                AsyncLog.v(this.TAG, "Detached session was not resumed, closing it.");
+                iterator.remove();
+                session.close();
+
+                if (this.metrics != null)
+                    this.metrics.onSessionClosed(session);
+                continue;
+            }
+
+            delay_ns = minDelay(delay_ns, remaining_ns);
+        }
+
+        return delay_ns;
+    }
+
+
+    /**
+     * Gets the shorter of two delays, where {@link Session#NO_FLUSH_DELAY} means no delay at all.
+     */
+    private static long minDelay(long delay1_ns, long delay2_ns)
+    {
+        if (delay1_ns == Session.NO_FLUSH_DELAY)
+            return delay2_ns;
+
+        if (delay2_ns == Session.NO_FLUSH_DELAY)
+            return delay1_ns;
+
+        return Math.min(delay1_ns, delay2_ns);
+    }
+
+
+    /**
+     * Handles the commands of the server itself, when their feature is enabled.
+     *
+     * @param session the session the command arrived on.
+     * @param command the command that was received.
+     * @return true if the command was handled.
+     */
+    private boolean onServerCommand(@NonNull Session session, @NonNull CommandLine command)
+    {
+        // Answer to line ping, the timestamp is the one the session wrote
+        if (command.tokenEqualsIgnoreCase(0, Session.PONG) && command.getTokenCount() == 2)
+        {
+            if (!hasOwnHeartbeat(session))
+                return false;
+
+            try {
+                session.onPong(Long.parseLong(command.getToken(1)));
+            } catch (NumberFormatException ignored) { }
+
+            return true;
+        }
+
+        if (command.tokenEqualsIgnoreCase(0, COMMAND_HEARTBEAT))
+        {
+            long interval_ms = getHeartbeatInterval_ms();
+            if (!hasOwnHeartbeat(session))
+                return false;
+
+            session.startLineHeartbeat();
+            session.sendServerReply(COMMAND_HEARTBEAT + " " + interval_ms);
+            return true;
+        }
+
+        if (command.tokenEqualsIgnoreCase(0, COMMAND_SESSION))
+        {
+            if (getResumeGrace_ms() == 0)
+                return false;
+
+            onSessionCommand(session, command);
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Checks whether session may use the heartbeat commands.
+     * Channels of multiplexed connection share the heartbeat of their connection.
+     *
+     * @param session the session the command arrived on.
+     * @return true if heartbeat is enabled, and the session is a connection of its own.
+     */
+    private boolean hasOwnHeartbeat(@NonNull Session session) {
+        return getHeartbeatInterval_ms() > 0 && session.getChannel() == BinaryFraming.COMMAND_CHANNEL;
+    }
+
+
+    /**
+     * Handles SESSION command, that asks for resume token, or resumes detached session.
+     * <ul>
+     *   <li>{@code SESSION} - answered by {@code SESSION <token> NEW}.</li>
+     *   <li>{@code SESSION <token> [<received>]} - if the session of the token is detached,
+     *       or still connected on a connection the client gave up on, the session moves to
+     *       this connection and is answered by {@code SESSION <token> RESUMED <sequence>}.
+     *       The messages from number <strong>sequence</strong> on are written again,
+     *       then the messages that were queued meanwhile. Otherwise, it is answered as
+     *       if no token was given.</li>
+     * </ul>
+     *
+     * @param session the session the command arrived on.
+     * @param command the command that was received.
+     */
+    private void onSessionCommand(@NonNull Session session, @NonNull CommandLine command)
+    {
+        // Channels of multiplexed connections live and die with their connection
+        if (session.getChannel() != BinaryFraming.COMMAND_CHANNEL) {
+            session.sendMessage(COMMAND_SESSION + " UNAVAILABLE");
+            return;
+        }
+
+        String token = command.getTokenCount() > 1 ? command.getToken(1) : null;
+        long received = -1;
+
+        if (command.getTokenCount() > 2) {
+            try {
+                received = Long.parseLong(command.getToken(2));
+            } catch (NumberFormatException ignored) { }
+        }
+
+        Session resumed = token == null ? null : takeSession(token, session);
+
+        // Nothing to resume, the client gets token for the next time
+        if (resumed == null) {
+            if (session.getResumeToken() == null)
+                session.setResumeToken(newResumeToken(), getReplayCapacity());
+
+            session.sendServerReply(COMMAND_SESSION + " " + session.getResumeToken() + " NEW");
+            return;
+        }
+
+        synchronized (this.sessions) {
+            this.sessions.remove(session);
+            this.sessions.add(resumed);
+        }
+
+        long sequence = resumed.resume(session, received);
+        resumed.sendServerReply(COMMAND_SESSION + " " + token + " RESUMED " + sequence);
+        AsyncLog.v(this.TAG, "Client resumed session {}, replaying from message {}.", resumed.getSessionId(), sequence);
+    }
+
+
+    /**
+     * Takes the session of a token, to resume it on another connection.
+     * Connected session is detached first, as its client is already on the new connection.
+     *
+     * @param token the resume token.
+     * @param connection the session asking to resume.
+     * @return the session to resume, or null if there is no such session.
+     */
+    @Nullable
+    private Session takeSession(@NonNull String token, @NonNull Session connection)
+    {
+        Session session = this.detachedSessions.remove(token);
+        if (session != null)
+            return session;
+
+        // Half-open connection, the client reconnected before the server noticed
+        for (Session connected : getSessions())
+        {
+            if (connected != connection && connected.isResumable() && token.equals(connected.getResumeToken()))
+            {
+                synchronized (this.sessions) {
+                    this.sessions.remove(connected);
+                }
+
+                connected.detach(0);
+                if (this.stateListener != null)
+                    this.stateListener.onClientDisconnected();
+
+                return connected;
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Creates new random resume token.
+     *
+     * @return 32 hexadecimal characters.
+     */
+    @NonNull
+    private String newResumeToken()
+    {
+        if (this.tokenRandom == null)
+            this.tokenRandom = new SecureRandom();
+
+        byte[] bytes = new byte[16];
+        this.tokenRandom.nextBytes(bytes);
+
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            token.append(String.format(Locale.ROOT, "%02x", b));
+
+        return token.toString();
+    }
+
+
+    /**
+     * Closes the session connection and removes it from the server.
+     *
+     * @param session the session to close.
+     */
+    private void closeSession(@NonNull Session session)
+    {
+        synchronized (this.sessions) {
+            if (!this.sessions.remove(session))
+                return;
+        }
+
+        session.close();
+        if (this.metrics != null)
+            this.metrics.onSessionClosed(session);
+
+        AsyncLog.v(this.TAG, "Client disconnected, {} clients left.", this.sessions.size());
+
+        if (this.stateListener != null)
+            this.stateListener.onClientDisconnected();
+    }
+
+
+    /**
+     * Sets the outbound queue configuration of the sessions.
+     * Applied only to clients that connect after this call.
+     *
+     * @param capacity the maximum number of messages pending for a single client, per priority.
+     * @param overflowPolicy what to do with new message when the queue of a client is full.
+     * @param blockTimeout_ms the maximum time to block the producer,
+     *                        used only with {@link OverflowPolicy#BLOCK_PRODUCER}.
+     */
+    public synchronized void setQueuePolicy(
+            @IntRange(from = 1) int capacity,
+            @NonNull OverflowPolicy overflowPolicy,
+            @IntRange(from = 0) long blockTimeout_ms)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity cannot be negative.");
+
+        if (blockTimeout_ms < 0)
+            throw new IllegalArgumentException("Block timeout cannot be negative.");
+
+        this.queueCapacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeout_ms = blockTimeout_ms;
+    }
+
+
+    /**
+     * Sets whether pending telemetry of the same key is replaced by newer one.
+     * When enabled, client that can not keep up receives only the latest value of every key,
+     * instead of a backlog of stale values.
+     * Applied only to clients that connect after this call.
+     *
+     * @param coalesceTelemetry true to keep only the latest telemetry message of each key.
+     */
+    public synchronized void setTelemetryCoalescing(boolean coalesceTelemetry) {
+        this.coalesceTelemetry = coalesceTelemetry;
+    }
+
+
+    /**
+     * Sets how the outbound messages of the sessions are gathered into writes.
+     * All the messages scheduled for a client are written in a single write of up to
+     * <strong>batchSize</strong> bytes. Batch that is not full waits up to
+     * <strong>batchDelay_ms</strong> for more messages, trading latency for fewer packets.
+     * Applied only to clients that connect after this call.
+     *
+     * @param batchSize the maximum number of bytes to write at once.
+     * @param batchDelay_ms how long a small batch may wait for more messages, zero to not wait.
+     */
+    public synchronized void setWriteBatching(
+            @IntRange(from = CommandServerWriter.MIN_BATCH_SIZE) int batchSize,
+            @IntRange(from = 0) long batchDelay_ms)
+    {
+        if (batchSize < CommandServerWriter.MIN_BATCH_SIZE)
+            throw new IllegalArgumentException(
+                    "Batch size cannot be less than " + CommandServerWriter.MIN_BATCH_SIZE + ".");
+
+        if (batchDelay_ms < 0)
+            throw new IllegalArgumentException("Batch delay cannot be negative.");
+
+        this.batchSize = batchSize;
+        this.batchDelay_ms = batchDelay_ms;
+    }
+
+
+    /**
+     * Sets whether clients may switch their connection to binary framing.
+     * When allowed, client that sends {@code FRAMING BINARY} as its first line gets
+     * the same line back, and from then on commands and messages are length-prefixed
+     * frames instead of lines, see {@link BinaryFraming} for the frame layout.
+     * Applied to handshakes that arrive after this call.
+     *
+     * @param binaryFramingAllowed true to allow the binary framing handshake.
+     */
+    public synchronized void setBinaryFramingAllowed(boolean binaryFramingAllowed) {
+        this.binaryFramingAllowed = binaryFramingAllowed;
+    }
+
+
+    /**
+     * Sets the socket options of the clients, by the kind of traffic of this server,
+     * e.g. {@link SocketProfile#INTERACTIVE} for small commands that must not wait.
+     * Applied to the clients that connect from now on, and the receive buffer of the server
+     * socket is set only when the server starts. The options in use are reported
+     * by {@link Session#getSocketSettings()}.
+     *
+     * @param socketProfile the options to apply to every accepted client.
+     */
+    public synchronized void setSocketProfile(@NonNull SocketProfile socketProfile) {
+        this.socketProfile = socketProfile;
+    }
+
+
+    /**
+     * Gets the socket options of the clients.
+     *
+     * @return the profile applied to every accepted client.
+     */
+    @NonNull
+    public synchronized SocketProfile getSocketProfile() {
+        return this.socketProfile;
+    }
+
+
+    /**
+     * Sets the name of the metrics of this server, e.g. {@code query} for {@code query.commands},
+     * see {@link com.msdkremote.metrics.MetricsRegistry}. The server reports its clients,
+     * the commands it received and the time their handlers took, the pending and dropped
+     * messages, and the round trip times. Applied from the next start of the server.
+     *
+     * @param metricsName the prefix of the metrics, or null to not report metrics.
+     */
+    public synchronized void setMetricsName(@Nullable String metricsName) {
+        this.metricsName = metricsName;
+    }
+
+
+    @Nullable
+    private synchronized String getMetricsName() {
+        return this.metricsName;
+    }
+
+
+    /**
+     * Checks whether clients may switch their connection to binary framing.
+     *
+     * @return true if the binary framing handshake is allowed.
+     */
+    synchronized boolean isBinaryFramingAllowed() {
+        return this.binaryFramingAllowed;
+    }
+
+
+    /**
+     * Sets whether clients may resume their session after losing the connection.
+     * <p>
+     * Client that sends {@code SESSION} gets a token. If its connection is lost,
+     * the session is kept for <strong>grace_ms</strong>, with everything that refers to it,
+     * e.g. its subscriptions, and the messages sent on it are queued. Client that connects
+     * again and sends {@code SESSION <token> <received>}, where <strong>received</strong>
+     * is the number of messages it got on the session, continues the same session.
+     * The lines of the connection itself, {@code SESSION}, {@code HEARTBEAT}, {@code PING}
+     * and {@code PONG}, are not messages of the session, and are not counted.
+     * The last <strong>replayCapacity</strong> messages it did not receive are written again,
+     * followed by the messages queued meanwhile.
+     * Applied to sessions that lose their connection after this call.
+     *
+     * @param grace_ms how long to keep session for its client, zero to not keep it at all.
+     * @param replayCapacity the number of recent messages kept for every session to write again.
+     */
+    public synchronized void setSessionResumption(
+            @IntRange(from = 0) long grace_ms,
+            @IntRange(from = 1) int replayCapacity)
+    {
+        if (grace_ms < 0)
+            throw new IllegalArgumentException("Grace period cannot be negative.");
+
+        if (replayCapacity < 1)
+            throw new IllegalArgumentException("Replay capacity cannot be less than 1.");
+
+        this.resumeGrace_ms = grace_ms;
+        this.replayCapacity = replayCapacity;
+    }
+
+
+    private synchronized long getResumeGrace_ms() {
+        return this.resumeGrace_ms;
+    }
+
+
+    /**
+     * Sets the heartbeat of the clients, that detects dead connections and measures round trip time.
+     * <p>
+     * Every <strong>interval_ms</strong> the server pings every client, and client that left
+     * <strong>maxMissed</strong> pings in a row unanswered is disconnected, or detached if it
+     * may resume its session. Clients on binary framing get {@link BinaryFraming#TYPE_PING} frames
+     * and answer with {@link BinaryFraming#TYPE_PONG}. Line clients get heartbeat only after they
+     * send {@code HEARTBEAT}, then they get {@code PING <timestamp>} lines and answer with
+     * {@code PONG <timestamp>}.
+     * <p>
+     * The round trip times are available by {@link Session#getRoundTripTime_us()},
+     * and are reported to {@link CommandServerStateListener#onRoundTripTime(Session, long)}.
+     * Applied from the next heartbeat.
+     *
+     * @param interval_ms the time between pings, zero to disable the heartbeat.
+     * @param maxMissed the number of pings in a row a client may leave unanswered.
+     */
+    public synchronized void setHeartbeat(
+            @IntRange(from = 0) long interval_ms,
+            @IntRange(from = 1) int maxMissed)
+    {
+        if (interval_ms < 0)
+            throw new IllegalArgumentException("Heartbeat interval cannot be negative.");
+
+        if (maxMissed < 1)
+            throw new IllegalArgumentException("Missed heartbeats cannot be less than 1.");
+
+        this.heartbeatInterval_ms = interval_ms;
+        this.maxMissedHeartbeats = maxMissed;
+
+        // Wake the server thread, so the new interval starts now
+        requestWakeup();
+    }
+
+
+    private synchronized long getHeartbeatInterval_ms() {
+        return this.heartbeatInterval_ms;
+    }
+
+    private synchronized int getReplayCapacity() {
+        return this.replayCapacity;
+    }
+
+
+    /**
+     * Sets executor to run the command handlers on, instead of the server thread.
+     * That way slow handler does not stop the server from reading and writing.
+     * <p>
+     * Commands with the same ordering key are handled one after the other,
+     * in the order they arrived. Commands with different keys may be handled
+     * at the same time, so the handlers must be thread safe.
+     * Applied to commands that arrive after this call.
+     * <p>
+     * The executor is not owned by the server, and is not shut down with it.
+     *
+     * @param executor the executor to run the handlers on, or null to run them on the server thread.
+     * @param ordering decides which commands are kept in order,
+     *                 or null to keep the order of the commands of each session.
+     */
+    public void setDispatchExecutor(@Nullable Executor executor, @Nullable CommandOrdering ordering)
+    {
+        if (executor == null) {
+            this.commandDispatcher = null;
+            return;
+        }
+
+        if (ordering == null)
+            ordering = SESSION_ORDERING;
+
+        this.commandDispatcher = new CommandDispatcher(executor, ordering, this.TAG);
+    }
+
+
+    /**
+     * Gets the number of commands that were dispatched to the executor and were not handled yet.
+     *
+     * @return the number of pending commands, zero if there is no dispatch executor.
+     */
+    public int getDispatchQueueDepth()
+    {
+        CommandDispatcher dispatcher = this.commandDispatcher;
+        return dispatcher == null ? 0 : dispatcher.getQueueDepth();
+    }
+
+
+    /**
+     * Gets the sessions connected at this moment.
+     *
+     * @return snapshot of the connected sessions.
+     */
+    @NonNull
+    public Session[] getSessions()
+    {
+        synchronized (this.sessions) {
+            return this.sessions.toArray(new Session[0]);
+        }
+    }
+
+
+    /**
+     * Wakes the server thread, to write newly scheduled messages.
+     * Repeated calls before the thread woke up are merged to one.
+     */
+    void requestWakeup()
+    {
+        if (this.wakeupRequested.getAndSet(true))
+            return;
+
+        Selector selector = this.selector;
+        if (selector != null)
+            selector.wakeup();
+    }
+
+
+    /**
+     * Closes the server channel and the selector.
+     */
+    private void closeServerChannels()
+    {
+        try {
+            if (this.serverChannel != null)
+                this.serverChannel.close();
+        } catch (IOException ignored) { }
+
+        try {
+            if (this.selector != null)
+                this.selector.close();
+        } catch (IOException ignored) { }
+    }
+
+
+    /**
+     * Sending specific message to all the clients connected at this moment.
+     * Clients that connect later will not receive it.
+     * To answer a single client, use {@link Session#sendMessage(String)}.
      *
      * @param message the message to send.
      */
-    public void sendMessage(@NonNull String message)
+    public void broadcastMessage(@NonNull String message)
     {
-        log_v("Message registered: " + message);
-        messageQueue.addMessage(message);
+        AsyncLog.v(this.TAG, "Message broadcast: {}", message);
+
+        // Copy the sessions, as the list is owned by the server thread.
+        for (Session session : getSessions())
+            session.sendMessage(message);
     }
 
 
+
+    /* --------------------------- Channels --------------------------- */
+
     /**
-     * Log informative message (if TAG was set).
+     * Binds channel of multiplexed connections to another server.
+     * <p>
+     * Client that switched to binary framing may send text frames on the channel,
+     * and they are handled by the handlers of <strong>server</strong>, exactly as if
+     * they arrived on its own port. The replies are sent on the same channel, and the
+     * channel has its own outbound queue, by the queue configuration of <strong>server</strong>.
+     * That way single connection may carry the commands of several servers,
+     * sharing one TCP connection instead of competing with each other.
+     * <p>
+     * Channel that was opened before its binding was replaced, is closed and opened
+     * again with the new binding on its next command.
      *
-     * @param message message to log.
+     * @param channel the channel number, between 1 and 65535.
+     * @param server the server to handle the commands of the channel.
+     * @throws IllegalArgumentException if the channel is out of range.
      */
-    private void log_i(@NonNull String message)
+    public void setChannel(
+            @IntRange(from = 1, to = BinaryFraming.MAX_CHANNEL) int channel,
+            @NonNull CommandServer server)
     {
-        if (this.TAG != null)
-            Log.i(this.TAG, message);
+        putChannel(channel, new ChannelBinding(server, null));
     }
 
+
     /**
-     * Log verbose message (if TAG was set).
+     * Binds channel of multiplexed connections to a binary data source.
+     * <p>
+     * Client that switched to binary framing opens the channel by sending
+     * text frame {@code OPEN} on it, and closes it with {@code CLOSE}.
+     * While open, the messages of the stream are sent as binary frames on the channel,
+     * split to chunks of {@link BinaryFraming#MAX_DATA_CHUNK} bytes, so the other
+     * channels of the connection are not held back by long messages.
+     * The stream is polled only when the connection has room, so the stream decides
+     * what slow client misses.
      *
-     * @param message message to log.
+     * @param channel the channel number, between 1 and 65535.
+     * @param source the source of the data of the channel.
+     * @throws IllegalArgumentException if the channel is out of range.
      */
-    private void log_v(@NonNull String message)
+    public void setChannel(
+            @IntRange(from = 1, to = BinaryFraming.MAX_CHANNEL) int channel,
+            @NonNull DataChannelSource source)
     {
-        if (this.TAG != null)
-            Log.v(this.TAG, message);
+        putChannel(channel, new ChannelBinding(null, source));
     }
 
+
     /**
-     * Log error message (if TAG was set).
+     * Removes the binding of a channel.
+     * Frames that arrive on the channel from now on are discarded.
      *
-     * @param message message to log.
+     * @param channel the channel number.
+     * @return true if the channel was removed, false if it was not bound.
      */
-    private void log_w(@NonNull String message)
+    public boolean removeChannel(int channel)
     {
-        if (this.TAG != null)
-            Log.w(this.TAG, message);
+        synchronized (channelsLock) {
+            if (!channels.containsKey(channel))
+                return false;
+
+            AsyncLog.v(TAG, "Removing channel {} from the server.", channel);
+
+            Map<Integer, ChannelBinding> map = new HashMap<>(channels);
+            map.remove(channel);
+            channels = map;
+            return true;
+        }
     }
 
+
     /**
-     * Log error message and its error (if TAG was set).
+     * Gets the binding of a channel.
      *
-     * @param message message to log.
-     * @param e error message to log.
+     * @param channel the channel number.
+     * @return the binding, or null if the channel is not bound.
      */
-    private void log_w(@NonNull String message, @NonNull Throwable e)
+    @Nullable
+    ChannelBinding getChannelBinding(int channel) {
+        return this.channels.get(channel);
+    }
+
+
+    private void putChannel(int channel, @NonNull ChannelBinding binding)
     {
-        if (this.TAG != null)
-            Log.w(this.TAG, message, e);
+        if (channel <= BinaryFraming.COMMAND_CHANNEL || channel > BinaryFraming.MAX_CHANNEL)
+            throw new IllegalArgumentException("Channel must be between 1 and " + BinaryFraming.MAX_CHANNEL + ".");
+
+        synchronized (channelsLock) {
+            AsyncLog.v(TAG, "Binding channel {} of the server.", channel);
+
+            Map<Integer, ChannelBinding> map = new HashMap<>(channels);
+            map.put(channel, binding);
+            channels = map;
+        }
+    }
+
+
+    /**
+     * What a channel of multiplexed connections is bound to, either server or data source.
+     */
+    static final class ChannelBinding
+    {
+        final CommandServer server;
+        final DataChannelSource source;
+
+        ChannelBinding(@Nullable CommandServer server, @Nullable DataChannelSource source) {
+            this.server = server;
+            this.source = source;
+        }
     }
 
 
@@ -339,23 +1271,51 @@ public class CommandServer
     /* --------------------------- Command Handlers --------------------------- */
 
     /**
-     * Adding command handler to this server.
-     * All the handlers will receive the same messages,
+     * Adding default command handler to this server.
+     * Default handlers receive every command that no handler was registered
+     * for its verb, by {@link #addCommandHandler(String, CommandHandler)}.
+     * All the default handlers will receive the same messages,
      * its up to them to process rightly the command.
      *
      * @param commandHandler handler to add receiving updates on.
      */
     public void addCommandHandler(@NonNull CommandHandler commandHandler)
     {
-        synchronized (commandHandlerSetLock) {
-            log_v("Adding new handler to the server.");
-            commandHandlerSet.add(commandHandler);
+        synchronized (handlerTableLock) {
+            AsyncLog.v(this.TAG, "Adding new handler to the server.");
+            handlerTable = handlerTable.withHandler(null, commandHandler);
+        }
+    }
+
+
+    /**
+     * Adding command handler for a single verb to this server.
+     * Commands starting with the verb, ignoring case, are routed only to
+     * the handlers of the verb, and not to the default handlers.
+     * Handler may be registered for several verbs.
+     *
+     * @param verb the first word of the commands the handler receives, e.g. "GET".
+     * @param commandHandler handler to add receiving updates on.
+     * @throws IllegalArgumentException if the verb is empty or contains whitespaces.
+     */
+    public void addCommandHandler(@NonNull String verb, @NonNull CommandHandler commandHandler)
+    {
+        if (verb.isEmpty())
+            throw new IllegalArgumentException("Verb cannot be empty.");
+
+        for (int i = 0; i < verb.length(); i++)
+            if (verb.charAt(i) <= ' ')
+                throw new IllegalArgumentException("Verb cannot contain whitespaces.");
+
+        synchronized (handlerTableLock) {
+            AsyncLog.v(TAG, "Adding new handler to the server, verb : {}", verb);
+            handlerTable = handlerTable.withHandler(verb, commandHandler);
         }
     }
 
 
     /**
-     * Removes handler from the server.
+     * Removes handler from the server, for all the verbs it was registered for.
      *
      * @param commandHandler the handler to remove from this server.
      * @return true if the handler was removed,
@@ -363,9 +1323,15 @@ public class CommandServer
      */
     public boolean removeCommandHandler(@NonNull CommandHandler commandHandler)
     {
-        synchronized (commandHandlerSetLock) {
-            log_v("Removing handler from the server.");
-            return commandHandlerSet.remove(commandHandler);
+        synchronized (handlerTableLock) {
+            AsyncLog.v(this.TAG, "Removing handler from the server.");
+
+            HandlerTable table = handlerTable.withoutHandler(commandHandler);
+            if (table == handlerTable)
+                return false;
+
+            handlerTable = table;
+            return true;
         }
     }
 
@@ -377,33 +1343,138 @@ public class CommandServer
      */
     public void removeAllCommandHandlers()
     {
-        synchronized (commandHandlerSetLock) {
-            log_v("Removing all handlers from the server.");
-            commandHandlerSet.clear();
+        synchronized (handlerTableLock) {
+            AsyncLog.v(this.TAG, "Removing all handlers from the server.");
+            handlerTable = HandlerTable.EMPTY;
         }
     }
 
 
+    /**
+     * Handles command that arrived on a channel of multiplexed connection of another server.
+     *
+     * @param session the channel session the command arrived on.
+     * @param command the command that was received.
+     */
+    void onCommand(@NonNull Session session, @NonNull CommandLine command) {
+        this.commandDistribute.onCommand(session, command);
+    }
+
+
     /**
      * Proxy handler, to call all the registered handlers with pointer
-     * to the server which the call was made from.
+     * to the session which the call was made from.
      */
     private final CommandServerReaderHandler commandDistribute
             = new CommandServerReaderHandler() {
         @Override
-        public void onCommand(@NonNull String command)
+        public void onCommand(@NonNull Session session, @NonNull CommandLine command)
         {
-            log_v("New command received: " + command);
+            // The command is a view of the read buffer, copy it only if it is going to be logged
+            if (AsyncLog.VERBOSE && TAG != null && AsyncLog.isLoggable(Log.VERBOSE))
+                AsyncLog.v(TAG, "New command received: {}", command.toString());
+
+            final ServerMetrics metrics = CommandServer.this.metrics;
+            if (metrics != null)
+                metrics.commands.increment();
+
+            // Session resumption and heartbeat are handled by the server itself
+            if (command.getTokenCount() > 0 && onServerCommand(session, command))
+                return;
+
+            // Single lookup by the command verb
+            final CommandHandler[] handlers = handlerTable.route(command);
+            if (handlers.length == 0)
+                return;
+
+            // Sampled commands are traced from the read of their connection,
+            // the command word is copied only for them
+            Tracer tracer = Tracer.getInstance();
+            final Trace trace = command.getTokenCount() > 0 && tracer.sampleNext()
+                    ? tracer.start(command.getToken(0), session.getSessionId()) : null;
+
+            if (trace != null) {
+                trace.stamp(TraceStage.READ, session.getReadTime());
+                trace.stamp(TraceStage.PARSED);
+            }
 
-            // Get the list of the handlers, to not stuck on the lock.
-            CommandHandler[] handlers = new CommandHandler[0];
-            synchronized (commandHandlerSetLock) {
-                handlers = commandHandlerSet.toArray(handlers);
+            CommandDispatcher dispatcher = commandDispatcher;
+
+            // Without executor, handle the command right here
+            if (dispatcher == null) {
+                callHandlers(handlers, session, command, metrics, trace);
+                return;
             }
 
+            // The line is reused by the reader, so the dispatched command is a copy.
+            Object key = dispatcher.getOrderingKey(session, command);
+            final CommandLine commandCopy = new CommandLine(command);
+            final long dispatched_ns = metrics != null ? System.nanoTime() : 0;
+
+            dispatcher.dispatch(key, new Runnable() {
+                @Override
+                public void run() {
+                    if (metrics != null)
+                        metrics.dispatchWait_us.recordSince(dispatched_ns);
+
+                    // No one to answer
+                    if (session.isClosed())
+                        return;
+
+                    callHandlers(handlers, session, commandCopy, metrics, trace);
+                }
+            });
+        }
+    };
+
+
+    /**
+     * Calls the command handlers with the command.
+     *
+     * @param handlers the handlers the command was routed to.
+     * @param session the session the command arrived on.
+     * @param command the command that was received.
+     * @param metrics the metrics to record the handling time to, or null.
+     * @param trace the trace of the command, current while the handlers run, or null.
+     */
+    private static void callHandlers(
+            @NonNull CommandHandler[] handlers,
+            @NonNull Session session,
+            @NonNull CommandLine command,
+            @Nullable ServerMetrics metrics,
+            @Nullable Trace trace)
+    {
+        long start_ns = metrics != null ? System.nanoTime() : 0;
+
+        Tracer.Scope scope = Tracer.resume(trace, TraceStage.DISPATCHED);
+        try
+        {
             // Iterate over the handlers
             for (CommandHandler handler : handlers)
-                handler.onCommand(CommandServer.this, command);
+                handler.onCommand(session, command);
+        }
+        finally {
+            scope.close();
+        }
+
+        if (trace != null)
+            trace.stamp(TraceStage.HANDLED);
+
+        if (metrics != null)
+            metrics.handlerTime_us.recordSince(start_ns);
+    }
+
+
+    // The commands of session resumption and heartbeat, see setSessionResumption() and setHeartbeat()
+    private static final String COMMAND_SESSION = "SESSION";
+    private static final String COMMAND_HEARTBEAT = "HEARTBEAT";
+
+    // Default ordering, the commands of each session are handled in order
+    private static final CommandOrdering SESSION_ORDERING = new CommandOrdering() {
+        @Nullable
+        @Override
+        public Object getOrderingKey(@NonNull Session session, @NonNull CommandLine command) {
+            return session;
         }
     };
 }
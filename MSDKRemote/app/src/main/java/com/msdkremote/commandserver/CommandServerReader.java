@@ -4,174 +4,362 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import java.io.BufferedReader;
+import com.msdkremote.logging.AsyncLog;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 class CommandServerReader
 {
+    // Size of the buffer each read from the socket is made into
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    // Longest command accepted, longer lines are discarded to protect the heap
+    private static final int MAX_COMMAND_LENGTH = 64 * 1024;
+
+    // Initial size of the current line bytes, it grows on demand
+    private static final int INITIAL_LINE_SIZE = 256;
+
     // Tag for logcat
     private final String TAG;
 
-    // The output stream to write the messages on
-    private final InputStream inputStream;
-    private boolean isClosed = false;
+    // The channel to read the commands from
+    private final SocketChannel socketChannel;
 
-    // The command handler - the method called on new command.
+    // The session this reader belongs to, and the method called on its new commands.
+    // The session is replaced when a detached session resumes on this connection.
+    private Session session;
     private final CommandServerReaderHandler commandHandler;
 
-    // Thread holder
-    private final Thread threadReader;
+    // Reusable buffers, one for the raw socket reads and one for the current line
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private byte[] lineBytes = new byte[INITIAL_LINE_SIZE];
+    private int lineLength = 0;
+
+    // The decoded line, handed to the command handler over and over
+    private final CommandLine commandLine = new CommandLine();
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Set when '\r' ended a line, so the following '\n' is not a new empty line
+    private boolean skipLineFeed = false;
+
+    // Set while discarding the remainder of an over-long line, or unwanted frame
+    private boolean discardLine = false;
+
+    // Only the first line may switch the connection to binary framing
+    private boolean firstLine = true;
+    private boolean binaryFraming = false;
+
+    // The header of the current frame, and the payload bytes still missing
+    private final byte[] frameHeader = new byte[BinaryFraming.HEADER_SIZE];
+    private int frameHeaderLength = 0;
+    private long frameRemaining = 0;
+
+    // The type and channel of the current frame, the command channel for lines
+    private int frameType = BinaryFraming.TYPE_TEXT;
+    private int frameChannel = BinaryFraming.COMMAND_CHANNEL;
 
 
     /**
-     * CommandServerThreadReader is a thread dedicated to inputStream of a socket,
-     * or more specifically to handle the messages sent to this server.
+     * CommandServerReader is the reading half of a single connection on the server.
+     * It does not own a thread, instead {@link #read()} is called by the server
+     * event loop whenever the channel has data to offer.
      * This class is disposable, meaning that for new connection new class should be created.
      *
-     * @param inputStream the InputStream to read from.
+     * @param socketChannel the non-blocking channel to read from.
+     * @param session the session the commands arrive on.
      * @param commandHandler handle to process the incoming commands.
      */
     public CommandServerReader(
-            @NonNull InputStream inputStream,
+            @NonNull SocketChannel socketChannel,
+            @NonNull Session session,
             @NonNull CommandServerReaderHandler commandHandler)
     {
-        this.inputStream = inputStream;
+        this.socketChannel = socketChannel;
+        this.session = session;
         this.commandHandler = commandHandler;
         this.TAG = null;
-
-        // Start the thread
-        this.threadReader = new Thread(this::run);
-        this.threadReader.start();
     }
 
 
     /**
-     * CommandServerThreadReader is a thread dedicated to inputStream of a socket,
-     * or more specifically to handle the messages sent to this server.
+     * CommandServerReader is the reading half of a single connection on the server.
+     * It does not own a thread, instead {@link #read()} is called by the server
+     * event loop whenever the channel has data to offer.
      * This class is disposable, meaning that for new connection new class should be created.
      *
-     * @param inputStream the InputStream to read from.
+     * @param socketChannel the non-blocking channel to read from.
+     * @param session the session the commands arrive on.
      * @param commandHandler handle to process the incoming commands.
      * @param TAG customizable tag to use with logcat, mainly for debugging.
      */
     public CommandServerReader(
-            @NonNull InputStream inputStream,
+            @NonNull SocketChannel socketChannel,
+            @NonNull Session session,
             @NonNull CommandServerReaderHandler commandHandler,
             @NonNull String TAG)
     {
-        this.inputStream = inputStream;
+        this.socketChannel = socketChannel;
+        this.session = session;
         this.commandHandler = commandHandler;
         this.TAG = TAG;
+    }
+
 
-        // Start the thread
-        this.threadReader = new Thread(this::run);
-        this.threadReader.start();
+    /**
+     * Sets the session the following commands arrive on.
+     *
+     * @param session the session that took over this connection.
+     */
+    void setSession(@NonNull Session session) {
+        this.session = session;
     }
 
 
     /**
-     * Immediately stopping this thread from running.
-     * This method will return only when the thread is fully terminated,
-     * or interrupt was called on the caller thread.
+     * Reads whatever is available on the channel, and calls the command handler
+     * for every complete line. Partial lines are kept until the rest arrives.
+     * <p>
+     * Lines are terminated by '\n', '\r' or "\r\n", same as {@code BufferedReader.readLine()}.
+     * All the lines are decoded into the same {@link CommandLine}, so no objects
+     * are created per command.
+     * <p>
+     * After successful handshake, frames are read instead of lines, see {@link BinaryFraming}.
      *
-     * @throws InterruptedException if the calling thread was interrupted.
+     * @return false if the connection reached end of stream, true otherwise.
+     * @throws IOException if the read from the channel failed.
      */
-    public void stopServer() throws InterruptedException
+    public boolean read() throws IOException
     {
-        synchronized (this)
+        int count = this.socketChannel.read(this.readBuffer);
+
+        // End of stream - the client closed the connection.
+        if (count < 0)
+            return false;
+
+        byte[] bytes = this.readBuffer.array();
+        int end = this.readBuffer.position();
+        int i = 0;
+
+        while (i < end)
         {
-            // Check if this thread is running
-            if (!this.threadReader.isAlive()) return;
-
-            // Close the thread
-            this.threadReader.interrupt();
-            // The clean method should interrupt the thread if it is waiting for a message.
-            // This is the way that thread will be closed most of the times.
-            this.clean();
+            // Second half of "\r\n", the line was already handled
+            if (this.skipLineFeed) {
+                this.skipLineFeed = false;
+                if (bytes[i] == '\n') {
+                    i++;
+                    continue;
+                }
+            }
+
+            if (this.binaryFraming) {
+                i = this.readFrames(bytes, i, end);
+                continue;
+            }
+
+            // Find the end of the line in the bytes that were read
+            int start = i;
+            while (i < end && bytes[i] != '\r' && bytes[i] != '\n') i++;
+
+            this.appendLine(bytes, start, i - start);
+
+            if (i < end) {
+                this.skipLineFeed = (bytes[i] == '\r');
+                this.onLineEnd();
+                i++;
+            }
         }
 
-        // Return from this method only when the thread was fully terminated.
-        this.threadReader.join();
+        this.readBuffer.clear();
+        return true;
     }
 
 
     /**
-     * Waits for this thread to end.
+     * Reads frames, until the end of the read bytes.
      *
-     * @throws InterruptedException if the calling thread was interrupted.
+     * @param bytes array holding the bytes.
+     * @param offset index of the first byte.
+     * @param end index after the last byte.
+     * @return index after the last byte that was consumed.
      */
-    public void joinServer() throws InterruptedException {
-        this.threadReader.join();
+    private int readFrames(byte[] bytes, int offset, int end)
+    {
+        int i = offset;
+
+        while (i < end)
+        {
+            // Collect the header, it may be split between reads
+            if (this.frameHeaderLength < BinaryFraming.HEADER_SIZE)
+            {
+                int count = Math.min(BinaryFraming.HEADER_SIZE - this.frameHeaderLength, end - i);
+                System.arraycopy(bytes, i, this.frameHeader, this.frameHeaderLength, count);
+                this.frameHeaderLength += count;
+                i += count;
+
+                if (this.frameHeaderLength == BinaryFraming.HEADER_SIZE)
+                    this.onFrameHeader();
+
+                continue;
+            }
+
+            int count = (int) Math.min(this.frameRemaining, end - i);
+            this.appendLine(bytes, i, count);
+            this.frameRemaining -= count;
+            i += count;
+
+            if (this.frameRemaining == 0)
+                this.onFrameEnd();
+        }
+
+        return i;
     }
 
 
     /**
-     * The core of this class. Dictates the behavior of the thread.
+     * Called whenever complete frame header was read.
+     * Decides whether the payload is kept or discarded.
      */
-    private void run()
+    private void onFrameHeader()
     {
-        try {
-            // Wrap by writer, to make string reading by line easier.
-            BufferedReader reader = new BufferedReader(new InputStreamReader(this.inputStream));
+        int type = this.frameHeader[0];
+        int channel = BinaryFraming.getChannel(this.frameHeader);
+        this.frameRemaining = BinaryFraming.getLength(this.frameHeader);
+        this.frameType = type;
+        this.frameChannel = channel;
 
-            String command = null;
+        // Commands arrive on the command channel, and on the channels of multiplexing server
+        boolean knownChannel = channel == BinaryFraming.COMMAND_CHANNEL || this.session.hasChannel(channel);
 
-            // readLine() will return null if the stream is closed.
-            // Reading from the stream while it is opened
-            while ((command = reader.readLine()) != null)
-            {
-                if (this.TAG != null)
-                    Log.v(this.TAG, "Received command : " + command);
+        // Heartbeat, on the command channel only
+        boolean heartbeat = (type == BinaryFraming.TYPE_PING || type == BinaryFraming.TYPE_PONG)
+                && channel == BinaryFraming.COMMAND_CHANNEL
+                && this.frameRemaining == BinaryFraming.PING_SIZE;
 
-                // Handle the command
-                this.commandHandler.onCommand(command);
+        if (heartbeat)
+            return;
 
-                // Close the thread if it is terminated
-                if (this.threadReader.isInterrupted())
-                    break;
-            }
+        if (type != BinaryFraming.TYPE_TEXT || !knownChannel) {
+            AsyncLog.w(this.TAG, "Unsupported frame type {} on channel {}, discarding.", type, channel);
+
+            this.discardLine = true;
+        }
+        else if (this.frameRemaining > MAX_COMMAND_LENGTH) {
+            AsyncLog.w(this.TAG, "Command exceeded {} bytes, discarding.", MAX_COMMAND_LENGTH);
+
+            this.discardLine = true;
         }
-        // This is must by the outputStream specification,
-        // May be called due to internal error, or by closing the thread mid-reading.
-        catch (IOException e) {
-            if (this.TAG != null) {
-                Log.v(this.TAG, "IOException occurred. (connection closed ?)", e);
+
+        // Empty payload, nothing else to wait for
+        if (this.frameRemaining == 0)
+            this.onFrameEnd();
+    }
+
+
+    /**
+     * Called whenever the payload of a frame was fully read.
+     */
+    private void onFrameEnd()
+    {
+        this.frameHeaderLength = 0;
+
+        if (this.frameType == BinaryFraming.TYPE_PING || this.frameType == BinaryFraming.TYPE_PONG)
+        {
+            // Ping of unexpected size, already discarded
+            if (this.discardLine) {
+                this.discardLine = false;
+                return;
             }
+
+            long timestamp = BinaryFraming.getTimestamp(this.lineBytes);
+            this.lineLength = 0;
+
+            if (this.frameType == BinaryFraming.TYPE_PING)
+                this.session.onPing(timestamp);
+            else
+                this.session.onPong(timestamp);
+
+            return;
         }
 
-        if (this.TAG != null) {
-            Log.v(this.TAG, "Closing the reader thread.");
+        this.onLineEnd();
+    }
+
+
+    /**
+     * Appends bytes to the current line, or discards them if the line is too long.
+     *
+     * @param bytes array holding the bytes.
+     * @param offset index of the first byte.
+     * @param count number of bytes to append.
+     */
+    private void appendLine(byte[] bytes, int offset, int count)
+    {
+        if (this.discardLine || count == 0)
+            return;
+
+        // Protect from clients that never end their lines
+        if (this.lineLength + count > MAX_COMMAND_LENGTH) {
+            AsyncLog.w(this.TAG, "Command exceeded {} bytes, discarding.", MAX_COMMAND_LENGTH);
+
+            this.lineLength = 0;
+            this.discardLine = true;
+            return;
         }
 
-        // Clean the thread
-        this.clean();
+        if (this.lineLength + count > this.lineBytes.length)
+            this.lineBytes = Arrays.copyOf(this.lineBytes,
+                    Math.max(this.lineLength + count, this.lineBytes.length * 2));
+
+        System.arraycopy(bytes, offset, this.lineBytes, this.lineLength, count);
+        this.lineLength += count;
     }
 
 
     /**
-     * This method will clean up the resources of this class.
+     * Called whenever a line terminator, or the end of frame, was read.
+     * Hands the accumulated line to the command handler.
      */
-    private synchronized void clean()
+    private void onLineEnd()
     {
-        try {
-            // Close only if wasn't closed
-            if (!this.isClosed) {
-                this.isClosed = true;
-                this.inputStream.close();
-
-                if (this.TAG != null) {
-                    Log.v(this.TAG, "InputStream was closed.");
-                }
-            }
+        // The over-long line ends here, the next one is valid again
+        if (this.discardLine) {
+            this.discardLine = false;
+            return;
         }
-        // This is must by the outputStream specification,
-        // May be called due to internal error, or by closing the output stream twice.
-        catch (IOException e) {
-            if (this.TAG != null) {
-                Log.w(this.TAG, "IOException occurred while closing. (connection closed twice ?)", e);
+
+        this.commandLine.decode(this.lineBytes, this.lineLength, this.decoder);
+        this.lineLength = 0;
+
+        // The client may ask for binary framing before anything else
+        if (this.firstLine) {
+            this.firstLine = false;
+
+            if (!this.binaryFraming && BinaryFraming.isHandshake(this.commandLine)
+                    && this.session.requestBinaryFraming()) {
+                this.binaryFraming = true;
+                return;
             }
         }
+
+        // The command line is a view of the read buffer, copy it only if it is going to be logged
+        if (AsyncLog.VERBOSE && this.TAG != null && AsyncLog.isLoggable(Log.VERBOSE))
+            AsyncLog.v(this.TAG, "Received command : {}", this.commandLine.toString());
+
+        // Command of another channel, the session routes it to the channel
+        if (this.frameChannel != BinaryFraming.COMMAND_CHANNEL) {
+            this.session.onChannelCommand(this.frameChannel, this.commandLine);
+            return;
+        }
+
+        // Handle the command
+        this.commandHandler.onCommand(this.session, this.commandLine);
     }
 }
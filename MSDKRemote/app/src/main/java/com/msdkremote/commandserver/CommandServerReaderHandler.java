@@ -6,15 +6,16 @@ import androidx.annotation.NonNull;
  * Interface to dictate to be called on new command.
  * The difference between the other command handler,
  * is that this is made to use internally by the server,
- * and will call from here the other method with a pointer
- * to the server, to send responds on the same time.
+ * and will call from here the other method with the session
+ * the command arrived on, to send responds on the same time.
  */
 interface CommandServerReaderHandler
 {
     /**
      * Handler to manage a new command.
      *
-     * @param command string representation of a command.
+     * @param session the session the command arrived on.
+     * @param command the received line, valid only until this method returns.
      */
-    public void onCommand(@NonNull String command);
+    public void onCommand(@NonNull Session session, @NonNull CommandLine command);
 }
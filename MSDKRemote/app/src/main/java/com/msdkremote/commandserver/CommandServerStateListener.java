@@ -1,5 +1,7 @@
 package com.msdkremote.commandserver;
 
+import androidx.annotation.NonNull;
+
 import java.net.InetAddress;
 
 /**
@@ -35,4 +37,14 @@ public interface CommandServerStateListener
      * Called when the client disconnected.
      */
     public void onClientDisconnected();
+
+    /**
+     * Called whenever the heartbeat measured the round trip time of a client,
+     * see {@link CommandServer#setHeartbeat(long, int)}.
+     * Called on the server thread, so it should be fast.
+     *
+     * @param session the session that was measured.
+     * @param rtt_us the round trip time in microseconds.
+     */
+    public default void onRoundTripTime(@NonNull Session session, long rtt_us) { }
 }
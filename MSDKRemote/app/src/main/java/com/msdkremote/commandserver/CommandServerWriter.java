@@ -1,181 +1,377 @@
 package com.msdkremote.commandserver;
 
-import android.util.Log;
-
+import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 
+import com.msdkremote.logging.AsyncLog;
+
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
 
 class CommandServerWriter
 {
+    // The smallest batch, fits any encoded character, the line terminator and frame header
+    static final int MIN_BATCH_SIZE = 64;
+
+    // Message terminator, the protocol is 'TELNET' like
+    private static final byte[] LINE_END = { '\r', '\n' };
+
     // Tag for logcat
     private final String TAG;
 
-    // The output stream to write the messages on
-    private final OutputStream outputStream;
-    private boolean isClosed = false;
+    // The channel to write the messages on
+    private final SocketChannel socketChannel;
+
+    // Encoded bytes of the current batch, always kept in 'write' mode.
+    // Allocated once, the channel writes from direct buffer without copying it.
+    private final ByteBuffer batchBuffer;
+
+    // Encodes the messages straight into the batch buffer
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Whether messages are sent as frames, instead of lines
+    private boolean binaryFraming = false;
 
-    // The message queue - place to take the messages from
-    private final MessageQueue messageQueue;
+    // Message that did not fit in the batch yet, whether its frame header is still missing,
+    // and whether its line terminator is still missing
+    private CharBuffer pendingChars = null;
+    private int pendingHeaderLength = -1;
+    private boolean lineEndPending = false;
 
-    // Thread holder
-    private final Thread threadWriter;
+    // The rest of the frame header, valid while its length is pending
+    private int pendingHeaderType = BinaryFraming.TYPE_TEXT;
+    private int pendingHeaderFlags = 0;
+    private int pendingHeaderChannel = BinaryFraming.COMMAND_CHANNEL;
+
+    // Binary payload that did not fit in the batch yet
+    private ByteBuffer pendingData = null;
+
+    // When the oldest byte of the batch was added, by System.nanoTime()
+    private long batchStartTime_ns = 0;
 
 
     /**
-     * CommandServerThreadWriter is a thread dedicated to the outputStream of a socket,
-     * or more specifically to connection on the server.
+     * CommandServerWriter is the writing half of a single connection on the server.
+     * It does not own a thread, messages are gathered by the server event loop into a batch,
+     * and {@link #flush()} writes the whole batch to the channel at once.
      * The class is disposable, meaning that for new connection new class should be created.
      *
-     * @param outputStream the OutputStream to write into.
-     * @param messageQueue queue for the messages needed to deliver.
+     * @param socketChannel the non-blocking channel to write into.
+     * @param batchSize the maximum number of bytes to write at once.
      */
     public CommandServerWriter(
-            @NonNull OutputStream outputStream,
-            @NonNull MessageQueue messageQueue)
+            @NonNull SocketChannel socketChannel,
+            @IntRange(from = MIN_BATCH_SIZE) int batchSize)
     {
-        this.outputStream = outputStream;
-        this.messageQueue = messageQueue;
+        this.socketChannel = socketChannel;
+        this.batchBuffer = ByteBuffer.allocateDirect(Math.max(batchSize, MIN_BATCH_SIZE));
         this.TAG = null;
-
-        // Start the thread
-        this.threadWriter = new Thread(this::run);
-        this.threadWriter.start();
     }
 
 
     /**
-     * CommandServerThreadWriter is a thread dedicated to the outputStream of a socket,
-     * or more specifically to connection on the server.
+     * CommandServerWriter is the writing half of a single connection on the server.
+     * It does not own a thread, messages are gathered by the server event loop into a batch,
+     * and {@link #flush()} writes the whole batch to the channel at once.
      * The class is disposable, meaning that for new connection new class should be created.
      *
-     * @param outputStream the OutputStream to write into.
-     * @param messageQueue queue for the messages needed to deliver.
+     * @param socketChannel the non-blocking channel to write into.
+     * @param batchSize the maximum number of bytes to write at once.
      * @param TAG customizable tag to use with logcat, mainly for debugging.
      */
     public CommandServerWriter(
-            @NonNull OutputStream outputStream,
-            @NonNull MessageQueue messageQueue,
+            @NonNull SocketChannel socketChannel,
+            @IntRange(from = MIN_BATCH_SIZE) int batchSize,
             @NonNull String TAG)
     {
-        this.outputStream = outputStream;
-        this.messageQueue = messageQueue;
+        this.socketChannel = socketChannel;
+        this.batchBuffer = ByteBuffer.allocateDirect(Math.max(batchSize, MIN_BATCH_SIZE));
         this.TAG = TAG;
+    }
+
+
+    /**
+     * Sets how the following messages are sent.
+     * Messages that were already added are sent the way they were added.
+     *
+     * @param binaryFraming true to send frames, see {@link BinaryFraming}, false to send lines.
+     */
+    public void setBinaryFraming(boolean binaryFraming) {
+        this.binaryFraming = binaryFraming;
+    }
 
-        // Start the thread
-        this.threadWriter = new Thread(this::run);
-        this.threadWriter.start();
+
+    /**
+     * Checks if the batch can take another message.
+     * It can, as long as the previous message was fully encoded, and the batch is not full.
+     *
+     * @return true if {@link #addMessage(String)} may be called.
+     */
+    public boolean hasRoom() {
+        return this.pendingChars == null && this.pendingData == null && this.pendingHeaderLength < 0
+                && !this.lineEndPending && this.batchBuffer.hasRemaining();
     }
 
 
     /**
-     * Immediately stopping this thread from running.
-     * This method will return only when the thread is fully terminated,
-     * or interrupt was called on the caller thread.
+     * Appends message to the current batch.
+     * Message too long for the batch is completed by the following flushes.
+     * Nothing is written to the channel until {@link #flush()} is called.
      *
-     * @throws InterruptedException if the calling thread was interrupted.
+     * @param message the message to send.
+     * @throws IllegalStateException if the batch has no room, see {@link #hasRoom()}.
      */
-    public void stopServer() throws InterruptedException
+    public void addMessage(@NonNull String message) {
+        addMessage(message, BinaryFraming.COMMAND_CHANNEL);
+    }
+
+
+    /**
+     * Appends message of specific channel to the current batch.
+     * Message too long for the batch is completed by the following flushes.
+     * Nothing is written to the channel until {@link #flush()} is called.
+     *
+     * @param message the message to send.
+     * @param channel the channel of the message, see {@link BinaryFraming}.
+     * @throws IllegalStateException if the batch has no room, see {@link #hasRoom()},
+     *                               or channel other than the command channel is used without frames.
+     */
+    public void addMessage(@NonNull String message, int channel)
     {
-        synchronized (this)
-        {
-            // Check if this thread is running
-            if (!this.threadWriter.isAlive()) return;
+        if (!hasRoom())
+            throw new IllegalStateException("The batch has no room for another message.");
+
+        if (!this.binaryFraming && channel != BinaryFraming.COMMAND_CHANNEL)
+            throw new IllegalStateException("Channels are available only with binary framing.");
+
+        AsyncLog.v(this.TAG, "Sending message : {}", message);
+
+        if (this.batchBuffer.position() == 0)
+            this.batchStartTime_ns = System.nanoTime();
+
+        // Frame header needs the length up front, the line terminator is added after
+        if (this.binaryFraming)
+            setPendingHeader(BinaryFraming.TYPE_TEXT, 0, channel, BinaryFraming.utf8Length(message));
+        else
+            this.lineEndPending = true;
+
+        this.pendingChars = CharBuffer.wrap(message);
+        encodePending();
+    }
+
+
+    /**
+     * Appends ping or pong frame to the current batch.
+     *
+     * @param type {@link BinaryFraming#TYPE_PING} or {@link BinaryFraming#TYPE_PONG}.
+     * @param timestamp the payload of the frame.
+     * @throws IllegalStateException if the batch has no room, see {@link #hasRoom()},
+     *                               or the connection does not use binary framing.
+     */
+    public void addPing(int type, long timestamp)
+    {
+        byte[] payload = new byte[BinaryFraming.PING_SIZE];
+        for (int i = payload.length - 1; i >= 0; i--, timestamp >>>= 8)
+            payload[i] = (byte) timestamp;
+
+        addFrame(type, 0, BinaryFraming.COMMAND_CHANNEL, ByteBuffer.wrap(payload));
+    }
+
+
+    /**
+     * Appends binary frame to the current batch.
+     * The bytes are not copied, they must not change until the frame is written.
+     * Payload too long for the batch is completed by the following flushes.
+     *
+     * @param channel the channel of the frame.
+     * @param flags the frame flags, see {@link BinaryFraming#FLAG_MORE}.
+     * @param data array holding the payload.
+     * @param offset index of the first payload byte.
+     * @param length the number of payload bytes.
+     * @throws IllegalStateException if the batch has no room, see {@link #hasRoom()},
+     *                               or the connection does not use binary framing.
+     */
+    public void addData(int channel, int flags, @NonNull byte[] data, int offset, int length) {
+        addFrame(BinaryFraming.TYPE_BINARY, flags, channel, ByteBuffer.wrap(data, offset, length));
+    }
+
+
+    /**
+     * Appends binary frame to the current batch, its payload is the remaining bytes of the buffer.
+     * The buffer is consumed as the payload is written, and its bytes are not copied,
+     * so neither may change until the frame is written.
+     * Payload too long for the batch is completed by the following flushes.
+     *
+     * @param channel the channel of the frame.
+     * @param flags the frame flags, see {@link BinaryFraming#FLAG_MORE}.
+     * @param data the payload.
+     * @throws IllegalStateException if the batch has no room, see {@link #hasRoom()},
+     *                               or the connection does not use binary framing.
+     */
+    public void addData(int channel, int flags, @NonNull ByteBuffer data) {
+        addFrame(BinaryFraming.TYPE_BINARY, flags, channel, data);
+    }
+
+
+    private void addFrame(int type, int flags, int channel, @NonNull ByteBuffer data)
+    {
+        if (!hasRoom())
+            throw new IllegalStateException("The batch has no room for another message.");
+
+        if (!this.binaryFraming)
+            throw new IllegalStateException("Binary data is available only with binary framing.");
+
+        if (this.batchBuffer.position() == 0)
+            this.batchStartTime_ns = System.nanoTime();
+
+        setPendingHeader(type, flags, channel, data.remaining());
+        this.pendingData = data;
+        encodePending();
+    }
+
+
+    /**
+     * Gets the number of encoded bytes that were not yet accepted by the channel.
+     *
+     * @return the number of pending bytes.
+     */
+    public int getPendingSize() {
+        return this.batchBuffer.position();
+    }
 
-            // Close the thread
-            this.threadWriter.interrupt();
-            // The clean method should interrupt the thread in the spacial case that it is mid writing.
-            this.clean();
-        }
 
-        // Return from this method only when the thread was fully terminated.
-        this.threadWriter.join();
+    /**
+     * Checks if there is anything that was not yet accepted by the channel.
+     *
+     * @return true if there are pending bytes or characters.
+     */
+    public boolean hasPending() {
+        return this.batchBuffer.position() > 0 || this.pendingChars != null || this.pendingData != null
+                || this.pendingHeaderLength >= 0 || this.lineEndPending;
     }
 
 
     /**
-     * Waits for this thread to end.
+     * Gets the time the oldest pending byte was added to the batch.
      *
-     * @throws InterruptedException if the calling thread was interrupted.
+     * @return the time, by {@link System#nanoTime()}.
      */
-    public void joinServer() throws InterruptedException {
-        this.threadWriter.join();
+    public long getBatchStartTime() {
+        return this.batchStartTime_ns;
     }
 
 
     /**
-     * The core of this class. Dictates the behavior of the thread.
+     * Writes the batch to the channel, as much as the channel accepts without blocking.
+     * Normally this is a single write, more are made only to complete message
+     * that is longer than the batch.
+     *
+     * @return true if everything pending was written.
+     * @throws IOException if the write to the channel failed.
      */
-    private void run()
+    public boolean flush() throws IOException
     {
-        try {
-            // Wrap by writer, to make string sending easier.
-            Writer writer = new OutputStreamWriter(this.outputStream);
-
-            // The server should run until it is interrupted.
-            while (!Thread.currentThread().isInterrupted())
-            {
-                // Get message from the queue, to send.
-                // Note this is blocking until there is new message,
-                // or throw InterruptedException if this thread is interrupted.
-                String message = messageQueue.getMessage(0);
-
-                if (this.TAG != null) {
-                    Log.v(this.TAG, "Sending message : " + message);
-                }
-
-                // Writing the message
-                writer.write(message);
-                writer.write("\r\n");
-                writer.flush();
+        while (true)
+        {
+            encodePending();
+
+            if (this.batchBuffer.position() == 0)
+                return !hasPending();
+
+            this.batchBuffer.flip();
+
+            try {
+                this.socketChannel.write(this.batchBuffer);
             }
-        }
-        // This is must by the outputStream specification,
-        // May be called due to internal error, or by closing the thread mid-writing.
-        catch (IOException e) {
-            if (this.TAG != null) {
-                Log.v(this.TAG, "IOException occurred while writing. (connection closed ?)", e);
+            finally {
+                // Move the leftovers to the start, and go back to 'write' mode
+                this.batchBuffer.compact();
             }
-        }
-        // Will be called when the server is closing
-        catch (InterruptedException ignored) {
-            // No need to re-enable the flag, as at this point the method is closing
-        }
 
-        if (this.TAG != null) {
-            Log.v(this.TAG, "Closing the writer thread.");
+            // The channel is full, the rest waits for the next flush
+            if (this.batchBuffer.position() > 0)
+                return false;
+
+            if (!hasPending())
+                return true;
+
+            // Continue with the rest of long message
+            this.batchStartTime_ns = System.nanoTime();
         }
+    }
+
 
-        // Clean the thread
-        this.clean();
+    /**
+     * Sets the frame header to write before the pending payload.
+     *
+     * @param type the frame type.
+     * @param flags the frame flags.
+     * @param channel the channel of the frame.
+     * @param length the number of payload bytes.
+     */
+    private void setPendingHeader(int type, int flags, int channel, int length)
+    {
+        this.pendingHeaderType = type;
+        this.pendingHeaderFlags = flags;
+        this.pendingHeaderChannel = channel;
+        this.pendingHeaderLength = length;
     }
 
 
     /**
-     * This method will clean up the resources of this class.
+     * Encodes as much of the pending message as fits in the batch buffer.
      */
-    private synchronized void clean()
+    private void encodePending()
     {
-        try {
-            // Close only if wasn't closed
-            if (!this.isClosed) {
-                this.isClosed = true;
-                this.outputStream.close();
-
-                if (this.TAG != null) {
-                    Log.v(this.TAG, "OutputStream was closed");
-                }
-            }
+        if (this.pendingHeaderLength >= 0)
+        {
+            if (this.batchBuffer.remaining() < BinaryFraming.HEADER_SIZE)
+                return;
+
+            BinaryFraming.putHeader(this.batchBuffer, this.pendingHeaderType,
+                    this.pendingHeaderFlags, this.pendingHeaderChannel, this.pendingHeaderLength);
+            this.pendingHeaderLength = -1;
         }
-        // This is must by the outputStream specification,
-        // May be called due to internal error, or by closing the output stream twice.
-        catch (IOException e) {
-            if (this.TAG != null) {
-                Log.v(this.TAG, "IOException occurred while closing. (connection closed twice ?)", e);
-            }
+
+        if (this.pendingData != null)
+        {
+            // Copy only what fits, the rest waits for the next flush
+            int count = Math.min(this.pendingData.remaining(), this.batchBuffer.remaining());
+            int limit = this.pendingData.limit();
+
+            this.pendingData.limit(this.pendingData.position() + count);
+            this.batchBuffer.put(this.pendingData);
+            this.pendingData.limit(limit);
+
+            if (this.pendingData.hasRemaining())
+                return;
+
+            this.pendingData = null;
+        }
+
+        if (this.pendingChars != null)
+        {
+            CoderResult result = this.encoder.encode(this.pendingChars, this.batchBuffer, true);
+            if (result.isOverflow())
+                return;
+
+            // UTF-8 keeps no state, flush and reset only prepare for the next message
+            this.encoder.flush(this.batchBuffer);
+            this.encoder.reset();
+            this.pendingChars = null;
+        }
+
+        if (this.lineEndPending && this.batchBuffer.remaining() >= LINE_END.length) {
+            this.batchBuffer.put(LINE_END);
+            this.lineEndPending = false;
         }
     }
 }
@@ -0,0 +1,36 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Source of binary data for a channel of multiplexed connections,
+ * see {@link CommandServer#setChannel(int, DataChannelSource)}.
+ */
+public interface DataChannelSource
+{
+    /**
+     * Called when a client opens the channel, by sending {@code OPEN} on it.
+     * <p>
+     * Note on implementation, this method is called on the thread that handle
+     * the communication of all the clients, so it should be fast.
+     *
+     * @param session the session of the channel, call {@link Session#requestFlush()} on it
+     *                whenever the stream has new data.
+     * @return the stream of the data sent to this client.
+     */
+    @NonNull
+    public DataChannelStream openStream(@NonNull Session session);
+
+    /**
+     * Called when a client opens the channel with arguments, e.g. {@code OPEN LIVE}.
+     * By default the arguments are ignored.
+     *
+     * @param session the session of the channel, see {@link #openStream(Session)}.
+     * @param command the command that opened the channel, its first token is {@code OPEN}.
+     * @return the stream of the data sent to this client.
+     */
+    @NonNull
+    public default DataChannelStream openStream(@NonNull Session session, @NonNull CommandLine command) {
+        return openStream(session);
+    }
+}
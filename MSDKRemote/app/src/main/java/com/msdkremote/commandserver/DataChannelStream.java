@@ -0,0 +1,40 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary data sent to a single client on a channel of multiplexed connection.
+ * <p>
+ * The server pulls the data only when the connection has room for it, so client
+ * that can not keep up is never handed more than it reads, and it is up to the
+ * stream to decide what to drop meanwhile.
+ * All the methods are called on the thread that handle the communication of all
+ * the clients, they must not block.
+ */
+public interface DataChannelStream
+{
+    /**
+     * Takes the next message of the stream, the remaining bytes of the buffer.
+     * The message is sent as a whole, split to frames if it is long,
+     * and must not be modified until {@link #onSent()} is called.
+     *
+     * @return the next message, or null if there is nothing to send at the moment.
+     */
+    @Nullable
+    public ByteBuffer poll();
+
+    /**
+     * Called once the message of the last {@link #poll()} was copied to the connection,
+     * or dropped with the channel, so the stream may reuse its memory.
+     * Always called before the next poll, and may be called after {@link #close()}.
+     */
+    public default void onSent() { }
+
+    /**
+     * Called once the channel is closed, by the client or with its connection.
+     * Nothing is polled from the stream afterwards.
+     */
+    public void close();
+}
@@ -0,0 +1,175 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable routing table from command verbs to command handlers.
+ * <p>
+ * Command is routed by its first word, ignoring case, to the handlers registered
+ * for that verb. Commands that no handler registered for are routed to the
+ * default handlers. Routing is a single hash lookup, made in place on the
+ * {@link CommandLine}, and returns shared array, so it creates no objects.
+ * <p>
+ * The table is never changed, adding or removing handler creates new table,
+ * so it can be read by the server thread without any lock.
+ */
+final class HandlerTable
+{
+    // Table without handlers at all
+    static final HandlerTable EMPTY = new HandlerTable(
+            new CommandHandler[0], new LinkedHashMap<String, CommandHandler[]>());
+
+    // Handlers of the commands that have no handlers of their own
+    private final CommandHandler[] defaultHandlers;
+
+    // Handlers by upper case verb, kept to build the next table from
+    private final Map<String, CommandHandler[]> verbHandlers;
+
+    // Open addressing hash index, every slot holds index into the arrays plus one, or zero
+    private final String[] verbs;
+    private final CommandHandler[][] handlers;
+    private final int[] slots;
+
+
+    private HandlerTable(
+            @NonNull CommandHandler[] defaultHandlers,
+            @NonNull Map<String, CommandHandler[]> verbHandlers)
+    {
+        this.defaultHandlers = defaultHandlers;
+        this.verbHandlers = verbHandlers;
+
+        this.verbs = verbHandlers.keySet().toArray(new String[0]);
+        this.handlers = verbHandlers.values().toArray(new CommandHandler[0][]);
+
+        // At most half full, so probing stays short
+        int size = Integer.highestOneBit(Math.max(this.verbs.length, 1) * 2) << 1;
+        this.slots = new int[size];
+
+        for (int i = 0; i < this.verbs.length; i++)
+        {
+            int slot = CommandLine.hashIgnoreCase(this.verbs[i]) & (size - 1);
+            while (this.slots[slot] != 0)
+                slot = (slot + 1) & (size - 1);
+
+            this.slots[slot] = i + 1;
+        }
+    }
+
+
+    /**
+     * Gets the handlers of a command.
+     *
+     * @param command the command to route.
+     * @return the handlers of the command verb, or the default handlers. Must not be modified.
+     */
+    @NonNull
+    CommandHandler[] route(@NonNull CommandLine command)
+    {
+        if (this.verbs.length == 0 || command.getTokenCount() == 0)
+            return this.defaultHandlers;
+
+        int mask = this.slots.length - 1;
+        int slot = command.tokenHashIgnoreCase(0) & mask;
+
+        for (int index; (index = this.slots[slot]) != 0; slot = (slot + 1) & mask)
+            if (command.tokenEqualsIgnoreCase(0, this.verbs[index - 1]))
+                return this.handlers[index - 1];
+
+        return this.defaultHandlers;
+    }
+
+
+    /**
+     * Creates new table with additional handler.
+     *
+     * @param verb the verb to route to the handler, or null to make it default handler.
+     * @param handler the handler to add.
+     * @return new table, or this table if the handler is already registered so.
+     */
+    @NonNull
+    HandlerTable withHandler(@Nullable String verb, @NonNull CommandHandler handler)
+    {
+        if (verb == null) {
+            if (contains(this.defaultHandlers, handler))
+                return this;
+
+            return new HandlerTable(append(this.defaultHandlers, handler), this.verbHandlers);
+        }
+
+        String key = verb.toUpperCase(Locale.ROOT);
+        CommandHandler[] current = this.verbHandlers.get(key);
+
+        if (current != null && contains(current, handler))
+            return this;
+
+        Map<String, CommandHandler[]> verbHandlers = new LinkedHashMap<>(this.verbHandlers);
+        verbHandlers.put(key, current == null ? new CommandHandler[] { handler } : append(current, handler));
+
+        return new HandlerTable(this.defaultHandlers, verbHandlers);
+    }
+
+
+    /**
+     * Creates new table without a handler, in any of its verbs.
+     *
+     * @param handler the handler to remove.
+     * @return new table, or this table if the handler is not registered.
+     */
+    @NonNull
+    HandlerTable withoutHandler(@NonNull CommandHandler handler)
+    {
+        boolean found = contains(this.defaultHandlers, handler);
+
+        Map<String, CommandHandler[]> verbHandlers = new LinkedHashMap<>();
+        for (Map.Entry<String, CommandHandler[]> entry : this.verbHandlers.entrySet())
+        {
+            CommandHandler[] remaining = remove(entry.getValue(), handler);
+            found |= remaining.length != entry.getValue().length;
+
+            // Verb without handlers goes back to the default handlers
+            if (remaining.length > 0)
+                verbHandlers.put(entry.getKey(), remaining);
+        }
+
+        if (!found)
+            return this;
+
+        return new HandlerTable(remove(this.defaultHandlers, handler), verbHandlers);
+    }
+
+
+    /* --------------------------- Array Helpers --------------------------- */
+
+    private static boolean contains(@NonNull CommandHandler[] array, @NonNull CommandHandler handler)
+    {
+        for (CommandHandler element : array)
+            if (element.equals(handler))
+                return true;
+
+        return false;
+    }
+
+    @NonNull
+    private static CommandHandler[] append(@NonNull CommandHandler[] array, @NonNull CommandHandler handler)
+    {
+        CommandHandler[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = handler;
+        return result;
+    }
+
+    @NonNull
+    private static CommandHandler[] remove(@NonNull CommandHandler[] array, @NonNull CommandHandler handler)
+    {
+        List<CommandHandler> result = new ArrayList<>(Arrays.asList(array));
+        result.remove(handler);
+        return result.toArray(new CommandHandler[0]);
+    }
+}
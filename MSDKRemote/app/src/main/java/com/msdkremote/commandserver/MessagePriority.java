@@ -0,0 +1,19 @@
+package com.msdkremote.commandserver;
+
+/**
+ * Class of outbound message, deciding in which lane it waits to be sent.
+ */
+public enum MessagePriority
+{
+    /**
+     * Responses to commands and errors - a client is waiting for them,
+     * so they are sent before any pending telemetry.
+     */
+    INTERACTIVE,
+
+    /**
+     * Continuous updates, like the values of listened keys.
+     * Sent when there are no interactive messages, or often enough to not starve.
+     */
+    TELEMETRY
+}
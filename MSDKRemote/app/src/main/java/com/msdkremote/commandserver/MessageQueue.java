@@ -1,42 +1,109 @@
 package com.msdkremote.commandserver;
 
 import androidx.annotation.NonNull;
-
-import java.util.LinkedList;
-import java.util.Queue;
-
-class MessageQueue
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of messages waiting to be sent, shared between the threads
+ * that produce the messages and the single thread that consumes them.
+ * <p>
+ * The queue is bounded, and its overflow policy decides what happens
+ * when new message arrives to a full queue.
+ */
+abstract class MessageQueue
 {
-    //TODO: add method for removing command, as it may be read, but yet to process.
-
     // The maximum capacity this queue will hold
-    private final int capacity;
+    protected final int capacity;
 
-    // The actual storage object
-    private final Queue<String> pendingQueue = new LinkedList<>();
+    // What to do with new message when the queue is full
+    protected final OverflowPolicy overflowPolicy;
+    protected final long blockTimeout_ms;
 
+    // The thread that takes the messages out, it is never blocked by BLOCK_PRODUCER
+    private volatile Thread consumerThread = null;
 
-    /**
-     * Creates new MessageQueue object, without limit on its capacity.
-     */
-    public MessageQueue() {
-        this.capacity = Integer.MAX_VALUE;
-    }
+    // Set once a message was discarded under DISCONNECT policy
+    private volatile boolean overflowed = false;
+
+    // Counters
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicInteger highWaterMark = new AtomicInteger();
 
 
     /**
-     * Creates new MessageQueue object that cna hold only <strong>capacity</strong> messages.
-     * Useful if the using object is very verbose to moderate memory usage.
+     * Creates new MessageQueue object that cna hold only <strong>capacity</strong> messages,
+     * and handle overflow by the given policy.
      *
      * @param capacity the maximum number of messages that this queue can hold.
+     * @param overflowPolicy what to do with new message when the queue is full.
+     * @param blockTimeout_ms the maximum time to block the producer,
+     *                        used only with {@link OverflowPolicy#BLOCK_PRODUCER}.
      */
-    public MessageQueue(int capacity)
+    protected MessageQueue(int capacity, @NonNull OverflowPolicy overflowPolicy, long blockTimeout_ms)
     {
         // The capacity mast be positive, as something should be stored
         if (capacity < 1)
             throw new IllegalArgumentException("Capacity cannot be negative.");
 
+        if (blockTimeout_ms < 0)
+            throw new IllegalArgumentException("Block timeout cannot be negative.");
+
         this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeout_ms = blockTimeout_ms;
+    }
+
+
+    /**
+     * Sets the thread that consumes this queue.
+     * Under {@link OverflowPolicy#BLOCK_PRODUCER}, this thread is never blocked,
+     * as no one else would make room for it.
+     *
+     * @param consumerThread the consuming thread.
+     */
+    public void setConsumerThread(Thread consumerThread) {
+        this.consumerThread = consumerThread;
+    }
+
+
+    /**
+     * Checks if a message was discarded under {@link OverflowPolicy#DISCONNECT}
+     * policy, meaning that the consumer should be disconnected.
+     *
+     * @return true if the queue overflowed under DISCONNECT policy.
+     */
+    public boolean isOverflowed() {
+        return this.overflowed;
+    }
+
+
+    /**
+     * Gets snapshot of the counters of this queue.
+     *
+     * @return the current statistics.
+     */
+    @NonNull
+    public QueueStatistics getStatistics() {
+        return new QueueStatistics(capacity, getSize(), enqueuedCount.get(),
+                droppedCount.get(), coalescedCount.get(), highWaterMark.get());
+    }
+
+
+    /**
+     * Gets snapshot of the counters of the lane holding the given class of messages.
+     * Queues with a single lane return the statistics of the whole queue.
+     *
+     * @param priority the class of the messages.
+     * @return the current statistics of the lane.
+     */
+    @NonNull
+    public QueueStatistics getStatistics(@NonNull MessagePriority priority) {
+        return getStatistics();
     }
 
 
@@ -45,34 +112,50 @@ class MessageQueue
      *
      * @return the number of messages in this queue.
      */
-    public synchronized int getSize() {
-        return pendingQueue.size();
-    }
+    public abstract int getSize();
 
 
     /**
      * Adds <strong>message</strong> to the top of the queue.
      * <p>
      * Note that if the the queue is about to exceed its allowed capacity,
-     * it will remove the oldest message out.
+     * the overflow policy of the queue decides which message is discarded.
      *
      * @param message message to add to the queue.
+     * @return true if the message was added, false if it was discarded.
      */
-    public synchronized void addMessage(String message)
+    public abstract boolean addMessage(@NonNull String message);
+
+
+    /**
+     * Adds <strong>message</strong> of the given class to the queue.
+     * Queues with a single lane ignore the priority.
+     *
+     * @param message message to add to the queue.
+     * @param priority the class of the message.
+     * @return true if the message was added, false if it was discarded.
+     */
+    public boolean addMessage(@NonNull String message, @NonNull MessagePriority priority) {
+        return addMessage(message);
+    }
+
+
+    /**
+     * Adds <strong>message</strong> of the given class to the queue, which may replace
+     * pending message of the same <strong>coalescingKey</strong>.
+     * Queues that do not coalesce ignore the key.
+     *
+     * @param message message to add to the queue.
+     * @param priority the class of the message.
+     * @param coalescingKey key of the value the message holds, or null if it is not replaceable.
+     * @return true if the message was added, false if it was discarded.
+     */
+    public boolean addMessage(
+            @NonNull String message,
+            @NonNull MessagePriority priority,
+            @Nullable String coalescingKey)
     {
-        // Add message to the queue
-        pendingQueue.add(message);
-
-        // Remove message if the queue is overflowed.
-        // Note that as this the only function to add message and is synchronized,
-        // there can be only one extra message on the queue.
-        if (pendingQueue.size() > capacity)
-            pendingQueue.remove();
-
-        // Wakeup the threads that waits for a message
-        // Because both this and the getMessage methods use the same lock (this class),
-        // it is guaranteed that no one will wait while the queue is not empty.
-        notifyAll();
+        return addMessage(message, priority);
     }
 
 
@@ -82,10 +165,7 @@ class MessageQueue
      *
      * @return the oldest message in the queue, or null if the queue is empty.
      */
-    public synchronized String getMessage() {
-        // pull() will return null of queue is empty.
-        return pendingQueue.poll();
-    }
+    public abstract String getMessage();
 
 
     /**
@@ -97,55 +177,60 @@ class MessageQueue
      *   or null if timeout reached and no new messages appended.
      * @throws InterruptedException if the current thread was interrupted while waiting.
      */
-    public String getMessage(long timeout_ms) throws InterruptedException
-    {
-        // Timeout cannot be negative
-        if (timeout_ms < 0)
-            throw new InterruptedException("timeout cannot be negative.");
+    public abstract String getMessage(long timeout_ms) throws InterruptedException;
+
 
-        // If timeout equal zero, wait without timeout
-        if (timeout_ms == 0)
-            return getMessageBlocking();
 
-        // Convert timeout time to end time.
-        return getMessageTimeout(System.currentTimeMillis() + timeout_ms);
+    /* --------------------------- Implementation Helpers --------------------------- */
+
+    /**
+     * Checks if the calling thread is the consumer of this queue.
+     *
+     * @return true if the calling thread may not be blocked as producer.
+     */
+    protected boolean isConsumerThread() {
+        return Thread.currentThread() == this.consumerThread;
     }
 
 
     /**
-     * Get message with a specific time to wait until.
+     * Counts message that was added to the queue.
      *
-     * @param endTime system end time that this method allowed to wait
-     * @return oldest message or null if timeout
-     * @throws InterruptedException if the current thread was interrupted while waiting.
+     * @param size the size of the queue after the message was added.
      */
-    private synchronized String getMessageTimeout(long endTime) throws InterruptedException
+    protected void countEnqueued(int size)
     {
-        long currentTime;
+        enqueuedCount.incrementAndGet();
+
+        int mark;
+        while (size > (mark = highWaterMark.get()))
+            if (highWaterMark.compareAndSet(mark, size))
+                break;
+    }
+
+
+    /**
+     * Counts pending message that was replaced by newer message of the same key.
+     */
+    protected void countCoalesced() {
+        coalescedCount.incrementAndGet();
+    }
 
-        // Wait only if the queue is empty and end time wasn't reached.
-        // Using variable for currentTime makes sure that wait always will gets positive value.
-        while (pendingQueue.isEmpty() && (currentTime = System.currentTimeMillis()) < endTime)
-            wait(endTime - currentTime);
 
-        // pull() will return null of queue is empty.
-        return pendingQueue.poll();
+    /**
+     * Counts message that was discarded due to overflow.
+     */
+    protected void countDropped() {
+        droppedCount.incrementAndGet();
     }
 
+
     /**
-     * Waiting indefinitely for a message.
-     *
-     * @return oldest message in the queue.
-     * @throws InterruptedException if the current thread was interrupted while waiting.
+     * Marks the queue as overflowed under DISCONNECT policy, and counts the discarded message.
      */
-    private synchronized @NonNull String getMessageBlocking() throws InterruptedException
+    protected void markOverflowed()
     {
-        // Wait until the queue has message to offer.
-        while (pendingQueue.isEmpty())
-            wait();
-
-        // Will throw exception if no message.
-        // Should not happen if the implementation is thread safe.
-        return pendingQueue.remove();
+        overflowed = true;
+        countDropped();
     }
 }
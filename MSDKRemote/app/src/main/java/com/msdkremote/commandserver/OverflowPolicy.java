@@ -0,0 +1,30 @@
+package com.msdkremote.commandserver;
+
+/**
+ * What a message queue does with a new message when it is already full.
+ */
+public enum OverflowPolicy
+{
+    /**
+     * Remove the oldest pending message to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Keep the pending messages, and discard the new one.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Block the producing thread until there is room, or the timeout passed.
+     * If the timeout passed, the new message is discarded.
+     * The consuming thread itself is never blocked, it discards the new message instead.
+     */
+    BLOCK_PRODUCER,
+
+    /**
+     * Discard the new message, and close the connection of the consumer
+     * that does not keep up with the rate of the messages.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,234 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Message queue with two lanes, one per {@link MessagePriority}.
+ * <p>
+ * The interactive lane is always drained first, so responses are not stuck
+ * behind a flood of telemetry. To not starve the telemetry lane, one telemetry
+ * message is taken after every {@link #INTERACTIVE_BURST} interactive messages in a row.
+ * <p>
+ * Each lane is a queue of its own, with its own capacity and overflow policy.
+ */
+class PriorityMessageQueue extends MessageQueue
+{
+    // Interactive messages in a row, before telemetry message gets its turn
+    static final int INTERACTIVE_BURST = 16;
+
+    // The lanes
+    private final MessageQueue interactiveLane;
+    private final MessageQueue telemetryLane;
+
+    // Interactive messages taken since the last telemetry one, touched only by the consumer
+    private int interactiveInRow = 0;
+
+    // The consumer, while it is parked waiting for a message
+    private volatile Thread waitingConsumer = null;
+
+
+    /**
+     * Creates new PriorityMessageQueue over two lanes.
+     * The lanes should not be used directly from now on.
+     *
+     * @param interactiveLane queue for {@link MessagePriority#INTERACTIVE} messages.
+     * @param telemetryLane queue for {@link MessagePriority#TELEMETRY} messages.
+     */
+    public PriorityMessageQueue(
+            @NonNull MessageQueue interactiveLane,
+            @NonNull MessageQueue telemetryLane)
+    {
+        super(saturatedSum(interactiveLane.capacity, telemetryLane.capacity),
+                interactiveLane.overflowPolicy, interactiveLane.blockTimeout_ms);
+
+        this.interactiveLane = interactiveLane;
+        this.telemetryLane = telemetryLane;
+    }
+
+
+    @Override
+    public void setConsumerThread(Thread consumerThread)
+    {
+        super.setConsumerThread(consumerThread);
+        this.interactiveLane.setConsumerThread(consumerThread);
+        this.telemetryLane.setConsumerThread(consumerThread);
+    }
+
+
+    @Override
+    public boolean isOverflowed() {
+        return this.interactiveLane.isOverflowed() || this.telemetryLane.isOverflowed();
+    }
+
+
+    /**
+     * Gets snapshot of the counters of both lanes together. The high-water mark is the most
+     * messages both lanes held at once, not the sum of the marks of the lanes.
+     *
+     * @return the current statistics.
+     */
+    @NonNull
+    @Override
+    public QueueStatistics getStatistics()
+    {
+        QueueStatistics interactive = this.interactiveLane.getStatistics();
+        QueueStatistics telemetry = this.telemetryLane.getStatistics();
+
+        return new QueueStatistics(
+                this.capacity,
+                interactive.getSize() + telemetry.getSize(),
+                interactive.getEnqueued() + telemetry.getEnqueued(),
+                interactive.getDropped() + telemetry.getDropped(),
+                interactive.getCoalesced() + telemetry.getCoalesced(),
+                super.getStatistics().getHighWaterMark());
+    }
+
+
+    /**
+     * Gets snapshot of the counters of a single lane.
+     *
+     * @param priority the lane to get the statistics of.
+     * @return the current statistics of the lane.
+     */
+    @NonNull
+    @Override
+    public QueueStatistics getStatistics(@NonNull MessagePriority priority) {
+        return getLane(priority).getStatistics();
+    }
+
+
+    @Override
+    public int getSize() {
+        return this.interactiveLane.getSize() + this.telemetryLane.getSize();
+    }
+
+
+    /**
+     * Adds message to the interactive lane.
+     *
+     * @param message message to add to the queue.
+     * @return true if the message was added, false if it was discarded.
+     */
+    @Override
+    public boolean addMessage(@NonNull String message) {
+        return addMessage(message, MessagePriority.INTERACTIVE);
+    }
+
+
+    @Override
+    public boolean addMessage(@NonNull String message, @NonNull MessagePriority priority) {
+        return addMessage(message, priority, null);
+    }
+
+
+    @Override
+    public boolean addMessage(
+            @NonNull String message,
+            @NonNull MessagePriority priority,
+            @Nullable String coalescingKey)
+    {
+        if (!getLane(priority).addMessage(message, priority, coalescingKey))
+            return false;
+
+        // The lanes count the message, this only keeps the high-water mark of both together
+        countEnqueued(getSize());
+
+        // Wake the consumer only if it is actually parked
+        Thread consumer = this.waitingConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+
+        return true;
+    }
+
+
+    @Override
+    public String getMessage()
+    {
+        String message;
+
+        // Telemetry turn, after long run of interactive messages
+        if (this.interactiveInRow >= INTERACTIVE_BURST) {
+            this.interactiveInRow = 0;
+
+            if ((message = this.telemetryLane.getMessage()) != null)
+                return message;
+        }
+
+        if ((message = this.interactiveLane.getMessage()) != null) {
+            this.interactiveInRow++;
+            return message;
+        }
+
+        this.interactiveInRow = 0;
+        return this.telemetryLane.getMessage();
+    }
+
+
+    @Override
+    public String getMessage(long timeout_ms) throws InterruptedException
+    {
+        // Timeout cannot be negative
+        if (timeout_ms < 0)
+            throw new InterruptedException("timeout cannot be negative.");
+
+        String message = getMessage();
+        if (message != null)
+            return message;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+
+        // Publish the consumer before checking again, so producer
+        // that adds message from now on will unpark it.
+        this.waitingConsumer = Thread.currentThread();
+
+        try {
+            while ((message = getMessage()) == null)
+            {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+
+                // If timeout equal zero, wait without timeout
+                if (timeout_ms == 0) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return null;
+
+                LockSupport.parkNanos(this, remaining);
+            }
+
+            return message;
+        }
+        finally {
+            this.waitingConsumer = null;
+        }
+    }
+
+
+    /**
+     * Gets the lane of the given priority.
+     *
+     * @param priority the priority of the lane.
+     * @return the lane queue.
+     */
+    @NonNull
+    private MessageQueue getLane(@NonNull MessagePriority priority) {
+        return priority == MessagePriority.TELEMETRY ? this.telemetryLane : this.interactiveLane;
+    }
+
+
+    /**
+     * Adds two capacities, without overflowing past {@code Integer.MAX_VALUE}.
+     */
+    private static int saturatedSum(int a, int b) {
+        return (int) Math.min((long) a + b, Integer.MAX_VALUE);
+    }
+}
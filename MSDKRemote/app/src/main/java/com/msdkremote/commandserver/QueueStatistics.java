@@ -0,0 +1,87 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Snapshot of the counters of a message queue.
+ */
+public class QueueStatistics
+{
+    private final int capacity;
+    private final int size;
+    private final long enqueued;
+    private final long dropped;
+    private final long coalesced;
+    private final int highWaterMark;
+
+
+    QueueStatistics(int capacity, int size,
+                    long enqueued, long dropped, long coalesced, int highWaterMark)
+    {
+        this.capacity = capacity;
+        this.size = size;
+        this.enqueued = enqueued;
+        this.dropped = dropped;
+        this.coalesced = coalesced;
+        this.highWaterMark = highWaterMark;
+    }
+
+
+    /**
+     * @return the maximum number of messages the queue can hold.
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return the number of messages pending in the queue when the snapshot was taken.
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of messages that were accepted by the queue.
+     */
+    public long getEnqueued() {
+        return this.enqueued;
+    }
+
+    /**
+     * @return the number of messages that were discarded due to overflow,
+     *         either the new ones or the old ones, depending on the policy.
+     */
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * @return the number of pending messages that were replaced by newer message
+     *         of the same key, before they were sent.
+     */
+    public long getCoalesced() {
+        return this.coalesced;
+    }
+
+    /**
+     * @return the largest number of messages that were pending at once.
+     */
+    public int getHighWaterMark() {
+        return this.highWaterMark;
+    }
+
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "QueueStatistics{" +
+                "capacity=" + capacity +
+                ", size=" + size +
+                ", enqueued=" + enqueued +
+                ", dropped=" + dropped +
+                ", coalesced=" + coalesced +
+                ", highWaterMark=" + highWaterMark +
+                '}';
+    }
+}
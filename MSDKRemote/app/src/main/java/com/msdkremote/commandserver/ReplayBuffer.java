@@ -0,0 +1,92 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * The most recent messages written on a session, kept to be written again
+ * when the client resumes the session on a new connection.
+ * <p>
+ * Messages are numbered by the order they were written, starting from zero,
+ * so client that counts the messages it received can tell exactly which were lost.
+ * Used only by the server thread, so it needs no locks.
+ */
+final class ReplayBuffer
+{
+    // Ring of the recent messages, message number n is kept in slot n % length
+    private final String[] messages;
+
+    // The number of messages written so far
+    private long written = 0;
+
+    // The range of messages still to be written again, [replayNext, replayEnd)
+    private long replayNext = 0;
+    private long replayEnd = 0;
+
+
+    /**
+     * Creates empty replay buffer.
+     *
+     * @param capacity the number of recent messages to keep.
+     */
+    ReplayBuffer(int capacity) {
+        this.messages = new String[Math.max(capacity, 1)];
+    }
+
+
+    /**
+     * Keeps message that is written now.
+     *
+     * @param message the message that was handed to the writer.
+     */
+    void add(@NonNull String message)
+    {
+        this.messages[(int) (this.written % this.messages.length)] = message;
+        this.written++;
+    }
+
+
+    /**
+     * Starts writing again the messages the client did not receive.
+     *
+     * @param received the number of messages the client received, or negative if unknown.
+     * @return the number of the first message that is written again,
+     *         the messages before it are either received or lost.
+     */
+    long startReplay(long received)
+    {
+        long first = this.written;
+
+        if (received >= 0)
+            first = Math.min(Math.max(received, this.written - this.messages.length), this.written);
+
+        this.replayNext = first;
+        this.replayEnd = this.written;
+        return first;
+    }
+
+
+    /**
+     * Takes the next message to write again.
+     *
+     * @return the message, or null if nothing is left to replay.
+     */
+    @Nullable
+    String pollReplay()
+    {
+        if (this.replayNext >= this.replayEnd)
+            return null;
+
+        return this.messages[(int) (this.replayNext++ % this.messages.length)];
+    }
+
+
+    /**
+     * Checks if there are messages left to replay.
+     *
+     * @return true if {@link #pollReplay()} returns message.
+     */
+    boolean hasReplay() {
+        return this.replayNext < this.replayEnd;
+    }
+}
@@ -0,0 +1,259 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free message queue over a fixed array.
+ * <p>
+ * Any number of threads may add messages, and a single thread takes them out.
+ * Adding a message never allocates and never takes a lock, and the waiting
+ * consumer is parked and unparked directly instead of {@code wait / notifyAll}.
+ * <p>
+ * Every slot carries a sequence number telling whose turn it is - the producer
+ * of position {@code p} may fill the slot when its sequence is {@code p}, and the
+ * consumer may take it when the sequence is {@code p + 1}. Producers that evict
+ * the oldest message under {@link OverflowPolicy#DROP_OLDEST} take it the same way
+ * the consumer does, so the head position is also advanced by compare and set.
+ */
+class RingMessageQueue extends MessageQueue
+{
+    // How long a blocked producer sleeps before it checks for room again
+    private static final long PRODUCER_BACKOFF_NS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    // The storage, and the turn of each slot
+    private final AtomicReferenceArray<String> slots;
+    private final AtomicLongArray sequences;
+
+    // Next position to add into, and next position to take from
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    // The consumer, while it is parked waiting for a message
+    private volatile Thread waitingConsumer = null;
+
+
+    /**
+     * Creates new RingMessageQueue object that holds up to <strong>capacity</strong> messages.
+     * When full, the oldest message is removed.
+     *
+     * @param capacity the maximum number of messages that this queue can hold.
+     */
+    public RingMessageQueue(int capacity) {
+        this(capacity, OverflowPolicy.DROP_OLDEST, 0);
+    }
+
+
+    /**
+     * Creates new RingMessageQueue object that holds up to <strong>capacity</strong> messages,
+     * and handle overflow by the given policy.
+     *
+     * @param capacity the maximum number of messages that this queue can hold.
+     * @param overflowPolicy what to do with new message when the queue is full.
+     * @param blockTimeout_ms the maximum time to block the producer,
+     *                        used only with {@link OverflowPolicy#BLOCK_PRODUCER}.
+     */
+    public RingMessageQueue(
+            int capacity, @NonNull OverflowPolicy overflowPolicy, long blockTimeout_ms)
+    {
+        super(capacity, overflowPolicy, blockTimeout_ms);
+
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+
+        for (int i = 0; i < capacity; i++)
+            this.sequences.set(i, i);
+    }
+
+
+    @Override
+    public int getSize()
+    {
+        // Read head first, so the difference is never negative
+        long headPosition = head.get();
+        long size = tail.get() - headPosition;
+
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+
+    @Override
+    public boolean addMessage(@NonNull String message)
+    {
+        long deadline = 0;
+
+        while (!offer(message))
+        {
+            switch (overflowPolicy)
+            {
+                // Take the oldest message out, and try again.
+                case DROP_OLDEST:
+                    if (poll() != null)
+                        countDropped();
+                    break;
+
+                case DROP_NEWEST:
+                    countDropped();
+                    return false;
+
+                case BLOCK_PRODUCER:
+                    // The consumer cannot wait for itself.
+                    if (isConsumerThread() || Thread.currentThread().isInterrupted()) {
+                        countDropped();
+                        return false;
+                    }
+
+                    if (deadline == 0)
+                        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeout_ms);
+
+                    if (System.nanoTime() - deadline >= 0) {
+                        countDropped();
+                        return false;
+                    }
+
+                    LockSupport.parkNanos(this, PRODUCER_BACKOFF_NS);
+                    break;
+
+                case DISCONNECT:
+                    markOverflowed();
+                    return false;
+            }
+        }
+
+        countEnqueued(getSize());
+
+        // Wake the consumer only if it is actually parked
+        Thread consumer = waitingConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+
+        return true;
+    }
+
+
+    @Override
+    public String getMessage() {
+        return poll();
+    }
+
+
+    @Override
+    public String getMessage(long timeout_ms) throws InterruptedException
+    {
+        // Timeout cannot be negative
+        if (timeout_ms < 0)
+            throw new InterruptedException("timeout cannot be negative.");
+
+        String message = poll();
+        if (message != null)
+            return message;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+
+        // Publish the consumer before checking again, so producer
+        // that adds message from now on will unpark it.
+        waitingConsumer = Thread.currentThread();
+
+        try {
+            while ((message = poll()) == null)
+            {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+
+                // If timeout equal zero, wait without timeout
+                if (timeout_ms == 0) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return null;
+
+                LockSupport.parkNanos(this, remaining);
+            }
+
+            return message;
+        }
+        finally {
+            waitingConsumer = null;
+        }
+    }
+
+
+    /**
+     * Tries to add message without waiting.
+     *
+     * @param message the message to add.
+     * @return true if the message was added, false if the queue is full.
+     */
+    private boolean offer(@NonNull String message)
+    {
+        long position = tail.get();
+
+        while (true)
+        {
+            int index = (int) (position % capacity);
+            long difference = sequences.get(index) - position;
+
+            // The slot is free for this position, claim it.
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, message);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            }
+
+            // The slot still holds message from the previous round - full.
+            else if (difference < 0)
+                return false;
+
+            // Other producer claimed this position, move on.
+            else
+                position = tail.get();
+        }
+    }
+
+
+    /**
+     * Tries to take the oldest message without waiting.
+     *
+     * @return the oldest message, or null if the queue is empty.
+     */
+    private String poll()
+    {
+        long position = head.get();
+
+        while (true)
+        {
+            int index = (int) (position % capacity);
+            long difference = sequences.get(index) - (position + 1);
+
+            // The slot was filled for this position, take it.
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    String message = slots.get(index);
+                    slots.set(index, null);
+                    sequences.set(index, position + capacity);
+                    return message;
+                }
+                position = head.get();
+            }
+
+            // The slot was not filled yet - empty.
+            else if (difference < 0)
+                return null;
+
+            // Evicting producer took this position, move on.
+            else
+                position = head.get();
+        }
+    }
+}
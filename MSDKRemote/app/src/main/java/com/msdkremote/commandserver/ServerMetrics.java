@@ -0,0 +1,152 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.msdkremote.metrics.Counter;
+import com.msdkremote.metrics.Gauge;
+import com.msdkremote.metrics.Histogram;
+import com.msdkremote.metrics.MetricsRegistry;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a single command server, registered under its metrics name,
+ * see {@link CommandServer#setMetricsName(String)}.
+ * <p>
+ * Counters and histograms stay in the registry after the server stops, so restarted
+ * server continues them, while the gauges are removed, as they read the live sessions.
+ */
+final class ServerMetrics
+{
+    // Counters and histograms, updated by the server as things happen
+    final Counter connections;
+    final Counter commands;
+    final Histogram handlerTime_us;
+    final Histogram dispatchWait_us;
+    final Histogram roundTripTime_us;
+
+    // Messages dropped by the queues of sessions that are already closed
+    private final LongAdder closedDropped = new LongAdder();
+
+    // Socket options of the last client, for the socket gauges
+    private volatile SocketSettings lastSocketSettings = null;
+
+    private final String name;
+
+    // Gauges, read from the server on demand
+    private final Gauge clients;
+    private final Gauge queued;
+    private final Gauge dropped;
+    private final Gauge dispatchDepth;
+    private final SocketGauges socketGauges;
+
+
+    ServerMetrics(@NonNull CommandServer server, @NonNull String name)
+    {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        this.name = name;
+
+        this.connections = registry.counter(name + ".connections");
+        this.commands = registry.counter(name + ".commands");
+        this.handlerTime_us = registry.histogram(name + ".handler_us");
+        this.dispatchWait_us = registry.histogram(name + ".dispatch_wait_us");
+        this.roundTripTime_us = registry.histogram(name + ".rtt_us");
+
+        this.clients = new Gauge() {
+            @Override
+            public long getValue() {
+                return server.getSessions().length;
+            }
+        };
+
+        this.queued = new Gauge() {
+            @Override
+            public long getValue()
+            {
+                long queued = 0;
+                for (Session session : server.getSessions())
+                    queued += session.getQueueSize();
+
+                return queued;
+            }
+        };
+
+        this.dropped = new Gauge() {
+            @Override
+            public long getValue()
+            {
+                long dropped = closedDropped.sum();
+                for (Session session : server.getSessions())
+                    dropped += session.getQueueStatistics().getDropped();
+
+                return dropped;
+            }
+        };
+
+        this.dispatchDepth = new Gauge() {
+            @Override
+            public long getValue() {
+                return server.getDispatchQueueDepth();
+            }
+        };
+
+        this.socketGauges = new SocketGauges(name) {
+            @Nullable
+            @Override
+            protected SocketSettings getSettings() {
+                return lastSocketSettings;
+            }
+        };
+    }
+
+
+    /**
+     * Registers the gauges, called when the server starts.
+     */
+    void registerGauges()
+    {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        registry.gauge(this.name + ".clients", this.clients);
+        registry.gauge(this.name + ".queued", this.queued);
+        registry.gauge(this.name + ".dropped", this.dropped);
+        registry.gauge(this.name + ".dispatch_depth", this.dispatchDepth);
+        this.socketGauges.register();
+    }
+
+
+    /**
+     * Removes the gauges, called when the server stops.
+     */
+    void removeGauges()
+    {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        registry.removeGauge(this.name + ".clients", this.clients);
+        registry.removeGauge(this.name + ".queued", this.queued);
+        registry.removeGauge(this.name + ".dropped", this.dropped);
+        registry.removeGauge(this.name + ".dispatch_depth", this.dispatchDepth);
+        this.socketGauges.remove();
+    }
+
+
+    /**
+     * Counts the connection of new session, and keeps its socket options for the socket gauges.
+     *
+     * @param session the session that was opened.
+     */
+    void onSessionOpened(@NonNull Session session)
+    {
+        this.connections.increment();
+        this.lastSocketSettings = session.getSocketSettings();
+    }
+
+
+    /**
+     * Keeps the drops of session that is closed, so they are still counted.
+     *
+     * @param session the session that was closed.
+     */
+    void onSessionClosed(@NonNull Session session) {
+        this.closedDropped.add(session.getQueueStatistics().getDropped());
+    }
+}
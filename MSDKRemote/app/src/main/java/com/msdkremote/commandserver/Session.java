@@ -0,0 +1,1001 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.msdkremote.metrics.Trace;
+import com.msdkremote.metrics.TraceStage;
+import com.msdkremote.metrics.Tracer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single client connection on a {@link CommandServer}.
+ * <p>
+ * Each session owns its own outbound queue, so messages sent on a session
+ * are delivered only to its client, and are discarded once the connection is closed.
+ */
+public class Session
+{
+    /* --------------------------- Local Variables --------------------------- */
+
+    // The maximum number of messages waiting to be written for a single client
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+
+    // The most bytes handed to the channel in a single write, and how long
+    // a small batch may wait for more messages before it is written anyway
+    static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+    static final long DEFAULT_BATCH_DELAY_ms = 0;
+
+    // Returned by flush() when only network events or new messages should wake the session
+    static final long NO_FLUSH_DELAY = -1;
+
+    // Heartbeat lines of clients without binary framing
+    static final String PING = "PING";
+    static final String PONG = "PONG";
+
+    // The number of latest pings whose answer is accepted
+    private static final int PING_WINDOW = 4;
+
+    // The replies of sampled requests that may be followed at once
+    private static final int MAX_TRACED_MESSAGES = 64;
+
+    // The server this session belongs to
+    private final CommandServer commandServer;
+
+    // Identification of the client, the address changes when the session is resumed
+    private final int sessionId;
+    private InetAddress address;
+
+    // The session that owns the connection, this one unless it is a channel of multiplexed connection
+    private final Session connection;
+    private final int channel;
+
+    // The channels multiplexed on the connection, created on the first channel command
+    private ChannelMultiplexer multiplexer = null;
+
+    // Outbound messages, produced by any thread and consumed by the server thread
+    private final MessageQueue messageQueue;
+
+    // The reading and writing halves of the connection, null on channel of multiplexed connection,
+    // and while the session waits to be resumed
+    private CommandServerReader reader;
+    private CommandServerWriter writer;
+    private final long batchDelay_ns;
+    private SelectionKey key = null;
+
+    // Session state
+    private volatile boolean isClosed = false;
+    private volatile boolean isDetached = false;
+
+    // Resumption, the token the client resumes with, the recent messages to write again,
+    // and when the detached session is closed for good
+    private String resumeToken = null;
+    private ReplayBuffer replayBuffer = null;
+    private long resumeDeadline_ns = 0;
+
+    // Answers of the server itself, e.g. to SESSION, written before any message and not counted as one
+    private final ArrayDeque<String> serverReplies = new ArrayDeque<>();
+
+    // Heartbeat, whether line client asked for it, whether ping or pong should be written,
+    // and the pings that were not answered yet
+    private boolean lineHeartbeat = false;
+    private boolean pingPending = false;
+    private boolean pongPending = false;
+    private long pongTimestamp = 0;
+    private int missedHeartbeats = 0;
+
+    // Timestamps of the latest pings written, 0 once answered, only pong with one of them counts
+    private final long[] sentPings = new long[PING_WINDOW];
+    private int sentPingCount = 0;
+
+    // Round trip times measured by heartbeat, negative until the first measure
+    private volatile long lastRoundTripTime_ns = -1;
+    private volatile long smoothedRoundTripTime_ns = -1;
+
+    // The socket options of the connection, as the server applied them
+    private volatile SocketSettings socketSettings = null;
+
+    // Tracing, when the last read started, the replies of sampled requests by identity until
+    // they leave the queue, guarded by the lock, and the traces of the batch being written
+    private long readTime_ns = 0;
+    private final Object traceLock = new Object();
+    private Map<String, Trace> tracedMessages = null;
+    private volatile int tracedCount = 0;
+    private final ArrayList<Trace> writingTraces = new ArrayList<>();
+
+    // Set by the reader after handshake, until the answer is written and the writer switched
+    private boolean binaryFramingRequested = false;
+    private volatile boolean binaryFraming = false;
+
+    // Listeners to call when the session is closed
+    private final Set<SessionCloseListener> closeListeners = new LinkedHashSet<>();
+
+
+
+    /* --------------------------- Basic Commands --------------------------- */
+
+    /**
+     * Construct new session over a connected channel.
+     *
+     * @param commandServer the server that accepted the connection.
+     * @param sessionId unique number of this session on the server.
+     * @param socketChannel the non-blocking channel of the client.
+     * @param commandHandler handle to process the incoming commands.
+     * @param messageQueue the outbound queue of this session, consumed by the calling thread.
+     * @param batchSize the maximum number of bytes to write at once.
+     * @param batchDelay_ms how long a small batch may wait for more messages, zero to not wait.
+     * @param TAG tag to print with on logcat, or null to not log.
+     */
+    Session(
+            @NonNull CommandServer commandServer,
+            int sessionId,
+            @NonNull SocketChannel socketChannel,
+            @NonNull CommandServerReaderHandler commandHandler,
+            @NonNull MessageQueue messageQueue,
+            int batchSize,
+            long batchDelay_ms,
+            String TAG)
+    {
+        this.commandServer = commandServer;
+        this.sessionId = sessionId;
+        this.address = socketChannel.socket().getInetAddress();
+        this.connection = this;
+        this.channel = BinaryFraming.COMMAND_CHANNEL;
+
+        // Sessions are created and flushed by the server thread.
+        this.messageQueue = messageQueue;
+        this.messageQueue.setConsumerThread(Thread.currentThread());
+        this.batchDelay_ns = TimeUnit.MILLISECONDS.toNanos(batchDelay_ms);
+
+        // Create command reader and writer without tag
+        if (TAG == null) {
+            this.reader = new CommandServerReader(socketChannel, this, commandHandler);
+            this.writer = new CommandServerWriter(socketChannel, batchSize);
+        }
+        // Create command reader and writer wit tag
+        else {
+            this.reader = new CommandServerReader(socketChannel, this, commandHandler, TAG);
+            this.writer = new CommandServerWriter(socketChannel, batchSize, TAG);
+        }
+    }
+
+
+    /**
+     * Construct new session over a channel of multiplexed connection.
+     * The session has no reader or writer of its own, the connection
+     * reads its commands and writes its messages.
+     *
+     * @param commandServer the server that handles the commands of the channel.
+     * @param sessionId unique number of this session on that server.
+     * @param connection the session that owns the connection.
+     * @param channel the channel of this session on the connection.
+     * @param messageQueue the outbound queue of this session, consumed by the calling thread.
+     */
+    Session(
+            @NonNull CommandServer commandServer,
+            int sessionId,
+            @NonNull Session connection,
+            int channel,
+            @NonNull MessageQueue messageQueue)
+    {
+        this.commandServer = commandServer;
+        this.sessionId = sessionId;
+        this.address = connection.address;
+        this.connection = connection;
+        this.channel = channel;
+
+        // Channels exist only on binary framing
+        this.binaryFraming = true;
+
+        // Channel sessions are created and flushed by the thread of the connection.
+        this.messageQueue = messageQueue;
+        this.messageQueue.setConsumerThread(Thread.currentThread());
+        this.batchDelay_ns = 0;
+
+        this.reader = null;
+        this.writer = null;
+    }
+
+
+    /**
+     * Get the server this session belongs to.
+     *
+     * @return the server that accepted this session.
+     */
+    @NonNull
+    public CommandServer getServer() {
+        return this.commandServer;
+    }
+
+
+    /**
+     * Get the number identifying this session on its server.
+     *
+     * @return the session id.
+     */
+    public int getSessionId() {
+        return this.sessionId;
+    }
+
+
+    /**
+     * Get the address of the client.
+     *
+     * @return the remote address of this session.
+     */
+    @NonNull
+    public InetAddress getAddress() {
+        return this.address;
+    }
+
+
+    /**
+     * Get the channel of this session on its connection.
+     *
+     * @return the channel, zero unless this session is a channel of multiplexed connection.
+     */
+    public int getChannel() {
+        return this.channel;
+    }
+
+
+    /**
+     * Check if the connection of this session was closed.
+     *
+     * @return true if the session is closed.
+     */
+    public boolean isClosed() {
+        return this.isClosed;
+    }
+
+
+    /**
+     * Check if the client of this session lost its connection, and the session
+     * waits for it to resume, see {@link CommandServer#setSessionResumption(long, int)}.
+     * Messages sent meanwhile are kept in the queue, and written once the client resumes.
+     *
+     * @return true if the session is detached from any connection.
+     */
+    public boolean isDetached() {
+        return this.isDetached;
+    }
+
+
+    /**
+     * Gets the smoothed round trip time of the connection, measured by heartbeat,
+     * see {@link CommandServer#setHeartbeat(long, int)}. Every measure moves it by
+     * an eighth of the difference, same as TCP, so single delayed ping does not jump it.
+     *
+     * @return the round trip time in microseconds, or -1 if it was not measured yet.
+     */
+    public long getRoundTripTime_us()
+    {
+        long rtt_ns = this.connection.smoothedRoundTripTime_ns;
+        return rtt_ns < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(rtt_ns);
+    }
+
+
+    /**
+     * Gets the last round trip time of the connection, measured by heartbeat.
+     *
+     * @return the round trip time in microseconds, or -1 if it was not measured yet.
+     */
+    public long getLastRoundTripTime_us()
+    {
+        long rtt_ns = this.connection.lastRoundTripTime_ns;
+        return rtt_ns < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(rtt_ns);
+    }
+
+
+    /**
+     * Gets the socket options of the connection, as they are in use after the server
+     * applied its profile, see {@link CommandServer#setSocketProfile(SocketProfile)}.
+     *
+     * @return the socket settings, or null while the session has no connection.
+     */
+    @Nullable
+    public SocketSettings getSocketSettings() {
+        return this.connection.socketSettings;
+    }
+
+
+    /**
+     * Sets the socket options of the connection, called by the server once it applied them.
+     *
+     * @param socketSettings the options in use.
+     */
+    void setSocketSettings(@Nullable SocketSettings socketSettings) {
+        this.socketSettings = socketSettings;
+    }
+
+
+    /**
+     * Check if the client of this session switched to binary framing.
+     *
+     * @return true if messages are sent as frames, see {@link BinaryFraming}.
+     */
+    public boolean isBinaryFraming() {
+        return this.binaryFraming;
+    }
+
+
+    /**
+     * Sending specific interactive message to the client of this session only.
+     * Note: this will schedule the message, and return immediately,
+     * unless the queue is full under {@link OverflowPolicy#BLOCK_PRODUCER}.
+     * If the session is already closed, the message is discarded.
+     *
+     * @param message the message to send.
+     * @return true if the message was scheduled, false if it was discarded.
+     */
+    public boolean sendMessage(@NonNull String message) {
+        return sendMessage(message, MessagePriority.INTERACTIVE);
+    }
+
+
+    /**
+     * Sending specific message to the client of this session only.
+     * Interactive messages are sent before any pending telemetry.
+     * Note: this will schedule the message, and return immediately,
+     * unless the queue is full under {@link OverflowPolicy#BLOCK_PRODUCER}.
+     * If the session is already closed, the message is discarded.
+     *
+     * @param message the message to send.
+     * @param priority the class of the message.
+     * @return true if the message was scheduled, false if it was discarded.
+     */
+    public boolean sendMessage(@NonNull String message, @NonNull MessagePriority priority) {
+        return sendMessage(message, priority, null);
+    }
+
+
+    /**
+     * Sending specific message that holds the latest value of <strong>coalescingKey</strong>.
+     * If the server coalesces this class of messages, a pending message of the same key
+     * is replaced by this one, so slow client receives only the latest value.
+     * Note: this will schedule the message, and return immediately,
+     * unless the queue is full under {@link OverflowPolicy#BLOCK_PRODUCER}.
+     * If the session is already closed, the message is discarded.
+     *
+     * @param message the message to send.
+     * @param priority the class of the message.
+     * @param coalescingKey key of the value the message holds, or null if it is not replaceable.
+     * @return true if the message was scheduled, false if it was discarded.
+     */
+    public boolean sendMessage(
+            @NonNull String message,
+            @NonNull MessagePriority priority,
+            @Nullable String coalescingKey)
+    {
+        if (this.isClosed)
+            return false;
+
+        // First reply of sampled request is followed until it is written
+        Trace trace = Tracer.current();
+        if (trace != null)
+            traceMessage(message, trace);
+
+        boolean added = this.messageQueue.addMessage(message, priority, coalescingKey);
+
+        // Wake the server either to write the message, or to disconnect slow client.
+        if (added || this.messageQueue.isOverflowed())
+            requestFlush();
+
+        return added;
+    }
+
+
+    /**
+     * Follows the first reply of sampled request, before it is added to the queue,
+     * so the server cannot take it before it is followed.
+     * Channels of multiplexed connection are not followed past the queue.
+     *
+     * @param message the reply, followed by its identity.
+     * @param trace the trace of the request.
+     */
+    private void traceMessage(@NonNull String message, @NonNull Trace trace)
+    {
+        if (!trace.stamp(TraceStage.ENQUEUED) || this.connection != this)
+            return;
+
+        synchronized (this.traceLock)
+        {
+            if (this.tracedMessages == null)
+                this.tracedMessages = new IdentityHashMap<>();
+
+            // Replies that were dropped by the queue are never taken, so this is bounded
+            if (this.tracedMessages.size() < MAX_TRACED_MESSAGES) {
+                this.tracedMessages.put(message, trace);
+                this.tracedCount = this.tracedMessages.size();
+            }
+        }
+    }
+
+
+    /**
+     * Stamps the trace of reply, if it is followed, as it is taken from the queue.
+     *
+     * @param message the message that was taken from the queue.
+     */
+    private void onMessageDequeued(@NonNull String message)
+    {
+        Trace trace;
+        synchronized (this.traceLock) {
+            trace = this.tracedMessages.remove(message);
+            this.tracedCount = this.tracedMessages.size();
+        }
+
+        if (trace != null) {
+            trace.stamp(TraceStage.DEQUEUED);
+            this.writingTraces.add(trace);
+        }
+    }
+
+
+    /**
+     * Asks the server that owns the connection to write the pending messages soon.
+     * Called by {@link DataChannelStream} when it has new data to send.
+     */
+    public void requestFlush() {
+        this.connection.commandServer.requestWakeup();
+    }
+
+
+    /**
+     * Gets the counters of the outbound queue of this session.
+     *
+     * @return snapshot of the queue statistics.
+     */
+    @NonNull
+    public QueueStatistics getQueueStatistics() {
+        return this.messageQueue.getStatistics();
+    }
+
+
+    /**
+     * Gets the counters of a single lane of the outbound queue of this session.
+     *
+     * @param priority the class of messages of the lane.
+     * @return snapshot of the lane statistics.
+     */
+    @NonNull
+    public QueueStatistics getQueueStatistics(@NonNull MessagePriority priority) {
+        return this.messageQueue.getStatistics(priority);
+    }
+
+
+    /**
+     * Adds listener that will be called once this session is closed.
+     * Adding the same listener twice has no effect.
+     * If the session is already closed, the listener is called immediately.
+     *
+     * @param listener the listener to add.
+     */
+    public void addCloseListener(@NonNull SessionCloseListener listener)
+    {
+        synchronized (this.closeListeners) {
+            if (!this.isClosed) {
+                this.closeListeners.add(listener);
+                return;
+            }
+        }
+
+        listener.onSessionClosed(this);
+    }
+
+
+    /**
+     * Removes listener that was added by {@link #addCloseListener(SessionCloseListener)}.
+     *
+     * @param listener the listener to remove.
+     * @return true if the listener was removed.
+     */
+    public boolean removeCloseListener(@NonNull SessionCloseListener listener)
+    {
+        synchronized (this.closeListeners) {
+            return this.closeListeners.remove(listener);
+        }
+    }
+
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "Session{" +
+                "sessionId=" + sessionId +
+                ", address=" + address +
+                '}';
+    }
+
+
+
+    /* --------------------------- Server Thread --------------------------- */
+
+    /**
+     * Registers the channel of this session on the server selector.
+     *
+     * @param key the selection key of this session.
+     */
+    void setKey(@NonNull SelectionKey key) {
+        this.key = key;
+    }
+
+
+    /**
+     * Reads the available commands of this session.
+     *
+     * @return false if the client closed the connection.
+     * @throws IOException if the read from the channel failed.
+     */
+    boolean read() throws IOException
+    {
+        this.readTime_ns = Tracer.isActive() ? System.nanoTime() : 0;
+        return this.reader.read();
+    }
+
+
+    /**
+     * Gets when the connection of this session started its last read, for tracing.
+     * Valid only on the thread that reads the connection, while it handles the read commands.
+     *
+     * @return the time as returned by {@link System#nanoTime()}, or zero if not traced.
+     */
+    long getReadTime() {
+        return this.connection.readTime_ns;
+    }
+
+
+    /**
+     * Checks if the client did not keep up with its messages,
+     * and should be disconnected by {@link OverflowPolicy#DISCONNECT} policy.
+     *
+     * @return true if the session should be closed.
+     */
+    boolean isOverflowed() {
+        return this.messageQueue.isOverflowed()
+                || (this.multiplexer != null && this.multiplexer.isOverflowed());
+    }
+
+
+    /**
+     * Takes the next message of the outbound queue.
+     *
+     * @return the next message, or null if the queue is empty.
+     */
+    @Nullable
+    String pollMessage() {
+        return this.messageQueue.getMessage();
+    }
+
+
+    /**
+     * Gets the number of messages in the outbound queue.
+     *
+     * @return the number of pending messages.
+     */
+    int getQueueSize() {
+        return this.messageQueue.getSize();
+    }
+
+
+    /**
+     * Gathers the scheduled messages into a single batch, and writes it to the channel.
+     * If not everything was written, asks the selector to notify when the channel is writable.
+     * <p>
+     * Batch that is not full and younger than the batch delay is held back,
+     * so messages that follow shortly are written together with it.
+     *
+     * @return nanoseconds until the held batch should be written,
+     *         or {@link #NO_FLUSH_DELAY} if nothing is held back.
+     * @throws IOException if the write to the channel failed.
+     */
+    long flush() throws IOException
+    {
+        // Take messages only while the batch has room, otherwise they wait
+        // in the queue, where the overflow policy bounds them.
+        while (this.writer.hasRoom())
+        {
+            // Answer the handshake as the last line, anything after it is framed.
+            if (this.binaryFramingRequested) {
+                this.binaryFramingRequested = false;
+                this.writer.addMessage(BinaryFraming.HANDSHAKE);
+                this.writer.setBinaryFraming(true);
+                this.binaryFraming = true;
+                continue;
+            }
+
+            // Heartbeat, stamped right when it is written
+            if (this.pongPending) {
+                this.pongPending = false;
+                this.writer.addPing(BinaryFraming.TYPE_PONG, this.pongTimestamp);
+                continue;
+            }
+
+            if (this.pingPending) {
+                this.pingPending = false;
+                long timestamp = System.nanoTime();
+                this.sentPings[this.sentPingCount++ % PING_WINDOW] = timestamp;
+                if (this.binaryFraming)
+                    this.writer.addPing(BinaryFraming.TYPE_PING, timestamp);
+                else
+                    this.writer.addMessage(PING + " " + timestamp);
+                continue;
+            }
+
+            // Answers of the server, e.g. SESSION tells the client where the replay starts
+            String reply = this.serverReplies.poll();
+            if (reply != null) {
+                this.writer.addMessage(reply);
+                continue;
+            }
+
+            // Multiplexed connection, the channels take turns
+            if (this.multiplexer != null) {
+                if (!this.multiplexer.addNext(this.writer)) break;
+                continue;
+            }
+
+            // Messages the client missed before it resumed, ahead of the new ones
+            if (this.replayBuffer != null) {
+                String replayed = this.replayBuffer.pollReplay();
+                if (replayed != null) {
+                    this.writer.addMessage(replayed);
+                    continue;
+                }
+            }
+
+            String message = this.messageQueue.getMessage();
+            if (message == null) break;
+
+            if (this.tracedCount > 0)
+                onMessageDequeued(message);
+
+            if (this.replayBuffer != null)
+                this.replayBuffer.add(message);
+
+            this.writer.addMessage(message);
+        }
+
+        if (!this.writer.hasPending())
+            return NO_FLUSH_DELAY;
+
+        // Small batch, give more messages the chance to join it
+        if (this.batchDelay_ns > 0 && this.writer.hasRoom())
+        {
+            long delay_ns = this.writer.getBatchStartTime() + this.batchDelay_ns - System.nanoTime();
+            if (delay_ns > 0) {
+                this.key.interestOps(SelectionKey.OP_READ);
+                return delay_ns;
+            }
+        }
+
+        boolean queued = this.messageQueue.getSize() > 0 || !this.serverReplies.isEmpty()
+                || this.pingPending || this.pongPending
+                || (this.multiplexer != null && this.multiplexer.hasQueued())
+                || (this.replayBuffer != null && this.replayBuffer.hasReplay());
+
+        boolean written = this.writer.flush();
+
+        // The followed replies left the process
+        if (written && !this.writingTraces.isEmpty()) {
+            for (Trace trace : this.writingTraces)
+                trace.stamp(TraceStage.WRITTEN);
+            this.writingTraces.clear();
+        }
+
+        if (written && !queued)
+            this.key.interestOps(SelectionKey.OP_READ);
+        else
+            this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+        return NO_FLUSH_DELAY;
+    }
+
+
+    /**
+     * Called by the reader when the client asks for binary framing.
+     * If the server allows it, the handshake is answered on the next flush,
+     * and the writer switches to frames right after the answer.
+     *
+     * @return true if the reader should switch to frames.
+     */
+    boolean requestBinaryFraming()
+    {
+        if (!this.commandServer.isBinaryFramingAllowed())
+            return false;
+
+        this.binaryFramingRequested = true;
+        return true;
+    }
+
+
+    /**
+     * Gets the token the client may resume this session with.
+     *
+     * @return the token, or null if the client did not ask for one.
+     */
+    @Nullable
+    String getResumeToken() {
+        return this.resumeToken;
+    }
+
+
+    /**
+     * Sets the token the client may resume this session with,
+     * from now on the written messages are kept for replay.
+     *
+     * @param resumeToken the token.
+     * @param replayCapacity the number of recent messages to keep.
+     */
+    void setResumeToken(@NonNull String resumeToken, int replayCapacity)
+    {
+        this.resumeToken = resumeToken;
+        this.replayBuffer = new ReplayBuffer(replayCapacity);
+    }
+
+
+    /**
+     * Checks if this session may wait for its client to resume, instead of closing
+     * when the connection is lost. Multiplexed connections are closed with their channels.
+     *
+     * @return true if the session can be detached.
+     */
+    boolean isResumable() {
+        return this.resumeToken != null && this.multiplexer == null
+                && this.channel == BinaryFraming.COMMAND_CHANNEL;
+    }
+
+
+    /**
+     * Schedules answer of the server itself, written before the pending messages.
+     *
+     * @param reply the answer.
+     */
+    void sendServerReply(@NonNull String reply)
+    {
+        this.serverReplies.add(reply);
+        requestFlush();
+    }
+
+
+    /**
+     * Starts heartbeat of line client, that asked for it.
+     * Binary framing clients get heartbeat frames without asking.
+     */
+    void startLineHeartbeat() {
+        this.lineHeartbeat = true;
+    }
+
+
+    /**
+     * Called by the server on every heartbeat, schedules ping to the client.
+     *
+     * @param maxMissed the number of pings the client may leave unanswered.
+     * @return false if the client did not answer the last pings, and should be disconnected.
+     */
+    boolean heartbeat(int maxMissed)
+    {
+        if (!this.binaryFraming && !this.lineHeartbeat)
+            return true;
+
+        if (this.missedHeartbeats >= maxMissed)
+            return false;
+
+        this.missedHeartbeats++;
+        this.pingPending = true;
+        return true;
+    }
+
+
+    /**
+     * Called when the client pings, the same timestamp is sent back.
+     *
+     * @param timestamp the timestamp of the client.
+     */
+    void onPing(long timestamp)
+    {
+        this.pongPending = true;
+        this.pongTimestamp = timestamp;
+    }
+
+
+    /**
+     * Called when the client answers ping, measures the round trip time.
+     * Only the answer to one of the latest pings counts, and only once, the pings before it
+     * are no longer answered either, so garbage or repeated pong neither keeps the client alive
+     * nor spoils the round trip time.
+     *
+     * @param timestamp the timestamp of the ping, as written by this session.
+     */
+    void onPong(long timestamp)
+    {
+        // Not one of our pings, or answered already
+        if (timestamp == 0 || !answerPing(timestamp))
+            return;
+
+        long rtt_ns = System.nanoTime() - timestamp;
+
+        this.missedHeartbeats = 0;
+        this.lastRoundTripTime_ns = rtt_ns;
+
+        long smoothed_ns = this.smoothedRoundTripTime_ns;
+        this.smoothedRoundTripTime_ns = smoothed_ns < 0 ? rtt_ns : smoothed_ns + (rtt_ns - smoothed_ns) / 8;
+
+        this.commandServer.onRoundTripTime(this, TimeUnit.NANOSECONDS.toMicros(rtt_ns));
+    }
+
+    /**
+     * Forgets the ping of the timestamp and the pings written before it.
+     *
+     * @return false if the timestamp is not of an unanswered ping.
+     */
+    private boolean answerPing(long timestamp)
+    {
+        boolean found = false;
+        for (long sent : this.sentPings) {
+            if (sent != 0 && sent == timestamp)
+                found = true;
+        }
+
+        if (!found)
+            return false;
+
+        for (int i = 0; i < PING_WINDOW; i++) {
+            if (this.sentPings[i] != 0 && this.sentPings[i] - timestamp <= 0)
+                this.sentPings[i] = 0;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Releases the lost connection, keeping the queue, the close listeners and everything
+     * that refers to this session, until the client resumes or the deadline passes.
+     *
+     * @param grace_ms how long to wait for the client to resume.
+     */
+    void detach(long grace_ms)
+    {
+        this.isDetached = true;
+        this.resumeDeadline_ns = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(grace_ms);
+
+        if (this.key != null) {
+            this.key.cancel();
+            try {
+                this.key.channel().close();
+            } catch (IOException ignored) { }
+        }
+
+        this.key = null;
+        this.reader = null;
+        this.writer = null;
+        this.binaryFramingRequested = false;
+
+        // Nothing of the old connection is relevant to the next one
+        this.serverReplies.clear();
+        this.pingPending = false;
+        this.pongPending = false;
+        Arrays.fill(this.sentPings, 0);
+    }
+
+
+    /**
+     * Gets the time the detached session is closed, unless its client resumes.
+     *
+     * @return the deadline, by {@link System#nanoTime()}.
+     */
+    long getResumeDeadline() {
+        return this.resumeDeadline_ns;
+    }
+
+
+    /**
+     * Resumes detached session on the connection of another session.
+     * The other session is closed, and everything that arrives on its
+     * connection from now on belongs to this session.
+     *
+     * @param connection the new session of the client, that asked to resume.
+     * @param received the number of messages the client received, or negative if unknown.
+     * @return the number of the first message that is written again.
+     */
+    long resume(@NonNull Session connection, long received)
+    {
+        this.reader = connection.reader;
+        this.writer = connection.writer;
+        this.key = connection.key;
+        this.address = connection.address;
+        this.binaryFramingRequested = connection.binaryFramingRequested;
+        this.binaryFraming = connection.binaryFraming;
+        this.lineHeartbeat = connection.lineHeartbeat;
+        this.missedHeartbeats = 0;
+        this.socketSettings = connection.socketSettings;
+
+        this.reader.setSession(this);
+        this.key.attach(this);
+
+        // The new session leaves without its connection
+        connection.reader = null;
+        connection.writer = null;
+        connection.key = null;
+        connection.close();
+
+        this.isDetached = false;
+        return this.replayBuffer.startReplay(received);
+    }
+
+
+    /**
+     * Checks if commands may arrive on a channel of this connection.
+     *
+     * @param channel the channel of the frame.
+     * @return true if the server has the channel.
+     */
+    boolean hasChannel(int channel) {
+        return this.commandServer.getChannelBinding(channel) != null;
+    }
+
+
+    /**
+     * Called by the reader for commands that arrived on channel other than the command channel.
+     *
+     * @param channel the channel the command arrived on.
+     * @param command the command that was received.
+     */
+    void onChannelCommand(int channel, @NonNull CommandLine command)
+    {
+        if (this.multiplexer == null)
+            this.multiplexer = new ChannelMultiplexer(this);
+
+        this.multiplexer.onCommand(channel, command);
+    }
+
+
+    /**
+     * Closes the connection, drops the pending messages, and informs the close listeners.
+     * Closing multiplexed connection closes all its channels.
+     */
+    void close()
+    {
+        SessionCloseListener[] listeners;
+
+        synchronized (this.closeListeners) {
+            if (this.isClosed)
+                return;
+
+            this.isClosed = true;
+
+            listeners = this.closeListeners.toArray(new SessionCloseListener[0]);
+            this.closeListeners.clear();
+        }
+
+        if (this.key != null) {
+            this.key.cancel();
+            try {
+                this.key.channel().close();
+            } catch (IOException ignored) { }
+        }
+
+        // Nothing in the queue is relevant to any other client
+        while (this.messageQueue.getMessage() != null);
+
+        if (this.multiplexer != null)
+            this.multiplexer.close();
+
+        for (SessionCloseListener listener : listeners)
+            listener.onSessionClosed(this);
+    }
+}
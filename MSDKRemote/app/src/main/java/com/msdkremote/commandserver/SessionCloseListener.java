@@ -0,0 +1,17 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Listener on a session closing.
+ */
+public interface SessionCloseListener
+{
+    /**
+     * Called once the connection of the session is closed.
+     * Messages sent on the session from now on are discarded.
+     *
+     * @param session the session that was closed.
+     */
+    public void onSessionClosed(@NonNull Session session);
+}
@@ -0,0 +1,119 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.msdkremote.metrics.Gauge;
+import com.msdkremote.metrics.MetricsRegistry;
+
+/**
+ * Gauges of the socket options in use by the last client of a server, registered as
+ * {@code <name>.socket_nodelay}, {@code socket_keepalive}, {@code socket_send_buffer},
+ * {@code socket_receive_buffer} and {@code socket_dscp}, see {@link SocketSettings}.
+ * The flags read as 1 or 0, and every gauge reads -1 until a client connected.
+ */
+public abstract class SocketGauges
+{
+    private final String name;
+
+    private final Gauge tcpNoDelay;
+    private final Gauge keepAlive;
+    private final Gauge sendBufferSize;
+    private final Gauge receiveBufferSize;
+    private final Gauge dscp;
+
+
+    /**
+     * @param name the prefix of the gauges, e.g. {@code query} for {@code query.socket_dscp}.
+     */
+    public SocketGauges(@NonNull String name)
+    {
+        this.name = name;
+
+        this.tcpNoDelay = new Gauge() {
+            @Override
+            public long getValue()
+            {
+                SocketSettings settings = getSettings();
+                return settings == null ? -1 : settings.isTcpNoDelay() ? 1 : 0;
+            }
+        };
+
+        this.keepAlive = new Gauge() {
+            @Override
+            public long getValue()
+            {
+                SocketSettings settings = getSettings();
+                return settings == null ? -1 : settings.isKeepAlive() ? 1 : 0;
+            }
+        };
+
+        this.sendBufferSize = new Gauge() {
+            @Override
+            public long getValue()
+            {
+                SocketSettings settings = getSettings();
+                return settings == null ? -1 : settings.getSendBufferSize();
+            }
+        };
+
+        this.receiveBufferSize = new Gauge() {
+            @Override
+            public long getValue()
+            {
+                SocketSettings settings = getSettings();
+                return settings == null ? -1 : settings.getReceiveBufferSize();
+            }
+        };
+
+        this.dscp = new Gauge() {
+            @Override
+            public long getValue()
+            {
+                SocketSettings settings = getSettings();
+                if (settings == null || settings.getTrafficClass() < 0)
+                    return -1;
+
+                return settings.getTrafficClass() >> 2;
+            }
+        };
+    }
+
+
+    /**
+     * Gets the socket options of the last client, called whenever the gauges are read,
+     * so it should not block.
+     *
+     * @return the socket settings, or null if no client connected yet.
+     */
+    @Nullable
+    protected abstract SocketSettings getSettings();
+
+
+    /**
+     * Registers the gauges, called when the server starts.
+     */
+    public void register()
+    {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        registry.gauge(this.name + ".socket_nodelay", this.tcpNoDelay);
+        registry.gauge(this.name + ".socket_keepalive", this.keepAlive);
+        registry.gauge(this.name + ".socket_send_buffer", this.sendBufferSize);
+        registry.gauge(this.name + ".socket_receive_buffer", this.receiveBufferSize);
+        registry.gauge(this.name + ".socket_dscp", this.dscp);
+    }
+
+
+    /**
+     * Removes the gauges, called when the server stops.
+     */
+    public void remove()
+    {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        registry.removeGauge(this.name + ".socket_nodelay", this.tcpNoDelay);
+        registry.removeGauge(this.name + ".socket_keepalive", this.keepAlive);
+        registry.removeGauge(this.name + ".socket_send_buffer", this.sendBufferSize);
+        registry.removeGauge(this.name + ".socket_receive_buffer", this.receiveBufferSize);
+        registry.removeGauge(this.name + ".socket_dscp", this.dscp);
+    }
+}
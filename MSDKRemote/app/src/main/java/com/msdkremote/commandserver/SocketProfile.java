@@ -0,0 +1,126 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Socket options that are applied to every accepted client, by the kind of traffic of the server.
+ * <p>
+ * The options are best effort, option that the platform refuses is left as is,
+ * and the values that are actually in use can be read back by {@link #apply(Socket)}.
+ * The traffic class is the DSCP shifted left by two, as on the IP header.
+ */
+public enum SocketProfile
+{
+    /**
+     * Leave all the options as the platform sets them.
+     */
+    DEFAULT(false, false, 0, 0, -1),
+
+    /**
+     * Small commands and their acknowledges, e.g. the stick values of the control.
+     * No Nagle delay, and small buffers so a late command does not wait behind old ones.
+     * Marked as expedited forwarding (DSCP 46).
+     */
+    INTERACTIVE(true, true, 32 * 1024, 32 * 1024, 46 << 2),
+
+    /**
+     * Many small replies and updates, e.g. the query keys.
+     * No Nagle delay, with buffer that holds burst of updates.
+     * Marked as low latency data (DSCP 18, AF21).
+     */
+    TELEMETRY(true, true, 64 * 1024, 32 * 1024, 18 << 2),
+
+    /**
+     * Stream of large frames, e.g. the video.
+     * Large send buffer for the key frames, without Nagle delay on the tail of every frame.
+     * Marked as interactive video (DSCP 34, AF41).
+     */
+    BULK_VIDEO(true, true, 256 * 1024, 16 * 1024, 34 << 2);
+
+
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+
+    // Zero leaves the buffer size of the platform
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+
+    // Negative leaves the traffic class of the platform
+    private final int trafficClass;
+
+
+    SocketProfile(boolean tcpNoDelay, boolean keepAlive,
+                  int sendBufferSize, int receiveBufferSize, int trafficClass)
+    {
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.trafficClass = trafficClass;
+    }
+
+
+    /**
+     * Applies the options that must be set before the server socket is bound.
+     * The receive buffer is inherited by the accepted sockets, and only before bind
+     * it may be large enough to need window scaling.
+     *
+     * @param serverSocket the server socket, not yet bound.
+     */
+    public void applyToServer(@NonNull ServerSocket serverSocket)
+    {
+        if (this.receiveBufferSize <= 0)
+            return;
+
+        try {
+            serverSocket.setReceiveBufferSize(this.receiveBufferSize);
+        } catch (SocketException ignored) { }
+    }
+
+
+    /**
+     * Applies the options to accepted client socket.
+     * Every option is applied on its own, so option the platform refuses does not stop the others.
+     *
+     * @param socket the socket of the client.
+     * @return the values that are in use after applying the options.
+     */
+    @NonNull
+    public SocketSettings apply(@NonNull Socket socket)
+    {
+        if (this != DEFAULT)
+        {
+            try {
+                socket.setTcpNoDelay(this.tcpNoDelay);
+            } catch (SocketException ignored) { }
+
+            try {
+                socket.setKeepAlive(this.keepAlive);
+            } catch (SocketException ignored) { }
+
+            if (this.sendBufferSize > 0) {
+                try {
+                    socket.setSendBufferSize(this.sendBufferSize);
+                } catch (SocketException ignored) { }
+            }
+
+            if (this.receiveBufferSize > 0) {
+                try {
+                    socket.setReceiveBufferSize(this.receiveBufferSize);
+                } catch (SocketException ignored) { }
+            }
+
+            if (this.trafficClass >= 0) {
+                try {
+                    socket.setTrafficClass(this.trafficClass);
+                } catch (SocketException ignored) { }
+            }
+        }
+
+        return SocketSettings.read(this, socket);
+    }
+}
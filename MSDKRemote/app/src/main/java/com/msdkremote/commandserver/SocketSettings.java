@@ -0,0 +1,133 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.NonNull;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Snapshot of the options of a client socket, as the platform reports them
+ * after {@link SocketProfile} was applied. The platform may round the buffer sizes,
+ * e.g. Linux doubles them. An option it could not read is reported as false, or as -1.
+ */
+public class SocketSettings
+{
+    private final SocketProfile profile;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int trafficClass;
+
+
+    SocketSettings(@NonNull SocketProfile profile, boolean tcpNoDelay, boolean keepAlive,
+                   int sendBufferSize, int receiveBufferSize, int trafficClass)
+    {
+        this.profile = profile;
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.trafficClass = trafficClass;
+    }
+
+
+    /**
+     * Reads the options of a socket.
+     *
+     * @param profile the profile that was applied to the socket.
+     * @param socket the socket to read.
+     * @return the snapshot of the options.
+     */
+    @NonNull
+    static SocketSettings read(@NonNull SocketProfile profile, @NonNull Socket socket)
+    {
+        boolean tcpNoDelay = false;
+        boolean keepAlive = false;
+        int sendBufferSize = -1;
+        int receiveBufferSize = -1;
+        int trafficClass = -1;
+
+        // Every option on its own, so option the platform does not report does not hide the others
+        try {
+            tcpNoDelay = socket.getTcpNoDelay();
+        } catch (SocketException ignored) { }
+
+        try {
+            keepAlive = socket.getKeepAlive();
+        } catch (SocketException ignored) { }
+
+        try {
+            sendBufferSize = socket.getSendBufferSize();
+        } catch (SocketException ignored) { }
+
+        try {
+            receiveBufferSize = socket.getReceiveBufferSize();
+        } catch (SocketException ignored) { }
+
+        try {
+            trafficClass = socket.getTrafficClass();
+        } catch (SocketException ignored) { }
+
+        return new SocketSettings(profile, tcpNoDelay, keepAlive,
+                sendBufferSize, receiveBufferSize, trafficClass);
+    }
+
+
+    /**
+     * @return the profile that was applied to the socket.
+     */
+    @NonNull
+    public SocketProfile getProfile() {
+        return this.profile;
+    }
+
+    /**
+     * @return true if Nagle's algorithm is disabled.
+     */
+    public boolean isTcpNoDelay() {
+        return this.tcpNoDelay;
+    }
+
+    /**
+     * @return true if TCP keep alive probes are enabled.
+     */
+    public boolean isKeepAlive() {
+        return this.keepAlive;
+    }
+
+    /**
+     * @return the send buffer size in bytes.
+     */
+    public int getSendBufferSize() {
+        return this.sendBufferSize;
+    }
+
+    /**
+     * @return the receive buffer size in bytes.
+     */
+    public int getReceiveBufferSize() {
+        return this.receiveBufferSize;
+    }
+
+    /**
+     * @return the traffic class byte, the DSCP is its upper six bits.
+     */
+    public int getTrafficClass() {
+        return this.trafficClass;
+    }
+
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "SocketSettings{" +
+                "profile=" + profile +
+                ", tcpNoDelay=" + tcpNoDelay +
+                ", keepAlive=" + keepAlive +
+                ", sendBufferSize=" + sendBufferSize +
+                ", receiveBufferSize=" + receiveBufferSize +
+                ", dscp=" + (trafficClass < 0 ? -1 : trafficClass >> 2) +
+                '}';
+    }
+}
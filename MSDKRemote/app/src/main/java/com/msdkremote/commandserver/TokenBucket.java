@@ -0,0 +1,79 @@
+package com.msdkremote.commandserver;
+
+import androidx.annotation.IntRange;
+
+/**
+ * Token bucket, limiting the rate of requests while letting short bursts through.
+ * <p>
+ * The bucket holds up to {@code burst} tokens, and is refilled at {@code rate} tokens per second.
+ * Every request takes a token, and is refused once the bucket is empty.
+ * The refill is computed lazily on every take, so idle buckets cost nothing.
+ */
+public class TokenBucket
+{
+    private final double rate_per_ns;
+    private final double burst;
+
+    // Tokens left, as of the last refill time, by System.nanoTime()
+    private double tokens;
+    private long refillTime_ns;
+
+
+    /**
+     * Constructs full bucket.
+     *
+     * @param ratePerSecond the tokens added every second.
+     * @param burst the most tokens the bucket holds.
+     * @throws IllegalArgumentException if the rate or burst is not positive.
+     */
+    public TokenBucket(double ratePerSecond, @IntRange(from = 1) int burst)
+    {
+        if (!(ratePerSecond > 0) || burst < 1)
+            throw new IllegalArgumentException("Rate and burst must be positive.");
+
+        this.rate_per_ns = ratePerSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refillTime_ns = System.nanoTime();
+    }
+
+
+    /**
+     * Takes a token, if there is one.
+     *
+     * @return true if the request may go on, false if it should be refused.
+     */
+    public synchronized boolean tryTake()
+    {
+        refill();
+
+        if (this.tokens < 1)
+            return false;
+
+        this.tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Gets how long until the next token is available.
+     *
+     * @return time in milliseconds, 0 if a token is available now.
+     */
+    public synchronized long getWait_ms()
+    {
+        refill();
+
+        if (this.tokens >= 1)
+            return 0;
+
+        return (long) Math.ceil((1 - this.tokens) / this.rate_per_ns / 1e6);
+    }
+
+
+    private void refill()
+    {
+        long now_ns = System.nanoTime();
+        this.tokens = Math.min(this.burst, this.tokens + (now_ns - this.refillTime_ns) * this.rate_per_ns);
+        this.refillTime_ns = now_ns;
+    }
+}
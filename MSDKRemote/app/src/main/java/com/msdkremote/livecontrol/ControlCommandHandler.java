@@ -3,12 +3,36 @@ package com.msdkremote.livecontrol;
 import androidx.annotation.NonNull;
 
 import com.msdkremote.commandserver.CommandHandler;
-import com.msdkremote.commandserver.CommandServer;
+import com.msdkremote.commandserver.CommandLine;
+import com.msdkremote.commandserver.MessagePriority;
+import com.msdkremote.commandserver.Session;
+import com.msdkremote.metrics.Histogram;
+import com.msdkremote.metrics.MetricsRegistry;
+import com.msdkremote.metrics.Trace;
+import com.msdkremote.metrics.TraceStage;
+import com.msdkremote.metrics.Tracer;
 
 import dji.v5.common.error.IDJIError;
 
 class ControlCommandHandler implements CommandHandler
 {
+    // Commands
+    private static final String COMMAND_ENABLE = "enable";
+    private static final String COMMAND_DISABLE = "disable";
+    private static final String COMMAND_TAKEOFF = "takeoff";
+    private static final String COMMAND_LAND = "land";
+    private static final String COMMAND_RC = "rc";
+
+    // All the commands, to route them to this handler
+    static final String[] COMMANDS = {
+            COMMAND_ENABLE, COMMAND_DISABLE, COMMAND_TAKEOFF, COMMAND_LAND, COMMAND_RC };
+
+    // Time the SDK takes to answer the actions, and to take the sticks
+    private static final Histogram SDK_ACTION_TIME =
+            MetricsRegistry.getInstance().histogram("control.sdk_action_us");
+    private static final Histogram SDK_STICKS_TIME =
+            MetricsRegistry.getInstance().histogram("control.sdk_sticks_us");
+
     final private StickManager stickManager;
 
     public ControlCommandHandler(@NonNull StickManager stickManager)
@@ -17,104 +41,109 @@ class ControlCommandHandler implements CommandHandler
     }
 
     @Override
-    public void onCommand(@NonNull CommandServer commandServer, @NonNull String command)
+    public void onCommand(@NonNull Session session, @NonNull String command) {
+        onCommand(session, new CommandLine(command));
+    }
+
+
+    @Override
+    public void onCommand(@NonNull Session session, @NonNull CommandLine command)
     {
-        // Remove irrelevant spaces
-        command = command.toLowerCase().strip();
+        // The sticks arrive many times a second, so the command is read
+        // in place, and only the replies are strings.
+        if (command.tokenEqualsIgnoreCase(0, COMMAND_ENABLE))
+            stickManager.startStickManagement(replyCallback(session));
 
-        // Get first word of command
-        String commandWord;
-        if (command.indexOf(' ') >= 0)
-                commandWord = command.substring(0, command.indexOf(' '));
-        else
-                commandWord = command;
+        else if (command.tokenEqualsIgnoreCase(0, COMMAND_DISABLE))
+            stickManager.stopStickManagement(replyCallback(session));
+
+        else if (command.tokenEqualsIgnoreCase(0, COMMAND_TAKEOFF))
+            stickManager.takeoff(replyCallback(session));
 
-        // Divide the command for its types
-        switch (commandWord)
+        else if (command.tokenEqualsIgnoreCase(0, COMMAND_LAND))
+            stickManager.land(replyCallback(session));
+
+        else if (command.tokenEqualsIgnoreCase(0, COMMAND_RC))
         {
-            case "enable":
-                stickManager.startStickManagement(new ActionCallback() {
-                    @Override
-                    public void onSuccess() {
-                        commandServer.sendMessage("success");
-                    }
-
-                    @Override
-                    public void onFailure(@NonNull IDJIError error) {
-                        commandServer.sendMessage(error.toString());
-                    }
-                });
-                break;
-
-            case "disable":
-                stickManager.stopStickManagement(new ActionCallback() {
-                    @Override
-                    public void onSuccess() {
-                        commandServer.sendMessage("success");
-                    }
-
-                    @Override
-                    public void onFailure(@NonNull IDJIError error) {
-                        commandServer.sendMessage(error.toString());
-                    }
-                });
-                break;
-
-            case "takeoff":
-                stickManager.takeoff(new ActionCallback() {
-                    @Override
-                    public void onSuccess() {
-                        commandServer.sendMessage("success");
-                    }
-
-                    @Override
-                    public void onFailure(@NonNull IDJIError error) {
-                        commandServer.sendMessage(error.toString());
-                    }
-                });
-                break;
-
-            case "land":
-                stickManager.land(new ActionCallback() {
-                    @Override
-                    public void onSuccess() {
-                        commandServer.sendMessage("success");
-                    }
-
-                    @Override
-                    public void onFailure(@NonNull IDJIError error) {
-                        commandServer.sendMessage(error.toString());
-                    }
-                });
-                break;
-
-            case "rc":
-
-                final String[] values = command.split(" ");
-
-                if (values.length != 5) {
-                    commandServer.sendMessage("Illegal arguments: " + command);
-                    break;
-                }
+            if (command.getTokenCount() != 5) {
+                session.sendMessage("Illegal arguments: " + command, MessagePriority.INTERACTIVE);
+                return;
+            }
+
+            try {
+                float lh = command.parseFloatToken(1);
+                float lv = command.parseFloatToken(2);
+                float rh = command.parseFloatToken(3);
+                float rv = command.parseFloatToken(4);
+
+                Trace trace = Tracer.current();
+                if (trace != null)
+                    trace.stamp(TraceStage.SDK_CALL);
+
+                long start_ns = System.nanoTime();
+                stickManager.setSticks(lh, lv, rh, rv);
+                SDK_STICKS_TIME.recordSince(start_ns);
+
+                if (trace != null)
+                    trace.stamp(TraceStage.SDK_CALLBACK);
+
+                session.sendMessage("success", MessagePriority.INTERACTIVE);
+            }
+            catch (NumberFormatException ignored) {
+                session.sendMessage("Illegal arguments: " + command, MessagePriority.INTERACTIVE);
+            }
+        }
 
+        else
+        {
+            String commandWord = command.getTokenCount() > 0 ? command.getToken(0) : "";
+            session.sendMessage("Unknown command: " + commandWord, MessagePriority.INTERACTIVE);
+        }
+    }
+
+
+    /**
+     * Creates callback that answers the session once the SDK finished the action,
+     * and records the time it took, in the metrics and in the trace of the command if it is sampled.
+     *
+     * @param session the session to answer.
+     * @return the callback of the action.
+     */
+    @NonNull
+    private static ActionCallback replyCallback(@NonNull Session session)
+    {
+        final long start_ns = System.nanoTime();
+
+        final Trace trace = Tracer.current();
+        if (trace != null)
+            trace.stamp(TraceStage.SDK_CALL);
+
+        return new ActionCallback() {
+            @Override
+            public void onSuccess() {
+                SDK_ACTION_TIME.recordSince(start_ns);
+
+                Tracer.Scope scope = Tracer.resume(trace, TraceStage.SDK_CALLBACK);
                 try {
-                    float lh = Float.parseFloat(values[1].trim());
-                    float lv = Float.parseFloat(values[2].trim());
-                    float rh = Float.parseFloat(values[3].trim());
-                    float rv = Float.parseFloat(values[4].trim());
-
-                    stickManager.setSticks(lh, lv, rh, rv);
-                    commandServer.sendMessage("success");
-                    break;
+                    session.sendMessage("success", MessagePriority.INTERACTIVE);
                 }
-                catch (NumberFormatException ignored) {
-                    commandServer.sendMessage("Illegal arguments: " + command);
-                    break;
+                finally {
+                    scope.close();
                 }
+            }
 
-            default:
-                commandServer.sendMessage("Unknown command: " + commandWord);
-                break;
-        }
+            @Override
+            public void onFailure(@NonNull IDJIError error) {
+                SDK_ACTION_TIME.recordSince(start_ns);
+
+                Tracer.Scope scope = Tracer.resume(trace, TraceStage.SDK_CALLBACK);
+                try {
+                    session.sendMessage(error.toString(), MessagePriority.INTERACTIVE);
+                }
+                finally {
+                    scope.close();
+                }
+            }
+        };
     }
 }
@@ -2,9 +2,14 @@ package com.msdkremote.livecontrol;
 
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+
 import com.msdkremote.commandserver.CommandServer;
 import com.msdkremote.commandserver.CommandServerStateListener;
+import com.msdkremote.commandserver.Session;
+import com.msdkremote.commandserver.SocketProfile;
 import com.msdkremote.livecontrol.regularStickManager.RegularStickManager;
+import com.msdkremote.livemultiplex.MultiplexServerManager;
 
 import java.net.InetAddress;
 
@@ -63,8 +68,29 @@ public class ControlServerManager
         Log.i(TAG, "Starting new Control Server, port : " + port + ".");
         this.commandServer = new CommandServer(new commandServerStateListener(), port);
 
-        commandServer.addCommandHandler(new ControlCommandHandler(new RegularStickManager()));
+        // Clients may ask for length-prefixed frames instead of lines.
+        commandServer.setBinaryFramingAllowed(true);
+
+        // Notice dead links quickly, a stick stream must not go to a client that is gone.
+        commandServer.setHeartbeat(1000, 3);
+
+        // Control latency matters most, no Nagle delay on the tiny commands and acknowledges.
+        commandServer.setSocketProfile(SocketProfile.INTERACTIVE);
+
+        // Report the clients, commands and handler times under 'control'.
+        commandServer.setMetricsName("control");
+
+        // Route the commands by their verb, anything else is answered as unknown command.
+        ControlCommandHandler controlCommandHandler = new ControlCommandHandler(new RegularStickManager());
+
+        for (String command : ControlCommandHandler.COMMANDS)
+            commandServer.addCommandHandler(command, controlCommandHandler);
+
+        commandServer.addCommandHandler(controlCommandHandler);
         commandServer.startServer();
+
+        // Serve the control channel of the multiplexed port as well.
+        MultiplexServerManager.getInstance().setControlServer(this.commandServer);
     }
 
 
@@ -83,6 +109,7 @@ public class ControlServerManager
 
         // Stops control server
         Log.i(TAG, "Stop Control Server.");
+        MultiplexServerManager.getInstance().setControlServer(null);
         this.commandServer.removeAllCommandHandlers();
         this.commandServer.stopServer();
         this.commandServer = null;
@@ -165,5 +192,14 @@ public class ControlServerManager
                 }
             }
         }
+
+        @Override
+        public void onRoundTripTime(@NonNull Session session, long rtt_us) {
+            synchronized (ControlServerManager.this.StateListenerLock) {
+                if (ControlServerManager.this.stateListener != null) {
+                    ControlServerManager.this.stateListener.onRoundTripTime(session, rtt_us);
+                }
+            }
+        }
     }
 }
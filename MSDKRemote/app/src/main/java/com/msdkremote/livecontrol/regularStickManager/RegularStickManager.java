@@ -1,7 +1,5 @@
 package com.msdkremote.livecontrol.regularStickManager;
 
-import android.util.Log;
-
 import androidx.annotation.FloatRange;
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
@@ -9,6 +7,7 @@ import androidx.annotation.Nullable;
 
 import com.msdkremote.livecontrol.ActionCallback;
 import com.msdkremote.livecontrol.StickManager;
+import com.msdkremote.logging.AsyncLog;
 
 import dji.sdk.keyvalue.key.DJIActionKeyInfo;
 import dji.sdk.keyvalue.key.FlightControllerKey;
@@ -112,7 +111,7 @@ public class RegularStickManager implements StickManager
         int hStick = floatToSickValue(hValue);
         int vStick = floatToSickValue(vValue);
 
-        Log.i(this.TAG, "Right stick : " + hStick + ", " + vStick);
+        AsyncLog.v(this.TAG, "Left stick : {}, {}", hStick, vStick);
 
         lStick.setHorizontalPosition(hStick);
         lStick.setVerticalPosition(vStick);
@@ -131,7 +130,7 @@ public class RegularStickManager implements StickManager
         int hStick = floatToSickValue(hValue);
         int vStick = floatToSickValue(vValue);
 
-        Log.i(this.TAG, "Right stick : " + hStick + ", " + vStick);
+        AsyncLog.v(this.TAG, "Right stick : {}, {}", hStick, vStick);
 
         rStick.setHorizontalPosition(hStick);
         rStick.setVerticalPosition(vStick);
@@ -177,14 +176,14 @@ public class RegularStickManager implements StickManager
     @Override
     public void takeoff(@Nullable ActionCallback callback)
     {
-        Log.i(this.TAG, "takeoff");
+        AsyncLog.i(this.TAG, "takeoff");
         runAction(FlightControllerKey.KeyStartTakeoff, callback);
     }
 
     @Override
     public void land(@Nullable ActionCallback callback)
     {
-        Log.i(this.TAG, "land");
+        AsyncLog.i(this.TAG, "land");
         runAction(FlightControllerKey.KeyStartAutoLanding, callback);
     }
 }
@@ -0,0 +1,158 @@
+package com.msdkremote.livemultiplex;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.msdkremote.commandserver.CommandServer;
+import com.msdkremote.commandserver.SocketProfile;
+import com.msdkremote.livevideo.VideoServerManager;
+
+/**
+ * Single port that carries the video, control and query servers over one connection.
+ * <p>
+ * The client sends {@code FRAMING BINARY} as its first line, and from then on every
+ * frame is tagged with its channel. Commands on the control and query channels are
+ * handled by the control and query servers, and the video channel streams the frames
+ * once the client sends {@code OPEN} on it. The separate ports of the servers stay as they are.
+ */
+public class MultiplexServerManager
+{
+    // Logging TAG
+    private final String TAG = this.getClass().getSimpleName();
+
+    // The channels of the multiplexed connection
+    public static final int CHANNEL_CONTROL = 1;
+    public static final int CHANNEL_QUERY = 2;
+    public static final int CHANNEL_VIDEO = 3;
+
+    // Multiplex Server instance
+    private CommandServer multiplexServer = null;
+
+    // The servers the channels are bound to, kept while the multiplex server is down
+    private CommandServer controlServer = null;
+    private CommandServer queryServer = null;
+
+
+    /* ------------------- Singleton ------------------- */
+
+    // Multiplex Server Manager instance - singleton
+    private static MultiplexServerManager instance = null;
+
+    private MultiplexServerManager() {
+        Log.i(TAG, "MultiplexServer was created for the first time!");
+    }
+
+    /**
+     * Get instance of MultiplexServerManager
+     *
+     * @return single instance of MultiplexServerManager
+     */
+    public static synchronized MultiplexServerManager getInstance()
+    {
+        if (instance == null)
+            instance = new MultiplexServerManager();
+
+        return instance;
+    }
+
+
+
+    /* ------------------- Server Control ------------------- */
+
+    /**
+     * Initiate MultiplexServer on specific port.
+     *
+     * @param port port number used by server.
+     */
+    public synchronized void startServer(int port)
+    {
+        // Check if server already running
+        if (this.multiplexServer != null) {
+            Log.w(TAG, "Multiplex Server already running.");
+            return;
+        }
+
+        // Opens new server
+        Log.i(TAG, "Starting new Multiplex Server, port : " + port + ".");
+        this.multiplexServer = new CommandServer(null, port);
+
+        // Channels exist only on frames.
+        multiplexServer.setBinaryFramingAllowed(true);
+
+        // Ping the client, a single dead link would otherwise hold all the channels.
+        multiplexServer.setHeartbeat(1000, 3);
+
+        // The control shares this connection, so it is tuned for the control.
+        multiplexServer.setSocketProfile(SocketProfile.INTERACTIVE);
+
+        // Report the connections under 'multiplex', the channel commands are reported by their servers.
+        multiplexServer.setMetricsName("multiplex");
+
+        // Bind the channels, the servers that are not running are bound once they start.
+        bindChannel(CHANNEL_CONTROL, this.controlServer);
+        bindChannel(CHANNEL_QUERY, this.queryServer);
+        multiplexServer.setChannel(CHANNEL_VIDEO, VideoServerManager.getInstance().getChannelSource());
+
+        multiplexServer.startServer();
+    }
+
+
+    /**
+     * Stops the MultiplexServer.
+     *
+     * @throws InterruptedException if current thread was interrupted mid waiting.
+     */
+    public synchronized void killServer() throws InterruptedException
+    {
+        // Check if server already terminated
+        if (this.multiplexServer == null) {
+            Log.w(TAG, "Multiplex Server already closed.");
+            return;
+        }
+
+        // Stops multiplex server
+        Log.i(TAG, "Stop Multiplex Server.");
+        this.multiplexServer.stopServer();
+        this.multiplexServer = null;
+    }
+
+
+    /* ------------------- Channels ------------------- */
+
+    /**
+     * Sets the server of the control channel, called by the control server manager.
+     *
+     * @param server the running control server, or null if it stopped.
+     */
+    public synchronized void setControlServer(@Nullable CommandServer server)
+    {
+        this.controlServer = server;
+        bindChannel(CHANNEL_CONTROL, server);
+    }
+
+
+    /**
+     * Sets the server of the query channel, called by the query server manager.
+     *
+     * @param server the running query server, or null if it stopped.
+     */
+    public synchronized void setQueryServer(@Nullable CommandServer server)
+    {
+        this.queryServer = server;
+        bindChannel(CHANNEL_QUERY, server);
+    }
+
+
+    // Binds channel of the running multiplex server, or removes it if there is no server.
+    private void bindChannel(int channel, @Nullable CommandServer server)
+    {
+        if (this.multiplexServer == null)
+            return;
+
+        if (server == null)
+            this.multiplexServer.removeChannel(channel);
+        else
+            this.multiplexServer.setChannel(channel, server);
+    }
+}
@@ -0,0 +1,22 @@
+package com.msdkremote.livequery;
+
+/**
+ * Class of query command, each rate limited on its own, see {@link QueryCommandHandler#setRateLimit}.
+ */
+public enum CommandClass
+{
+    /**
+     * Reading a value from the aircraft - 'GET'.
+     */
+    READ,
+
+    /**
+     * Changing the aircraft - 'SET' and 'ACTION'.
+     */
+    WRITE,
+
+    /**
+     * Subscribing to values - 'LISTEN' and 'UNLISTEN'.
+     */
+    LISTEN
+}
@@ -3,7 +3,14 @@ package com.msdkremote.livequery;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.msdkremote.commandserver.CommandServer;
+import com.msdkremote.commandserver.MessagePriority;
+import com.msdkremote.commandserver.Session;
+import com.msdkremote.metrics.Counter;
+import com.msdkremote.metrics.Histogram;
+import com.msdkremote.metrics.MetricsRegistry;
+import com.msdkremote.metrics.Trace;
+import com.msdkremote.metrics.TraceStage;
+import com.msdkremote.metrics.Tracer;
 
 import dji.sdk.keyvalue.converter.DJIValueConverter;
 import dji.sdk.keyvalue.converter.IDJIValueConverter;
@@ -28,8 +35,24 @@ public class KeyItem<Param, Result>
     // return this string to show the operation wasn't made.
     public static final String UNSUCCESSFUL_CAST = "could not cast parameter";
 
+    // Whenever the operation was refused as the server is overloaded,
+    // return this string to show the operation wasn't made, and may be retried.
+    public static final String BUSY_MESSAGE = "busy";
+
+    // Bound on the SDK calls in flight, shared by all the keys
+    private static final SdkCallLimiter SDK_CALLS = SdkCallLimiter.getInstance();
+
+    // Time from the request to the SDK until its callback, and the requests it failed
+    private static final Histogram SDK_GET_TIME = MetricsRegistry.getInstance().histogram("query.sdk_get_us");
+    private static final Histogram SDK_SET_TIME = MetricsRegistry.getInstance().histogram("query.sdk_set_us");
+    private static final Histogram SDK_ACTION_TIME = MetricsRegistry.getInstance().histogram("query.sdk_action_us");
+    private static final Counter SDK_FAILURES = MetricsRegistry.getInstance().counter("query.sdk_failures");
+    private static final Counter LISTEN_UPDATES = MetricsRegistry.getInstance().counter("query.listen_updates");
+    private static final Counter SDK_BUSY = MetricsRegistry.getInstance().counter("query.sdk_busy");
+
     @NonNull private final String moduleName;
     @NonNull private final String keyName;
+    @NonNull private final String presentingName;
 
     @NonNull private final DJIKeyInfo<Param> keyInfo;
     @Nullable private final DJIActionKeyInfo<Param, Result> ActionKeyInfo;
@@ -46,6 +69,7 @@ public class KeyItem<Param, Result>
         this.keyInfo = keyInfo;
         this.moduleName = moduleName;
         this.keyName = keyInfo.getIdentifier();
+        this.presentingName = moduleName + " " + this.keyName;
 
         if (keyInfo instanceof DJIActionKeyInfo)
             this.ActionKeyInfo = (DJIActionKeyInfo<Param, Result>) keyInfo;
@@ -87,7 +111,7 @@ public class KeyItem<Param, Result>
      */
     @NonNull
     public String getPresentingName() {
-        return this.moduleName + " " + this.keyName;
+        return this.presentingName;
     }
 
 
@@ -116,28 +140,169 @@ public class KeyItem<Param, Result>
 
 
     /**
-     * Send message on associated CommandServer, with this KeyInfo identifier.
+     * Stamps the trace of the current request, if it is sampled, as it is given to the SDK.
+     * The SDK calls back on its own thread, where the trace is resumed.
+     *
+     * @return the trace of the current request, or null.
+     */
+    @Nullable
+    private static Trace traceSdkCall()
+    {
+        Trace trace = Tracer.current();
+        if (trace != null)
+            trace.stamp(TraceStage.SDK_CALL);
+
+        return trace;
+    }
+
+
+    /**
+     * Takes a permit for an SDK call, or answers the request as busy.
+     * The permit must be released by the callback of the call,
+     * or by {@link #sdkCallThrew(Session, String, SdkCallLimiter.Permit, RuntimeException)}.
+     *
+     * @param session the session to answer on.
+     * @param prefix the identifier of the reply, see {@link #getReplyPrefix(String)}.
+     * @return the permit of the call, or null if the call may not be made.
+     */
+    @Nullable
+    private SdkCallLimiter.Permit acquireSdkCall(@NonNull Session session, @NonNull String prefix)
+    {
+        SdkCallLimiter.Permit permit = SDK_CALLS.tryAcquire();
+        if (permit != null)
+            return permit;
+
+        SDK_BUSY.increment();
+        sendMessage(session, prefix, BUSY_MESSAGE);
+        return null;
+    }
+
+
+    /**
+     * Answers an SDK call that threw instead of taking its callback, and returns its permit,
+     * as no callback is going to return it.
+     *
+     * @param session the session to answer on.
+     * @param prefix the identifier of the reply, see {@link #getReplyPrefix(String)}.
+     * @param permit the permit of the call.
+     * @param e what the SDK threw.
+     */
+    private void sdkCallThrew(
+            @NonNull Session session,
+            @NonNull String prefix,
+            @NonNull SdkCallLimiter.Permit permit,
+            @NonNull RuntimeException e)
+    {
+        permit.release();
+        SDK_FAILURES.increment();
+        sendMessage(session, prefix, e.toString());
+    }
+
+
+    /**
+     * Get the identifier the replies of a request start with.
+     * Without request id, it is the representing name of this key,
+     * otherwise the request id is added before it, so the client
+     * can match the reply to its request.
+     *
+     * @param requestId the id the client gave the request, or null.
+     * @return the prefix of the replies.
+     */
+    @NonNull
+    private String getReplyPrefix(@Nullable String requestId)
+    {
+        if (requestId == null)
+            return this.presentingName;
+
+        return requestId + " " + this.presentingName;
+    }
+
+
+    /**
+     * Send message on associated Session, with the reply identifier.
      *
-     * @param server server of the communication.
+     * @param session session of the communication.
+     * @param prefix the identifier of the reply, see {@link #getReplyPrefix(String)}.
      * @param message the string to send.
      */
-    private void sendMessage(@NonNull CommandServer server, @NonNull String message) {
-        server.sendMessage(this.getPresentingName() + " " + message);
+    private void sendMessage(
+            @NonNull Session session,
+            @NonNull String prefix,
+            @NonNull String message)
+    {
+        sendMessage(session, prefix, message, MessagePriority.INTERACTIVE);
     }
 
 
     /**
-     * Send message on associated CommandServer, represented as object.
+     * Send message on associated Session, with the reply identifier.
      *
-     * @param server server of the communication.
+     * @param session session of the communication.
+     * @param prefix the identifier of the reply, see {@link #getReplyPrefix(String)}.
+     * @param message the string to send.
+     * @param priority the class of the message.
+     */
+    private void sendMessage(
+            @NonNull Session session,
+            @NonNull String prefix,
+            @NonNull String message,
+            @NonNull MessagePriority priority)
+    {
+        session.sendMessage(prefix + " " + message, priority);
+    }
+
+
+    /**
+     * Send the current value of this key on associated Session, as telemetry.
+     * If the session coalesces telemetry, pending value of the same prefix is replaced by this one.
+     *
+     * @param session session of the communication.
+     * @param prefix the identifier of the reply, see {@link #getReplyPrefix(String)}.
+     * @param value the value to send.
+     */
+    private void sendValue(
+            @NonNull Session session,
+            @NonNull String prefix,
+            @Nullable Object value)
+    {
+        session.sendMessage(prefix + " " + value, MessagePriority.TELEMETRY, prefix);
+    }
+
+
+    /**
+     * Send message on associated Session, represented as object.
+     *
+     * @param session session of the communication.
+     * @param prefix the identifier of the reply, see {@link #getReplyPrefix(String)}.
      * @param objectMessage the object to send.
      */
-    private void sendMessage(@NonNull CommandServer server, @Nullable Object objectMessage)
+    private void sendMessage(
+            @NonNull Session session,
+            @NonNull String prefix,
+            @Nullable Object objectMessage)
+    {
+        sendMessage(session, prefix, objectMessage, MessagePriority.INTERACTIVE);
+    }
+
+
+    /**
+     * Send message on associated Session, represented as object.
+     *
+     * @param session session of the communication.
+     * @param prefix the identifier of the reply, see {@link #getReplyPrefix(String)}.
+     * @param objectMessage the object to send.
+     * @param priority the class of the message.
+     */
+    private void sendMessage(
+            @NonNull Session session,
+            @NonNull String prefix,
+            @Nullable Object objectMessage,
+            @NonNull MessagePriority priority)
     {
         if (objectMessage == null)
-            sendMessage(server, "null");
+            sendMessage(session, prefix, "null", priority);
         else
-            sendMessage(server, objectMessage.toString());
+            sendMessage(session, prefix, objectMessage.toString(), priority);
     }
 
 
@@ -200,105 +365,152 @@ public class KeyItem<Param, Result>
 
 
     /**
-     * Command 'GET' on this KeyInfo, and return the message over CommandServer.
+     * Command 'GET' on this KeyInfo, and return the message over Session.
      * This command is asynchronous.
      *
-     * @param server the server to return the command output over.
+     * @param session the session to return the command output over.
+     * @param requestId the id the client gave this request, echoed in the replies, or null.
      */
-    public void commandGet(@NonNull CommandServer server)
+    public void commandGet(@NonNull Session session, @Nullable String requestId)
     {
+        final String prefix = getReplyPrefix(requestId);
+
         // Check if 'GET' is permitted for this KeyInfo.
         if (!keyInfo.isCanGet())
         {
-            sendMessage(server, "Cannot command 'GET' on key.");
+            sendMessage(session, prefix, "Cannot command 'GET' on key.");
             return;
         }
 
-        // Register getValue to KeyManager, and return the answer over the CommandServer.
-        KeyManager.getInstance().getValue(
-                DJIKey.create(keyInfo),
-                new CommonCallbacks.CompletionCallbackWithParam<Param>()
-                {
-                    @Override
-                    public void onSuccess(Param param)
-                    {
-                        sendMessage(server, param);
-                    }
+        // Register getValue to KeyManager, and return the answer over the Session.
+        final SdkCallLimiter.Permit permit = acquireSdkCall(session, prefix);
+        if (permit == null) return;
 
-                    @Override
-                    public void onFailure(@NonNull IDJIError idjiError)
+        final long start_ns = System.nanoTime();
+        final Trace trace = traceSdkCall();
+        try {
+            KeyManager.getInstance().getValue(
+                    DJIKey.create(keyInfo),
+                    new CommonCallbacks.CompletionCallbackWithParam<Param>()
                     {
-                        sendMessage(server, idjiError);
+                        @Override
+                        public void onSuccess(Param param)
+                        {
+                            permit.release();
+                            SDK_GET_TIME.recordSince(start_ns);
+
+                            Tracer.Scope scope = Tracer.resume(trace, TraceStage.SDK_CALLBACK);
+                            try {
+                                sendMessage(session, prefix, param);
+                            }
+                            finally {
+                                scope.close();
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(@NonNull IDJIError idjiError)
+                        {
+                            permit.release();
+                            SDK_GET_TIME.recordSince(start_ns);
+                            SDK_FAILURES.increment();
+
+                            Tracer.Scope scope = Tracer.resume(trace, TraceStage.SDK_CALLBACK);
+                            try {
+                                sendMessage(session, prefix, idjiError);
+                            }
+                            finally {
+                                scope.close();
+                            }
+                        }
                     }
-                }
-        );
+            );
+        }
+        catch (RuntimeException e) {
+            sdkCallThrew(session, prefix, permit, e);
+        }
     }
 
 
     /**
-     * Command 'LISTEN' on this KeyInfo, and return the message over CommandServer.
+     * Command 'LISTEN' on this KeyInfo, and return the message over Session.
      * This command is asynchronous, and continuous while unlisten wasn't called.
      *
-     * @param server the server to return the command output over.
+     * @param session the session to return the command output over.
+     * @param requestId the id the client gave this request, echoed in the replies, or null.
      */
-    public void commandListen(@NonNull CommandServer server)
+    public void commandListen(@NonNull Session session, @Nullable String requestId)
     {
+        final String prefix = getReplyPrefix(requestId);
+
         // Check if 'LISTEN' is permitted for this KeyInfo.
         if (!keyInfo.isCanListen())
         {
-            sendMessage(server, "Cannot command 'LISTEN' on key.");
+            sendMessage(session, prefix, "Cannot command 'LISTEN' on key.");
             return;
         }
 
-        // Register listen to KeyManager, and return the answer over the CommandServer.
+        // Register listen to KeyManager, and return the answer over the Session.
+        // The session is the holder, so the listener is removed once it is closed.
         KeyManager.getInstance().listen(
                 DJIKey.create(keyInfo),
-                KeysManager.getInstance(),
+                session,
                 new CommonCallbacks.KeyListener<Param>() {
                     @Override
                     public void onValueChange(@Nullable Param oldValue, @Nullable Param newValue) {
-                        sendMessage(server, newValue);
+                        LISTEN_UPDATES.increment();
+                        sendValue(session, prefix, newValue);
                     }
                 }
         );
+        session.addCloseListener(KeysManager.getInstance());
     }
 
 
     /**
-     * Command 'UNLISTEN' on this KeyInfo, and return the message over CommandServer.
-     * This command is synchronous, remove all listeners for this key.
+     * Command 'UNLISTEN' on this KeyInfo, and return the message over Session.
+     * This command is synchronous, remove all listeners of this session for this key.
      *
-     * @param server the server to return the command output over.
+     * @param session the session to return the command output over.
+     * @param requestId the id the client gave this request, echoed in the replies, or null.
      */
-    public void commandUnlisten(@NonNull CommandServer server)
+    public void commandUnlisten(@NonNull Session session, @Nullable String requestId)
     {
+        final String prefix = getReplyPrefix(requestId);
+
         // Check if 'LISTEN' is permitted for this KeyInfo.
         if (!keyInfo.isCanListen())
         {
-            sendMessage(server, "Cannot command 'LISTEN' on key.");
+            sendMessage(session, prefix, "Cannot command 'LISTEN' on key.");
             return;
         }
 
-        // Removes all the listeners over this KeyInfo,
-        // and return the answer over the CommandServer.
-        KeyManager.getInstance().cancelListen(DJIKey.create(keyInfo));
-        sendMessage(server, SUCCESS_MESSAGE);
+        // Removes all the listeners of the session over this KeyInfo,
+        // and return the answer over the Session.
+        KeyManager.getInstance().cancelListen(DJIKey.create(keyInfo), session);
+        sendMessage(session, prefix, SUCCESS_MESSAGE);
     }
 
 
     /**
-     * Command 'SET' on this KeyInfo, and return the message over CommandServer.
+     * Command 'SET' on this KeyInfo, and return the message over Session.
      * This command is asynchronous.
      *
-     * @param server the server to return the answer on.
+     * @param session the session to return the answer on.
+     * @param requestId the id the client gave this request, echoed in the replies, or null.
      * @param parameter the parameter to set, in textual format.
      */
-    public void commandSet(@NonNull CommandServer server, @NonNull String parameter)
+    public void commandSet(
+            @NonNull Session session,
+            @Nullable String requestId,
+            @NonNull String parameter)
     {
+        final String prefix = getReplyPrefix(requestId);
+
         // Check if 'SET' is permitted for this KeyInfo.
         if (!keyInfo.isCanSet())
         {
-            sendMessage(server, "Cannot command 'SET' on key.");
+            sendMessage(session, prefix, "Cannot command 'SET' on key.");
             return;
         }
 
@@ -306,84 +518,151 @@ public class KeyItem<Param, Result>
         Param param = getParameter(parameter);
 
         if (param == null) {
-            sendMessage(server, UNSUCCESSFUL_CAST);
+            sendMessage(session, prefix, UNSUCCESSFUL_CAST);
             return;
         }
 
-        // Register the set, and return the answer over the CommandServer.
-        KeyManager.getInstance().setValue(
-                DJIKey.create(keyInfo),
-                param,
-                new CommonCallbacks.CompletionCallback() {
-                    @Override
-                    public void onSuccess() {
-                        sendMessage(server, SUCCESS_MESSAGE);
-                    }
+        // Register the set, and return the answer over the Session.
+        final SdkCallLimiter.Permit permit = acquireSdkCall(session, prefix);
+        if (permit == null) return;
+
+        final long start_ns = System.nanoTime();
+        final Trace trace = traceSdkCall();
+        try {
+            KeyManager.getInstance().setValue(
+                    DJIKey.create(keyInfo),
+                    param,
+                    new CommonCallbacks.CompletionCallback() {
+                        @Override
+                        public void onSuccess() {
+                            permit.release();
+                            SDK_SET_TIME.recordSince(start_ns);
+
+                            Tracer.Scope scope = Tracer.resume(trace, TraceStage.SDK_CALLBACK);
+                            try {
+                                sendMessage(session, prefix, SUCCESS_MESSAGE);
+                            }
+                            finally {
+                                scope.close();
+                            }
+                        }
 
-                    @Override
-                    public void onFailure(@NonNull IDJIError idjiError) {
-                        sendMessage(server, idjiError);
+                        @Override
+                        public void onFailure(@NonNull IDJIError idjiError) {
+                            permit.release();
+                            SDK_SET_TIME.recordSince(start_ns);
+                            SDK_FAILURES.increment();
+
+                            Tracer.Scope scope = Tracer.resume(trace, TraceStage.SDK_CALLBACK);
+                            try {
+                                sendMessage(session, prefix, idjiError);
+                            }
+                            finally {
+                                scope.close();
+                            }
+                        }
                     }
-                }
-        );
+            );
+        }
+        catch (RuntimeException e) {
+            sdkCallThrew(session, prefix, permit, e);
+        }
     }
 
 
     /**
      * Command 'ACTION' on this KeyInfo, without parameters,
-     * and return the message over CommandServer. <br>
+     * and return the message over Session. <br>
      * This command is synchronous.
      *
-     * @param server the server to return the command output over.
+     * @param session the session to return the command output over.
+     * @param requestId the id the client gave this request, echoed in the replies, or null.
      */
-    public void commandAction(@NonNull CommandServer server)
+    public void commandAction(@NonNull Session session, @Nullable String requestId)
     {
+        final String prefix = getReplyPrefix(requestId);
+
         // Check if 'ACTION' is permitted for this KeyInfo.
         if (!keyInfo.isCanPerformAction() || ActionKeyInfo == null)
         {
-            sendMessage(server, "Cannot command 'ACTION' on key.");
+            sendMessage(session, prefix, "Cannot command 'ACTION' on key.");
             return;
         }
 
-        // Register the action, and return the answer over the CommandServer.
-        KeyManager.getInstance().performAction(
-                DJIKey.create(ActionKeyInfo),
-                new CommonCallbacks.CompletionCallbackWithParam<Result>() {
-                    @Override
-                    public void onSuccess(Result result) {
-                        // If the result is empty message, signal success
-                        if (result instanceof EmptyMsg) {
-                            sendMessage(server, SUCCESS_MESSAGE);
-                        }
-                        // Else, return the original result
-                        else {
-                            sendMessage(server, result);
+        // Register the action, and return the answer over the Session.
+        final SdkCallLimiter.Permit permit = acquireSdkCall(session, prefix);
+        if (permit == null) return;
+
+        final long start_ns = System.nanoTime();
+        final Trace trace = traceSdkCall();
+        try {
+            KeyManager.getInstance().performAction(
+                    DJIKey.create(ActionKeyInfo),
+                    new CommonCallbacks.CompletionCallbackWithParam<Result>() {
+                        @Override
+                        public void onSuccess(Result result) {
+                            permit.release();
+                            SDK_ACTION_TIME.recordSince(start_ns);
+
+                            Tracer.Scope scope = Tracer.resume(trace, TraceStage.SDK_CALLBACK);
+                            try {
+                                // If the result is empty message, signal success
+                                if (result instanceof EmptyMsg) {
+                                    sendMessage(session, prefix, SUCCESS_MESSAGE);
+                                }
+                                // Else, return the original result
+                                else {
+                                    sendMessage(session, prefix, result);
+                                }
+                            }
+                            finally {
+                                scope.close();
+                            }
                         }
-                    }
 
-                    @Override
-                    public void onFailure(@NonNull IDJIError idjiError) {
-                        sendMessage(server, idjiError);
+                        @Override
+                        public void onFailure(@NonNull IDJIError idjiError) {
+                            permit.release();
+                            SDK_ACTION_TIME.recordSince(start_ns);
+                            SDK_FAILURES.increment();
+
+                            Tracer.Scope scope = Tracer.resume(trace, TraceStage.SDK_CALLBACK);
+                            try {
+                                sendMessage(session, prefix, idjiError);
+                            }
+                            finally {
+                                scope.close();
+                            }
+                        }
                     }
-                }
-        );
+            );
+        }
+        catch (RuntimeException e) {
+            sdkCallThrew(session, prefix, permit, e);
+        }
     }
 
 
     /**
      * Command 'ACTION' on this KeyInfo, with parameters,
-     * and return the message over CommandServer. <br>
+     * and return the message over Session. <br>
      * This command is synchronous.
      *
-     * @param server the server to return the command output over.
+     * @param session the session to return the command output over.
+     * @param requestId the id the client gave this request, echoed in the replies, or null.
      * @param parameter the parameter to action with, in textual format.
      */
-    public void commandAction(@NonNull CommandServer server, @NonNull String parameter)
+    public void commandAction(
+            @NonNull Session session,
+            @Nullable String requestId,
+            @NonNull String parameter)
     {
+        final String prefix = getReplyPrefix(requestId);
+
         // Check if 'ACTION' is permitted for this KeyInfo.
         if (!keyInfo.isCanPerformAction() || ActionKeyInfo == null)
         {
-            sendMessage(server, "Cannot command 'ACTION' on key.");
+            sendMessage(session, prefix, "Cannot command 'ACTION' on key.");
             return;
         }
 
@@ -391,33 +670,62 @@ public class KeyItem<Param, Result>
         Param param = getParameter(parameter);
 
         if (param == null) {
-            sendMessage(server, UNSUCCESSFUL_CAST);
+            sendMessage(session, prefix, UNSUCCESSFUL_CAST);
             return;
         }
 
-        // Register the action, and return the answer over the CommandServer.
-        KeyManager.getInstance().performAction(
-                DJIKey.create(ActionKeyInfo),
-                param,
-                new CommonCallbacks.CompletionCallbackWithParam<Result>() {
-                    @Override
-                    public void onSuccess(Result result) {
-                        // If the result is empty message, signal success
-                        if (result instanceof EmptyMsg) {
-                            sendMessage(server, SUCCESS_MESSAGE);
-                        }
-                        // Else, return the original result
-                        else {
-                            sendMessage(server, result);
+        // Register the action, and return the answer over the Session.
+        final SdkCallLimiter.Permit permit = acquireSdkCall(session, prefix);
+        if (permit == null) return;
+
+        final long start_ns = System.nanoTime();
+        final Trace trace = traceSdkCall();
+        try {
+            KeyManager.getInstance().performAction(
+                    DJIKey.create(ActionKeyInfo),
+                    param,
+                    new CommonCallbacks.CompletionCallbackWithParam<Result>() {
+                        @Override
+                        public void onSuccess(Result result) {
+                            permit.release();
+                            SDK_ACTION_TIME.recordSince(start_ns);
+
+                            Tracer.Scope scope = Tracer.resume(trace, TraceStage.SDK_CALLBACK);
+                            try {
+                                // If the result is empty message, signal success
+                                if (result instanceof EmptyMsg) {
+                                    sendMessage(session, prefix, SUCCESS_MESSAGE);
+                                }
+                                // Else, return the original result
+                                else {
+                                    sendMessage(session, prefix, result);
+                                }
+                            }
+                            finally {
+                                scope.close();
+                            }
                         }
-                    }
 
-                    @Override
-                    public void onFailure(@NonNull IDJIError idjiError) {
-                        sendMessage(server, idjiError);
+                        @Override
+                        public void onFailure(@NonNull IDJIError idjiError) {
+                            permit.release();
+                            SDK_ACTION_TIME.recordSince(start_ns);
+                            SDK_FAILURES.increment();
+
+                            Tracer.Scope scope = Tracer.resume(trace, TraceStage.SDK_CALLBACK);
+                            try {
+                                sendMessage(session, prefix, idjiError);
+                            }
+                            finally {
+                                scope.close();
+                            }
+                        }
                     }
-                }
-        );
+            );
+        }
+        catch (RuntimeException e) {
+            sdkCallThrew(session, prefix, permit, e);
+        }
     }
 
 
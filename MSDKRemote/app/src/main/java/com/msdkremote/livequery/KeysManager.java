@@ -2,6 +2,9 @@ package com.msdkremote.livequery;
 
 import androidx.annotation.NonNull;
 
+import com.msdkremote.commandserver.Session;
+import com.msdkremote.commandserver.SessionCloseListener;
+
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -18,7 +21,7 @@ import dji.sdk.keyvalue.key.ProductKey;
 import dji.sdk.keyvalue.key.RemoteControllerKey;
 import dji.v5.manager.KeyManager;
 
-public class KeysManager
+public class KeysManager implements SessionCloseListener
 {
 
     // Map keys name to their relative info
@@ -171,4 +174,15 @@ public class KeysManager
     {
         return getModuleMap(moduleName).keySet().toArray(new String[0]);
     }
+
+    /**
+     * Removes all the key listeners of a session that was closed,
+     * so values are not produced for a client that is gone.
+     *
+     * @param session the session that was closed.
+     */
+    @Override
+    public void onSessionClosed(@NonNull Session session) {
+        KeyManager.getInstance().cancelListen(session);
+    }
 }
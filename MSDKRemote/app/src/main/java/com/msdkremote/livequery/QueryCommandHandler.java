@@ -1,17 +1,28 @@
 package com.msdkremote.livequery;
 
+import androidx.annotation.FloatRange;
+import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.msdkremote.commandserver.CommandHandler;
-import com.msdkremote.commandserver.CommandServer;
+import com.msdkremote.commandserver.CommandLine;
+import com.msdkremote.commandserver.CommandOrdering;
+import com.msdkremote.commandserver.Session;
+import com.msdkremote.commandserver.SessionCloseListener;
+import com.msdkremote.commandserver.TokenBucket;
+import com.msdkremote.metrics.Counter;
+import com.msdkremote.metrics.MetricsRegistry;
+import com.msdkremote.metrics.Tracer;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import dji.sdk.keyvalue.key.DJIKeyInfo;
 
-public class QueryCommandHandler implements CommandHandler
+public class QueryCommandHandler implements CommandHandler, CommandOrdering, SessionCloseListener
 {
     // Commands
     private static final String COMMAND_GET = "GET";
@@ -20,9 +31,35 @@ public class QueryCommandHandler implements CommandHandler
     private static final String COMMAND_SET = "SET";
     private static final String COMMAND_ACTION = "ACTION";
     private static final String COMMAND_HELP = "HELP";
+    private static final String COMMAND_RTT = "RTT";
+    private static final String COMMAND_STATS = "STATS";
+    private static final String COMMAND_TRACE = "TRACE";
+
+    // Sub commands of TRACE
+    private static final String TRACE_DUMP = "DUMP";
+    private static final String TRACE_SAMPLE = "SAMPLE";
+    private static final String TRACE_CLEAR = "CLEAR";
+
+    // All the commands, to route them to this handler
+    static final String[] COMMANDS = {
+            COMMAND_GET, COMMAND_LISTEN, COMMAND_CANCEL_LISTEN,
+            COMMAND_SET, COMMAND_ACTION, COMMAND_HELP, COMMAND_RTT, COMMAND_STATS, COMMAND_TRACE };
+
+    // Optional request id, the word after the command that starts with this character
+    private static final char REQUEST_ID_MARK = '#';
+
+    // Commands refused as their client exceeded its rate
+    private static final Counter RATE_LIMITED = MetricsRegistry.getInstance().counter("query.rate_limited");
 
     private final KeysManager keysManager;
 
+    // Rate limit of every command class, by its ordinal, zero rate when the class is not limited
+    private final double[] ratesPerSecond = new double[CommandClass.values().length];
+    private final int[] bursts = new int[CommandClass.values().length];
+
+    // Token buckets of every session, by the ordinal of the command class
+    private final Map<Session, TokenBucket[]> buckets = new ConcurrentHashMap<>();
+
     // Initialize KeysManager
     public QueryCommandHandler() {
         this.keysManager = KeysManager.getInstance();
@@ -31,93 +68,320 @@ public class QueryCommandHandler implements CommandHandler
     /**
      * Handles command from the user.
      *
-     * @param commandServer the server from which this call was made.
+     * @param session the session from which this call was made.
      * @param command the command that was received.
      */
     @Override
-    public void onCommand(@NonNull CommandServer commandServer, @NonNull String command)
+    public void onCommand(@NonNull Session session, @NonNull String command) {
+        onCommand(session, new CommandLine(command));
+    }
+
+
+    /**
+     * Handles command from the user, reading it in place.
+     * <p>
+     * Every command may carry request id right after the command word,
+     * e.g. {@code GET #17 <module> <key>}. All the replies to such command,
+     * including the updates of LISTEN, start with the same id. The commands
+     * are not serialized, so client may send many of them without waiting,
+     * and match the replies by their ids.
+     *
+     * @param session the session from which this call was made.
+     * @param command the command that was received.
+     */
+    @Override
+    public void onCommand(@NonNull Session session, @NonNull CommandLine command)
     {
-        // Split command to words.
-        String[] words = command.split(" ", 4);
+        int words = command.getTokenCount();
+
+        // Optional request id, echoed in the replies.
+        int first = getFirstArgument(command);
+        String requestId = first > 1 ? command.getToken(1) : null;
 
-        // Command sub components.
-        String commandMethod = words[0];
-        String moduleName = words.length >= 2 ? words[1] : "";
-        String keyName = words.length >= 3 ? words[2] : "";
-        String param = words.length == 4 ? words[3] : "";
+        // Command sub components, the method is compared in place.
+        String moduleName = words > first ? command.getToken(first) : "";
+        String keyName = words > first + 1 ? command.getToken(first + 1) : "";
+        String param = command.getRemainder(first + 2);
 
         // If command is 'help', it can be parsed in several ways.
-        if (commandMethod.toUpperCase(Locale.ENGLISH).equals(COMMAND_HELP))
+        if (command.tokenEqualsIgnoreCase(0, COMMAND_HELP))
         {
             // 'help' without arguments - return list of modules
             if (moduleName.isEmpty())
-                commandHelp(commandServer);
+                commandHelp(session, requestId);
 
             // 'help <module>' - return keys inside the module.
             else if (keyName.isEmpty())
-                commandHelp(commandServer, moduleName);
+                commandHelp(session, requestId, moduleName);
 
             // 'help <module> <key>' - return description about the key.
             else
-                commandHelp(commandServer, moduleName, keyName);
+                commandHelp(session, requestId, moduleName, keyName);
 
             return;
         }
 
+        // Command - RTT [#<id>], the round trip time the heartbeat measured.
+        if (command.tokenEqualsIgnoreCase(0, COMMAND_RTT)) {
+            commandRoundTripTime(session, requestId);
+            return;
+        }
+
+        // Command - STATS [#<id>] [<prefix>], the metrics of the application.
+        if (command.tokenEqualsIgnoreCase(0, COMMAND_STATS)) {
+            reply(session, requestId,
+                    MetricsRegistry.getInstance().toLine(moduleName.isEmpty() ? null : moduleName));
+            return;
+        }
+
+        // Command - TRACE [#<id>] DUMP | CLEAR | SAMPLE <every>
+        if (command.tokenEqualsIgnoreCase(0, COMMAND_TRACE)) {
+            commandTrace(session, requestId, moduleName, keyName);
+            return;
+        }
+
+        // Refuse the command if the client exceeded the rate of its class, before looking up the key.
+        CommandClass commandClass = getCommandClass(command);
+        if (commandClass != null && !tryTakeToken(session, commandClass)) {
+            replyBusy(session, requestId, moduleName, keyName);
+            return;
+        }
+
         // Try to find the key by module name and key name.
-        KeyItem<?,?> keyItem = getKeyWithMessage(commandServer, moduleName, keyName);
+        KeyItem<?,?> keyItem = getKeyWithMessage(session, requestId, moduleName, keyName);
         if (keyItem == null) return;
 
-        switch (commandMethod.toUpperCase(Locale.ENGLISH))
-        {
-            // Command - GET <identifier> <module> <key>
-            case COMMAND_GET:
-                keyItem.commandGet(commandServer);
-                break;
-
-            // Command - LISTEN <identifier> <module> <key>
-            case COMMAND_LISTEN:
-                keyItem.commandListen(commandServer);
-                break;
-
-            // Command - UNLISTEN <identifier> <module> <key>
-            case COMMAND_CANCEL_LISTEN:
-                keyItem.commandUnlisten(commandServer);
-                break;
-
-            // Command - SET <identifier> <module> <key> <parameter>
-            case COMMAND_SET:
-                keyItem.commandSet(commandServer, param);
-                break;
-
-            // Command - ACTION <identifier> <module> <key>
-            // Command - ACTION <identifier> <module> <key> <parameter>
-            case COMMAND_ACTION:
-                if (param.isEmpty())
-                    keyItem.commandAction(commandServer);
-                else
-                    keyItem.commandAction(commandServer, param);
-                break;
+        // Command - GET [#<id>] <module> <key>
+        if (command.tokenEqualsIgnoreCase(0, COMMAND_GET))
+            keyItem.commandGet(session, requestId);
+
+        // Command - LISTEN [#<id>] <module> <key>
+        else if (command.tokenEqualsIgnoreCase(0, COMMAND_LISTEN))
+            keyItem.commandListen(session, requestId);
+
+        // Command - UNLISTEN [#<id>] <module> <key>
+        else if (command.tokenEqualsIgnoreCase(0, COMMAND_CANCEL_LISTEN))
+            keyItem.commandUnlisten(session, requestId);
+
+        // Command - SET [#<id>] <module> <key> <parameter>
+        else if (command.tokenEqualsIgnoreCase(0, COMMAND_SET))
+            keyItem.commandSet(session, requestId, param);
+
+        // Command - ACTION [#<id>] <module> <key>
+        // Command - ACTION [#<id>] <module> <key> <parameter>
+        else if (command.tokenEqualsIgnoreCase(0, COMMAND_ACTION)) {
+            if (param.isEmpty())
+                keyItem.commandAction(session, requestId);
+            else
+                keyItem.commandAction(session, requestId, param);
+        }
+
+        // Unknown command
+        else
+            reply(session, requestId, "Unknown command: " + command.getToken(0));
+    }
+
+
+    /**
+     * Gets the ordering key of a command, when the commands are dispatched to executor.
+     * Commands on the same key of the same session are handled in order,
+     * e.g. SET and then GET, while commands on different keys run side by side.
+     * Commands without key, like 'help', are kept in order per session.
+     * <p>
+     * The key is the session id and the hash of the module and key names, hashed in place,
+     * so no string is made for it. Keys of equal hash are kept in order together,
+     * which costs only some parallelism.
+     *
+     * @param session the session the command arrived on.
+     * @param command the command that was received.
+     * @return the ordering key.
+     */
+    @NonNull
+    @Override
+    public Object getOrderingKey(@NonNull Session session, @NonNull CommandLine command)
+    {
+        int first = getFirstArgument(command);
+
+        if (command.getTokenCount() < first + 2)
+            return session;
 
-            // Unknown command
-            default:
-                commandServer.sendMessage("Unknown command: " + commandMethod);
-                break;
+        int keyHash = 31 * command.tokenHashIgnoreCase(first) + command.tokenHashIgnoreCase(first + 1);
+        return ((long) session.getSessionId() << 32) | (keyHash & 0xFFFFFFFFL);
+    }
+
+
+    /**
+     * Limits the rate of a command class, per session. Sessions that exceed the rate
+     * are answered with {@link KeyItem#BUSY_MESSAGE} instead.
+     * Applies to sessions that send their first limited command from now on.
+     *
+     * @param commandClass the class of commands to limit.
+     * @param ratePerSecond the commands allowed every second, 0 to not limit.
+     * @param burst the commands allowed at once, after the client was idle.
+     */
+    public synchronized void setRateLimit(
+            @NonNull CommandClass commandClass,
+            @FloatRange(from = 0.0) double ratePerSecond,
+            @IntRange(from = 1) int burst)
+    {
+        if (!(ratePerSecond >= 0) || burst < 1)
+            throw new IllegalArgumentException("Rate cannot be negative, and burst must be positive.");
+
+        this.ratesPerSecond[commandClass.ordinal()] = ratePerSecond;
+        this.bursts[commandClass.ordinal()] = burst;
+    }
+
+
+    /**
+     * Takes a token from the bucket of the session for the command class.
+     * The buckets are created on the first command of the session, and removed once it is closed.
+     *
+     * @param session the session the command arrived on.
+     * @param commandClass the class of the command.
+     * @return true if the command may be handled.
+     */
+    private boolean tryTakeToken(@NonNull Session session, @NonNull CommandClass commandClass)
+    {
+        TokenBucket[] sessionBuckets = this.buckets.get(session);
+
+        if (sessionBuckets == null) {
+            sessionBuckets = createBuckets();
+
+            TokenBucket[] existing = this.buckets.putIfAbsent(session, sessionBuckets);
+            if (existing != null)
+                sessionBuckets = existing;
+            else
+                session.addCloseListener(this);
         }
+
+        TokenBucket bucket = sessionBuckets[commandClass.ordinal()];
+        if (bucket == null || bucket.tryTake())
+            return true;
+
+        RATE_LIMITED.increment();
+        return false;
+    }
+
+
+    /**
+     * Creates the token buckets of a new session, by the rate limits.
+     *
+     * @return buckets by the ordinal of the command class, null for class that is not limited.
+     */
+    @NonNull
+    private synchronized TokenBucket[] createBuckets()
+    {
+        TokenBucket[] sessionBuckets = new TokenBucket[this.ratesPerSecond.length];
+
+        for (int i = 0; i < sessionBuckets.length; i++)
+            if (this.ratesPerSecond[i] > 0)
+                sessionBuckets[i] = new TokenBucket(this.ratesPerSecond[i], this.bursts[i]);
+
+        return sessionBuckets;
+    }
+
+
+    /**
+     * Forgets the token buckets of a closed session.
+     *
+     * @param session the session that was closed.
+     */
+    @Override
+    public void onSessionClosed(@NonNull Session session) {
+        this.buckets.remove(session);
+    }
+
+
+    /**
+     * Gets the class of a command, for its rate limit.
+     *
+     * @param command the command that was received.
+     * @return the class, or null for commands that are not limited.
+     */
+    @Nullable
+    private static CommandClass getCommandClass(@NonNull CommandLine command)
+    {
+        if (command.tokenEqualsIgnoreCase(0, COMMAND_GET))
+            return CommandClass.READ;
+
+        if (command.tokenEqualsIgnoreCase(0, COMMAND_SET) || command.tokenEqualsIgnoreCase(0, COMMAND_ACTION))
+            return CommandClass.WRITE;
+
+        if (command.tokenEqualsIgnoreCase(0, COMMAND_LISTEN) || command.tokenEqualsIgnoreCase(0, COMMAND_CANCEL_LISTEN))
+            return CommandClass.LISTEN;
+
+        return null;
+    }
+
+
+    /**
+     * Gets the index of the first argument of a command,
+     * right after the command word and the optional request id.
+     *
+     * @param command the command that was received.
+     * @return 2 if the command has request id, 1 otherwise.
+     */
+    private int getFirstArgument(@NonNull CommandLine command)
+    {
+        if (command.getTokenCount() >= 2
+                && command.charAt(command.getTokenStart(1)) == REQUEST_ID_MARK)
+            return 2;
+
+        return 1;
+    }
+
+
+    /**
+     * Sends reply to request, starting with its id if it has one.
+     *
+     * @param session the session to send the reply on.
+     * @param requestId the id the client gave the request, or null.
+     * @param message the reply.
+     */
+    private void reply(
+            @NonNull Session session,
+            @Nullable String requestId,
+            @NonNull String message)
+    {
+        if (requestId == null)
+            session.sendMessage(message);
+        else
+            session.sendMessage(requestId + " " + message);
+    }
+
+
+    /**
+     * Answers a command on a key as busy, without making it, e.g. when the client exceeded its rate.
+     * The reply starts like the replies of the key, with the names the client sent.
+     *
+     * @param session the session to send the result on.
+     * @param requestId the id the client gave the request, or null.
+     * @param moduleName the name of the module, as the client sent it.
+     * @param keyName the name of the key, as the client sent it.
+     */
+    private void replyBusy(
+            @NonNull Session session,
+            @Nullable String requestId,
+            @NonNull String moduleName,
+            @NonNull String keyName)
+    {
+        reply(session, requestId, moduleName + " " + keyName + " " + KeyItem.BUSY_MESSAGE);
     }
 
 
     /**
      * Gets specific key, with common message when the key or module not found.
      *
-     * @param commandServer the command server to send the result on.
+     * @param session the session to send the result on.
+     * @param requestId the id the client gave the request, or null.
      * @param moduleName the name of the desired module.
      * @param keyName  the name of the desired key.
      * @return DJIKeyInfo if key found, null otherwise.
      */
     @Nullable
     private KeyItem<?,?> getKeyWithMessage(
-            @NonNull CommandServer commandServer,
+            @NonNull Session session,
+            @Nullable String requestId,
             @NonNull String moduleName,
             @NonNull String keyName)
     {
@@ -129,24 +393,89 @@ public class QueryCommandHandler implements CommandHandler
         }
         // Module not found
         catch (UnknownModuleException ignored) {
-            commandServer.sendMessage("Unknown module name: " + moduleName);
+            reply(session, requestId, "Unknown module name: " + moduleName);
         }
         // Key not found.
         catch (UnknownKeyException ignored) {
-            commandServer.sendMessage("Unknown key name: " + keyName);
+            reply(session, requestId, "Unknown key name: " + keyName);
         }
 
         return key;
     }
 
 
+    /**
+     * Send the round trip time of the session, as measured by the heartbeat.
+     * Values are in milliseconds, null until the first measure.
+     *
+     * @param session the session to send the result on.
+     * @param requestId the id the client gave the request, or null.
+     */
+    private void commandRoundTripTime(
+            @NonNull Session session,
+            @Nullable String requestId)
+    {
+        reply(session, requestId, "{smoothed_ms:" + formatMicros(session.getRoundTripTime_us())
+                + ", last_ms:" + formatMicros(session.getLastRoundTripTime_us()) + "}");
+    }
+
+    /**
+     * Controls the request tracing, see {@link Tracer}.
+     * 'DUMP' sends the kept traces, 'CLEAR' forgets them, and 'SAMPLE <every>'
+     * traces one of every that many commands, 0 to stop tracing.
+     *
+     * @param session the session to send the result on.
+     * @param requestId the id the client gave the request, or null.
+     * @param action the sub command.
+     * @param argument the argument of the sub command, may be empty.
+     */
+    private void commandTrace(
+            @NonNull Session session,
+            @Nullable String requestId,
+            @NonNull String action,
+            @NonNull String argument)
+    {
+        Tracer tracer = Tracer.getInstance();
+
+        if (action.equalsIgnoreCase(TRACE_DUMP))
+            reply(session, requestId, tracer.dump());
+
+        else if (action.equalsIgnoreCase(TRACE_CLEAR)) {
+            tracer.clear();
+            reply(session, requestId, KeyItem.SUCCESS_MESSAGE);
+        }
+
+        else if (action.equalsIgnoreCase(TRACE_SAMPLE))
+        {
+            try {
+                tracer.setSampling(Integer.parseInt(argument));
+                reply(session, requestId, KeyItem.SUCCESS_MESSAGE);
+            }
+            catch (IllegalArgumentException ignored) {
+                reply(session, requestId, "Illegal arguments: " + argument);
+            }
+        }
+
+        else
+            reply(session, requestId, "Unknown trace command: " + action);
+    }
+
+
+    @NonNull
+    private static String formatMicros(long time_us) {
+        return time_us < 0 ? "null" : String.format(Locale.ROOT, "%.3f", time_us / 1000.0);
+    }
+
+
     /**
      * Send list of all available modules.
      *
-     * @param commandServer the command server to send the result on.
+     * @param session the session to send the result on.
+     * @param requestId the id the client gave the request, or null.
      */
     private void commandHelp(
-            @NonNull CommandServer commandServer)
+            @NonNull Session session,
+            @Nullable String requestId)
     {
         // String builder for returned text
         StringBuilder stringBuilder = new StringBuilder();
@@ -160,18 +489,20 @@ public class QueryCommandHandler implements CommandHandler
         stringBuilder.setCharAt(stringBuilder.length() - 1, '}');
 
         // Send list of available modules.
-        commandServer.sendMessage(stringBuilder.toString());
+        reply(session, requestId, stringBuilder.toString());
     }
 
 
     /**
      * Send list of all available keys inside a module.
      *
-     * @param commandServer the command server to send the result on.
+     * @param session the session to send the result on.
+     * @param requestId the id the client gave the request, or null.
      * @param moduleName the name of the desired module.
      */
     private void commandHelp(
-            @NonNull CommandServer commandServer,
+            @NonNull Session session,
+            @Nullable String requestId,
             @NonNull String moduleName)
     {
         // Stores all available keys.
@@ -181,7 +512,7 @@ public class QueryCommandHandler implements CommandHandler
             keys = this.keysManager.getAvailableKeys(moduleName);
         }
         catch (UnknownModuleException ignore) {
-            commandServer.sendMessage("Unknown module name: " + moduleName);
+            reply(session, requestId, "Unknown module name: " + moduleName);
             return;
         }
 
@@ -197,24 +528,26 @@ public class QueryCommandHandler implements CommandHandler
         stringBuilder.setCharAt(stringBuilder.length() - 1, '}');
 
         // Send list of available modules.
-        commandServer.sendMessage(stringBuilder.toString());
+        reply(session, requestId, stringBuilder.toString());
     }
 
 
     /**
      * Send information about specific key.
      *
-     * @param commandServer the command server to send the result on.
+     * @param session the session to send the result on.
+     * @param requestId the id the client gave the request, or null.
      * @param moduleName the name of the desired module.
      * @param keyName  the name of the desired key.
      */
     private void commandHelp(
-            @NonNull CommandServer commandServer,
+            @NonNull Session session,
+            @Nullable String requestId,
             @NonNull String moduleName,
             @NonNull String keyName)
     {
         // Get the desired key
-        KeyItem<?,?> keyItem = getKeyWithMessage(commandServer, moduleName, keyName);
+        KeyItem<?,?> keyItem = getKeyWithMessage(session, requestId, moduleName, keyName);
         if (keyItem == null) return;
 
         DJIKeyInfo<?> key = keyItem.getRawKeyInfo();
@@ -304,6 +637,6 @@ public class QueryCommandHandler implements CommandHandler
             }
         }
 
-        commandServer.sendMessage(message.append('}').toString());
+        reply(session, requestId, message.append('}').toString());
     }
 }
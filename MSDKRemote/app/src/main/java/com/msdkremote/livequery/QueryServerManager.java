@@ -2,10 +2,17 @@ package com.msdkremote.livequery;
 
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+
 import com.msdkremote.commandserver.CommandServer;
 import com.msdkremote.commandserver.CommandServerStateListener;
+import com.msdkremote.commandserver.Session;
+import com.msdkremote.commandserver.SocketProfile;
+import com.msdkremote.livemultiplex.MultiplexServerManager;
 
 import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class QueryServerManager
 {
@@ -15,6 +22,13 @@ public class QueryServerManager
     // Query Server instance
     private CommandServer queryServer = null;
 
+    // Runs the query commands, so slow command does not hold the connections
+    private static final int DISPATCH_THREADS = 2;
+    private ExecutorService dispatchExecutor = null;
+
+    // The most SDK calls of all the query clients together, waiting for their callback
+    private static final int MAX_SDK_CALLS = 32;
+
     // State listener - limiting to one listener
     private final Object StateListenerLock = new Object();
     private CommandServerStateListener stateListener = null;
@@ -63,8 +77,47 @@ public class QueryServerManager
         Log.i(TAG, "Starting new Query Server, port : " + port + ".");
         this.queryServer = new CommandServer(new commandServerStateListener(), port);
 
-        queryServer.addCommandHandler(new QueryCommandHandler());
+        // Listened keys are telemetry, only their latest value is worth sending.
+        queryServer.setTelemetryCoalescing(true);
+
+        // Many small telemetry lines, let them share writes and packets.
+        queryServer.setWriteBatching(64 * 1024, 2);
+
+        // Clients may ask for length-prefixed frames instead of lines.
+        queryServer.setBinaryFramingAllowed(true);
+
+        // Clients may resume their subscriptions after Wi-Fi drop, keeping the recent replies.
+        queryServer.setSessionResumption(30_000, 256);
+
+        // Notice dead links, and measure the round trip time for the RTT command.
+        queryServer.setHeartbeat(2000, 3);
+
+        // Small replies and updates, that should not wait for Nagle either.
+        queryServer.setSocketProfile(SocketProfile.TELEMETRY);
+
+        // Report the clients, commands and handler times under 'query'.
+        queryServer.setMetricsName("query");
+
+        // Handle the commands off the network thread, in order per key.
+        QueryCommandHandler queryCommandHandler = new QueryCommandHandler();
+
+        // Keep runaway clients from flooding the SDK and the aircraft link, they are answered 'busy'.
+        queryCommandHandler.setRateLimit(CommandClass.READ, 50, 100);
+        queryCommandHandler.setRateLimit(CommandClass.WRITE, 10, 20);
+        queryCommandHandler.setRateLimit(CommandClass.LISTEN, 20, 50);
+        SdkCallLimiter.getInstance().setMaxCalls(MAX_SDK_CALLS);
+        this.dispatchExecutor = Executors.newFixedThreadPool(DISPATCH_THREADS);
+        queryServer.setDispatchExecutor(this.dispatchExecutor, queryCommandHandler);
+
+        // Route the commands by their verb, anything else is answered as unknown command.
+        for (String command : QueryCommandHandler.COMMANDS)
+            queryServer.addCommandHandler(command, queryCommandHandler);
+
+        queryServer.addCommandHandler(queryCommandHandler);
         queryServer.startServer();
+
+        // Serve the query channel of the multiplexed port as well.
+        MultiplexServerManager.getInstance().setQueryServer(this.queryServer);
     }
 
 
@@ -83,9 +136,14 @@ public class QueryServerManager
 
         // Stops control server
         Log.i(TAG, "Stop Query Server.");
+        MultiplexServerManager.getInstance().setQueryServer(null);
         this.queryServer.removeAllCommandHandlers();
         this.queryServer.stopServer();
         this.queryServer = null;
+
+        // No more commands can arrive
+        this.dispatchExecutor.shutdown();
+        this.dispatchExecutor = null;
     }
 
 
@@ -165,5 +223,14 @@ public class QueryServerManager
                 }
             }
         }
+
+        @Override
+        public void onRoundTripTime(@NonNull Session session, long rtt_us) {
+            synchronized (QueryServerManager.this.StateListenerLock) {
+                if (QueryServerManager.this.stateListener != null) {
+                    QueryServerManager.this.stateListener.onRoundTripTime(session, rtt_us);
+                }
+            }
+        }
     }
 }
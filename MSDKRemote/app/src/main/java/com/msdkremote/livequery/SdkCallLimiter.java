@@ -0,0 +1,177 @@
+package com.msdkremote.livequery;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.Nullable;
+
+import com.msdkremote.metrics.Counter;
+import com.msdkremote.metrics.MetricsRegistry;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the SDK calls of the query server that did not call back yet,
+ * across all the clients, so a flood of commands does not queue up in the SDK
+ * and on the aircraft link.
+ * <p>
+ * Every call takes a permit before it is given to the SDK, and returns it from its callback,
+ * or right away if the SDK throws. When no permit is left the command is answered as busy instead,
+ * nothing waits. Every permit has a deadline, so a call that never calls back does not keep its
+ * permit forever: once the permits run out, the ones past their deadline are reclaimed,
+ * and counted as timeouts.
+ */
+class SdkCallLimiter
+{
+    // Default bound on calls in flight, and how long a call may keep its permit
+    private static final int DEFAULT_MAX_CALLS = 32;
+    private static final long DEFAULT_TIMEOUT_ms = 10_000;
+
+    // Calls that did not call back by their deadline
+    private static final Counter TIMEOUTS = MetricsRegistry.getInstance().counter("query.sdk_timeouts");
+
+    // Calls in flight, their permits, and the bounds
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Set<Permit> permits = ConcurrentHashMap.newKeySet();
+    private volatile int maxCalls = DEFAULT_MAX_CALLS;
+    private volatile long timeout_ns = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_ms);
+
+
+    /* ------------------- Singleton ------------------- */
+
+    // SDK Call Limiter instance - singleton
+    private static SdkCallLimiter instance = null;
+
+    private SdkCallLimiter() {
+        MetricsRegistry.getInstance().gauge("query.sdk_in_flight", this.inFlight::get);
+    }
+
+    /**
+     * Get instance of SdkCallLimiter
+     *
+     * @return single instance of SdkCallLimiter
+     */
+    static synchronized SdkCallLimiter getInstance()
+    {
+        if (instance == null)
+            instance = new SdkCallLimiter();
+
+        return instance;
+    }
+
+
+
+    /* ------------------- Permits ------------------- */
+
+    /**
+     * Sets the bound on calls in flight. Calls already in flight are not affected.
+     *
+     * @param maxCalls the most calls in flight at once.
+     */
+    void setMaxCalls(@IntRange(from = 1) int maxCalls)
+    {
+        if (maxCalls < 1)
+            throw new IllegalArgumentException("Max calls must be positive.");
+
+        this.maxCalls = maxCalls;
+    }
+
+    /**
+     * Sets how long a call may keep its permit without calling back.
+     * Applies to permits taken from now on.
+     *
+     * @param timeout_ms the time from taking the permit to its deadline.
+     */
+    void setTimeout(@IntRange(from = 1) long timeout_ms)
+    {
+        if (timeout_ms < 1)
+            throw new IllegalArgumentException("Timeout must be positive.");
+
+        this.timeout_ns = TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+    }
+
+    /**
+     * Takes a permit for a call, if the bound allows. When the bound is reached,
+     * the permits past their deadline are reclaimed first.
+     * Each permit taken must be released by {@link Permit#release()}, releasing it again,
+     * or after it was reclaimed, does nothing.
+     *
+     * @return the permit, or null if the call may not be made.
+     */
+    @Nullable
+    Permit tryAcquire()
+    {
+        boolean reclaimed = false;
+
+        while (true) {
+            int current = this.inFlight.get();
+
+            if (current >= this.maxCalls) {
+                // Only once per call, and only when full, so the permits are scanned rarely
+                if (reclaimed || !reclaimExpired())
+                    return null;
+
+                reclaimed = true;
+                continue;
+            }
+
+            if (this.inFlight.compareAndSet(current, current + 1)) {
+                Permit permit = new Permit(System.nanoTime() + this.timeout_ns);
+                this.permits.add(permit);
+                return permit;
+            }
+        }
+    }
+
+    /**
+     * Reclaims the permits of the calls that did not call back by their deadline.
+     *
+     * @return true if any permit was reclaimed.
+     */
+    private boolean reclaimExpired()
+    {
+        long now_ns = System.nanoTime();
+        boolean reclaimed = false;
+
+        for (Permit permit : this.permits) {
+            if (now_ns - permit.deadline_ns >= 0 && permit.release()) {
+                TIMEOUTS.increment();
+                reclaimed = true;
+            }
+        }
+
+        return reclaimed;
+    }
+
+
+
+    /**
+     * Permit of a single call in flight, returned once, by the callback or by its deadline.
+     */
+    final class Permit
+    {
+        private final long deadline_ns;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(long deadline_ns) {
+            this.deadline_ns = deadline_ns;
+        }
+
+        /**
+         * Returns the permit, if it was not returned yet.
+         *
+         * @return true if this call returned it, false if it was already released or reclaimed.
+         */
+        boolean release()
+        {
+            if (!this.released.compareAndSet(false, true))
+                return false;
+
+            SdkCallLimiter.this.permits.remove(this);
+            SdkCallLimiter.this.inFlight.decrementAndGet();
+            return true;
+        }
+    }
+}
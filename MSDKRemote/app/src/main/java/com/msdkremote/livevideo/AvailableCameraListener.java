@@ -37,16 +37,22 @@ public class AvailableCameraListener
         }
     }
 
-    public synchronized void startListener(FrameBuffer buffer)
+    /**
+     * Starts delivering the frames of the first available camera to the ring.
+     *
+     * @param ring the ring that receives the frames, read by all the viewers.
+     */
+    public synchronized void startListener(@NonNull FrameRing ring)
     {
         if (listenerOn)
             return;
 
         listenerOn = true;
-        cameraListener = new CameraListener(buffer);
+        cameraListener = new CameraListener(ring);
         streamManager.addAvailableCameraUpdatedListener(this);
     }
 
+
     public synchronized void stopListener()
     {
         if (!listenerOn)
@@ -4,6 +4,10 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.msdkremote.metrics.Counter;
+import com.msdkremote.metrics.Histogram;
+import com.msdkremote.metrics.MetricsRegistry;
+
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -15,15 +19,39 @@ class CameraListener
 {
     private final String TAG = this.getClass().getSimpleName();
 
-    private FrameBuffer frameBuffer = null;
+    // The frames the SDK delivered, and the time it takes to hand them to the ring
+    private static final Counter FRAMES = MetricsRegistry.getInstance().counter("video.frames");
+    private static final Counter KEY_FRAMES = MetricsRegistry.getInstance().counter("video.key_frames");
+    private static final Counter BYTES = MetricsRegistry.getInstance().counter("video.bytes");
+    private static final Histogram CALLBACK_TIME = MetricsRegistry.getInstance().histogram("video.callback_us");
+
+    // The ring all the viewers read the frames from
+    private final FrameRing frameRing;
 
-    public CameraListener(@NonNull FrameBuffer buffer) {
-        this.frameBuffer = buffer;
+    // Holds the frame data, instead of new array for every frame
+    private final FramePool framePool = FramePool.getInstance();
+
+    public CameraListener(@NonNull FrameRing ring) {
+        this.frameRing = ring;
     }
 
     @Override
     public synchronized void onReceiveStream(@NonNull byte[] data, int offset, int length, @NonNull StreamInfo info)
     {
-        frameBuffer.addFrame(new Frame(data, offset, length, info));
+        long start_ns = System.nanoTime();
+
+        // The frame is never modified, so all the viewers share it through the ring
+        Frame frame = new Frame(this.framePool, data, offset, length, info);
+        this.frameRing.addFrame(frame);
+
+        FRAMES.increment();
+        BYTES.add(length);
+        if (frame.isKeyFrame())
+            KEY_FRAMES.increment();
+
+        // Drop the reference of the listener, the ring holds its own
+        frame.release();
+
+        CALLBACK_TIME.recordSince(start_ns);
     }
 }
@@ -3,27 +3,55 @@ package com.msdkremote.livevideo;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import dji.v5.manager.datacenter.camera.StreamInfo;
 import dji.v5.manager.interfaces.ICameraStreamManager;
 
+/**
+ * Single encoded frame, shared by all the consumers of the video.
+ * <p>
+ * The data is held in array of {@link FramePool}, which is returned to the pool once
+ * the last reference is released. The frame is created with single reference,
+ * every consumer that keeps it takes a reference of its own by {@link #retain()},
+ * and releases it once it is done, e.g. after the frame was written.
+ * Viewers that find the frame in {@link FrameRing} take their reference by {@link #tryRetain()},
+ * as the ring may release the frame meanwhile.
+ */
 class Frame
 {
-    // The frame binary data
+    // The frame binary data, in array of the pool that may be longer than the frame
     private final byte[] fData;
+    private final int length;
+
+    // The pool the array returns to, and the references left
+    private final FramePool pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    // Sequence in the frame ring, set once before the ring publishes the frame
+    private long sequence = -1;
 
     // Frame parameters
     private final int height, width;
     private final long presentationTimeMs;
     private final boolean isKeyFrame;
 
+    // Wall clock time the frame arrived from the SDK, by System.currentTimeMillis()
+    private final long receiveTimeMs;
+
+    // Whether the frame starts with the codec parameter sets, see ParameterSets
+    private final boolean hasParameterSets;
+
     // Stream parameters
     private final int frameRate;
     private final FrameCodec codec;
 
-    public Frame (@NonNull  byte[] data, int offset, int length, @NonNull StreamInfo info)
+    public Frame (@NonNull FramePool pool, @NonNull byte[] data, int offset, int length, @NonNull StreamInfo info)
     {
-        // Copy the frame data
-        fData = new byte[length];
+        // Copy the frame data, the SDK reuses its array
+        this.pool = pool;
+        this.fData = pool.acquire(length);
+        this.length = length;
         System.arraycopy(data, offset, fData, 0, length);
 
         // Set frame parameters
@@ -31,10 +59,39 @@ class Frame
         this.width  = info.getWidth();
         this.isKeyFrame = info.isKeyFrame();
         this.presentationTimeMs = info.getPresentationTimeMs();
+        this.receiveTimeMs = System.currentTimeMillis();
 
         // Set stream parameters
         this.frameRate = info.getFrameRate();
         this.codec = FrameCodec.getFrameCodec(info.getMimeType());
+
+        this.hasParameterSets = ParameterSets.contains(this.codec, this.fData, this.length);
+    }
+
+    /**
+     * Creates frame of the parameter sets of another frame, see {@link ParameterSets#extract(Frame)}.
+     *
+     * @param source the frame the parameter sets were taken from.
+     * @param data array of the pool of the source, holding the parameter sets.
+     * @param length the length of the parameter sets.
+     */
+    Frame (@NonNull Frame source, @NonNull byte[] data, int length)
+    {
+        this.pool = source.pool;
+        this.fData = data;
+        this.length = length;
+
+        this.height = source.height;
+        this.width = source.width;
+        this.isKeyFrame = false;
+        this.presentationTimeMs = source.presentationTimeMs;
+        this.receiveTimeMs = source.receiveTimeMs;
+        this.sequence = source.sequence;
+
+        this.frameRate = source.frameRate;
+        this.codec = source.codec;
+
+        this.hasParameterSets = true;
     }
 
     public int getHeight() {
@@ -49,6 +106,10 @@ class Frame
         return this.presentationTimeMs;
     }
 
+    public long getReceiveTimeMs() {
+        return this.receiveTimeMs;
+    }
+
     public int getFrameRate() {
         return this.frameRate;
     }
@@ -57,15 +118,82 @@ class Frame
         return this.isKeyFrame;
     }
 
+    public boolean hasParameterSets() {
+        return this.hasParameterSets;
+    }
+
+    /**
+     * Gets the array holding the frame data, from its start up to {@link #getSize()}.
+     * Valid only while holding a reference.
+     *
+     * @return the array of the frame.
+     */
     public byte[] getData() {
         return this.fData;
     }
 
     public int getSize() {
-        return fData.length;
+        return this.length;
     }
 
     public FrameCodec getCodec() {
         return this.codec;
     }
+
+    FramePool getPool() {
+        return this.pool;
+    }
+
+    long getSequence() {
+        return this.sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+
+    /**
+     * Takes another reference to the frame.
+     *
+     * @return this frame.
+     */
+    @NonNull
+    public Frame retain()
+    {
+        if (this.references.getAndIncrement() <= 0)
+            throw new IllegalStateException("Frame was already released.");
+
+        return this;
+    }
+
+    /**
+     * Takes another reference to the frame, unless the last one was already released.
+     *
+     * @return true if the reference was taken, false if the frame is gone.
+     */
+    public boolean tryRetain()
+    {
+        int current;
+        do {
+            current = this.references.get();
+            if (current <= 0)
+                return false;
+        } while (!this.references.compareAndSet(current, current + 1));
+
+        return true;
+    }
+
+    /**
+     * Releases reference to the frame, the last one returns its array to the pool.
+     */
+    public void release()
+    {
+        int left = this.references.decrementAndGet();
+
+        if (left == 0)
+            this.pool.release(this.fData);
+        else if (left < 0)
+            throw new IllegalStateException("Frame was released too many times.");
+    }
 }
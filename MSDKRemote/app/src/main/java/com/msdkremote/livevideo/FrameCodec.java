@@ -7,14 +7,22 @@ import dji.v5.manager.interfaces.ICameraStreamManager;
 
 enum FrameCodec
 {
-    CODEC_H264("H264"),
-    CODEC_H265("H265"),
-    CODEC_UNKNOWN("UNKNOWN");
+    CODEC_H264("H264", 1),
+    CODEC_H265("H265", 2),
+    CODEC_UNKNOWN("UNKNOWN", 0);
 
     private final String description;
 
-    private FrameCodec(@NonNull String description) {
+    // The codec in the header of framed video, see VideoFraming
+    private final int wireId;
+
+    private FrameCodec(@NonNull String description, int wireId) {
         this.description = description;
+        this.wireId = wireId;
+    }
+
+    public int getWireId() {
+        return wireId;
     }
 
     @Nullable
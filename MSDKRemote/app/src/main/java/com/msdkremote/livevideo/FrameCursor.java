@@ -0,0 +1,272 @@
+package com.msdkremote.livevideo;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.msdkremote.metrics.Counter;
+import com.msdkremote.metrics.Histogram;
+import com.msdkremote.metrics.MetricsRegistry;
+
+/**
+ * Read position of a single viewer in the shared {@link FrameRing}.
+ * <p>
+ * The cursor starts by its {@link StartMode}, at the key frame cached by the ring, or at the next key frame,
+ * and sends the parameter sets first when the key frame does not carry them. It reads the frames in order,
+ * its lag is the number of frames added after the one it reads. Once the lag is over the limit while a newer
+ * key frame is kept, or the frame it reads was already released by the ring, the viewer can not catch up
+ * frame by frame, so it drops to a key frame: the newest one if it is ahead of the cursor, otherwise
+ * the next one that arrives. The viewer never receives frames it can not decode, and never slows down
+ * the ring or the other viewers.
+ * <p>
+ * Used by a single viewer thread, or the thread that polls it.
+ */
+class FrameCursor
+{
+    // Frames that were never delivered, and the times a viewer dropped to a key frame
+    private static final Counter FRAMES_DROPPED = MetricsRegistry.getInstance().counter("video.frames_dropped");
+    private static final Counter KEY_FRAME_SKIPS = MetricsRegistry.getInstance().counter("video.keyframe_skips");
+
+    // Viewers that started from the cached key frame, and the frames they got before live
+    private static final Counter CACHED_STARTS = MetricsRegistry.getInstance().counter("video.cached_starts");
+    private static final Counter CATCH_UP_FRAMES = MetricsRegistry.getInstance().counter("video.catch_up_frames");
+
+    // Frames behind the newest one, at the time every frame is read
+    private static final Histogram LAG = MetricsRegistry.getInstance().histogram("video.viewer_lag");
+
+    // How long to wait on the ring, before checking the thread again
+    private static final long WAIT_TIMEOUT_ms = 100;
+
+    private final FrameRing ring;
+    private final int maxLag;
+
+    // Sequence of the next frame to read
+    private long position;
+
+    // The frames up to the next key frame are dropped, and whether they count as dropped
+    private boolean waitKeyFrame = false;
+    private boolean countDropped = true;
+
+    // The cursor moved to a key frame, the parameter sets go first if it does not carry them
+    private boolean needParameterSets = false;
+
+    // Only the cached key frame is read, then the cursor waits for the next one, see StartMode#KEY_FRAME
+    private boolean keyFrameOnly = false;
+
+    // The frames before this sequence were cached before the viewer started
+    private final long liveSequence;
+    private boolean catchingUp = false;
+
+    // Frames dropped by this viewer
+    private long droppedFrames = 0;
+
+
+    /**
+     * Creates cursor at the newest key frame, or at the next key frame if the ring has none.
+     *
+     * @param ring the ring to read.
+     * @param maxLag the most frames the viewer may fall behind before it drops to a key frame.
+     */
+    public FrameCursor(@NonNull FrameRing ring, @IntRange(from = 1) int maxLag) {
+        this(ring, maxLag, StartMode.FAST_FORWARD);
+    }
+
+    /**
+     * Creates cursor that starts by the start mode.
+     *
+     * @param ring the ring to read.
+     * @param maxLag the most frames the viewer may fall behind before it drops to a key frame.
+     * @param startMode where the viewer starts, the cached key frame is used only if the ring still has it.
+     */
+    public FrameCursor(@NonNull FrameRing ring, @IntRange(from = 1) int maxLag, @NonNull StartMode startMode)
+    {
+        this.ring = ring;
+        this.maxLag = maxLag;
+        this.position = ring.getTail();
+        this.liveSequence = this.position;
+
+        long keyFrame = ring.getKeyFrame();
+        if (startMode != StartMode.LIVE && keyFrame >= 0 && keyFrame >= ring.getHead()) {
+            this.position = keyFrame;
+            this.needParameterSets = true;
+            this.keyFrameOnly = startMode == StartMode.KEY_FRAME;
+            CACHED_STARTS.increment();
+        }
+        else {
+            // Nothing was sent yet, so nothing is dropped
+            this.waitKeyFrame = true;
+            this.countDropped = false;
+        }
+    }
+
+    /**
+     * Gets the number of frames added after the next one to read.
+     *
+     * @return the lag in frames.
+     */
+    public long getLag() {
+        return Math.max(0, this.ring.getTail() - this.position);
+    }
+
+    /**
+     * @return the frames this viewer dropped since it started.
+     */
+    public long getDroppedFrames() {
+        return this.droppedFrames;
+    }
+
+
+    /**
+     * Whether the last frame read was cached before the viewer started, and is sent to catch up with live.
+     *
+     * @return true if the last frame is behind live.
+     */
+    public boolean isCatchingUp() {
+        return this.catchingUp;
+    }
+
+
+    /**
+     * Reads the next frame without waiting, or the parameter sets in front of a key frame.
+     * The caller releases the frame once it is done with it.
+     *
+     * @return the next frame, or null if no frame is ready.
+     */
+    @Nullable
+    public Frame pollFrame()
+    {
+        while (true) {
+            long tail = this.ring.getTail();
+
+            if (this.waitKeyFrame && !resumeAtKeyFrame(tail))
+                return null;
+
+            if (this.position >= tail)
+                return null;
+
+            if (this.position < this.ring.getHead()
+                    || (tail - this.position > this.maxLag && this.ring.getKeyFrame() > this.position)) {
+                skipToKeyFrame(tail);
+                continue;
+            }
+
+            Frame frame = this.ring.getFrame(this.position);
+
+            // Released by the ring while we checked
+            if (frame == null) {
+                skipToKeyFrame(this.ring.getTail());
+                continue;
+            }
+
+            this.catchingUp = this.position < this.liveSequence;
+
+            if (this.needParameterSets) {
+                this.needParameterSets = false;
+
+                // The frame is read again on the next poll
+                Frame sets = frame.hasParameterSets() ? null : this.ring.getParameterSets();
+                if (sets != null) {
+                    frame.release();
+                    return sets;
+                }
+            }
+
+            LAG.record(tail - this.position);
+            if (this.catchingUp)
+                CATCH_UP_FRAMES.increment();
+
+            this.position++;
+
+            if (this.keyFrameOnly) {
+                this.keyFrameOnly = false;
+                this.waitKeyFrame = true;
+                this.countDropped = false;
+            }
+
+            return frame;
+        }
+    }
+
+    /**
+     * Reads the next frame, waiting for it.
+     * The caller releases the frame once it is done with it.
+     *
+     * @return the next frame.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    @NonNull
+    public Frame getFrame() throws InterruptedException
+    {
+        Frame frame;
+
+        while ((frame = pollFrame()) == null) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+
+            this.ring.awaitFrame(this.position, WAIT_TIMEOUT_ms);
+        }
+
+        return frame;
+    }
+
+
+    /**
+     * Drops the frames up to a key frame: the newest key frame if it is ahead of the cursor,
+     * otherwise all the frames, waiting for the next key frame.
+     *
+     * @param tail the tail of the ring, as of the check that called it.
+     */
+    private void skipToKeyFrame(long tail)
+    {
+        KEY_FRAME_SKIPS.increment();
+
+        long keyFrame = this.ring.getKeyFrame();
+
+        if (keyFrame > this.position && keyFrame >= this.ring.getHead()) {
+            drop(keyFrame);
+            this.needParameterSets = true;
+        }
+        else {
+            drop(tail);
+            this.waitKeyFrame = true;
+        }
+    }
+
+    /**
+     * Moves the cursor to the key frame it waits for, if it arrived, dropping the frames before it.
+     *
+     * @param tail the tail of the ring, as of the check that called it.
+     * @return true if the cursor is at the key frame, false if it still waits.
+     */
+    private boolean resumeAtKeyFrame(long tail)
+    {
+        long keyFrame = this.ring.getKeyFrame();
+
+        if (keyFrame >= this.position && keyFrame >= this.ring.getHead()) {
+            drop(keyFrame);
+            this.waitKeyFrame = false;
+            this.countDropped = true;
+            this.needParameterSets = true;
+            return true;
+        }
+
+        drop(tail);
+        return false;
+    }
+
+    /**
+     * Moves the cursor forward, counting the frames it skips unless they are skipped on purpose.
+     */
+    private void drop(long sequence)
+    {
+        if (sequence <= this.position)
+            return;
+
+        if (this.countDropped) {
+            FRAMES_DROPPED.add(sequence - this.position);
+            this.droppedFrames += sequence - this.position;
+        }
+
+        this.position = sequence;
+    }
+}
@@ -0,0 +1,160 @@
+package com.msdkremote.livevideo;
+
+import androidx.annotation.NonNull;
+
+import com.msdkremote.metrics.Counter;
+import com.msdkremote.metrics.MetricsRegistry;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the arrays that hold the frame data, so the camera callback does not allocate
+ * large array for every frame, and the collector does not have to free them.
+ * <p>
+ * Arrays come in size classes of powers of two, from {@link #MIN_SIZE} to {@link #MAX_SIZE},
+ * each class keeps the arrays that were returned to it. Frames larger than the largest class
+ * get array of their own, which is not pooled. The pool keeps up to {@link #MAX_RETAINED_BYTES}
+ * in all the classes together, arrays returned beyond it are left to the collector.
+ * <p>
+ * The hits, misses and the retained bytes are reported as {@code video.pool_*} metrics.
+ */
+class FramePool
+{
+    // The smallest and the largest size class, powers of two
+    static final int MIN_SIZE = 16 * 1024;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    // The most bytes kept in the pool, the frames of a few seconds of video
+    private static final long MAX_RETAINED_BYTES = 16 * 1024 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+    // Arrays taken from the pool, and arrays that had to be allocated
+    private static final Counter HITS = MetricsRegistry.getInstance().counter("video.pool_hits");
+    private static final Counter MISSES = MetricsRegistry.getInstance().counter("video.pool_misses");
+
+    // The free arrays of every size class, each guarded by its own lock
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<byte[]>[] freeArrays = new ArrayDeque[CLASSES];
+
+    // Bytes of all the free arrays
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+
+    /* ------------------- Singleton ------------------- */
+
+    // Frame Pool instance - singleton
+    private static FramePool instance = null;
+
+    private FramePool()
+    {
+        for (int i = 0; i < CLASSES; i++)
+            this.freeArrays[i] = new ArrayDeque<>();
+
+        MetricsRegistry.getInstance().gauge("video.pool_bytes", this.retainedBytes::get);
+    }
+
+    /**
+     * Get instance of FramePool
+     *
+     * @return single instance of FramePool
+     */
+    public static synchronized FramePool getInstance()
+    {
+        if (instance == null)
+            instance = new FramePool();
+
+        return instance;
+    }
+
+
+
+    /* ------------------- Arrays ------------------- */
+
+    /**
+     * Takes array that holds at least the given length, reusing free array if there is one.
+     * The array may be longer than asked for, and its content is undefined.
+     *
+     * @param length the number of bytes needed.
+     * @return the array.
+     */
+    @NonNull
+    public byte[] acquire(int length)
+    {
+        if (length > MAX_SIZE) {
+            MISSES.increment();
+            return new byte[length];
+        }
+
+        int sizeClass = getSizeClass(length);
+        ArrayDeque<byte[]> free = this.freeArrays[sizeClass];
+
+        byte[] array;
+        synchronized (free) {
+            array = free.pollLast();
+        }
+
+        if (array == null) {
+            MISSES.increment();
+            return new byte[MIN_SIZE << sizeClass];
+        }
+
+        HITS.increment();
+        this.retainedBytes.addAndGet(-array.length);
+        return array;
+    }
+
+    /**
+     * Returns array that was taken by {@link #acquire(int)}, it must not be used afterwards.
+     *
+     * @param array the array to return.
+     */
+    public void release(@NonNull byte[] array)
+    {
+        int length = array.length;
+
+        // Not of a size class, e.g. larger than the largest one
+        if (length > MAX_SIZE || length < MIN_SIZE || Integer.bitCount(length) != 1)
+            return;
+
+        if (this.retainedBytes.addAndGet(length) > MAX_RETAINED_BYTES) {
+            this.retainedBytes.addAndGet(-length);
+            return;
+        }
+
+        ArrayDeque<byte[]> free = this.freeArrays[getSizeClass(length)];
+        synchronized (free) {
+            free.addLast(array);
+        }
+    }
+
+    /**
+     * @return the number of arrays that were reused.
+     */
+    public long getHits() {
+        return HITS.get();
+    }
+
+    /**
+     * @return the number of arrays that had to be allocated.
+     */
+    public long getMisses() {
+        return MISSES.get();
+    }
+
+
+    /**
+     * Gets the size class that fits the length, the index of its free arrays.
+     */
+    private static int getSizeClass(int length)
+    {
+        if (length <= MIN_SIZE)
+            return 0;
+
+        // Round up to power of two
+        int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+        return shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,319 @@
+package com.msdkremote.livevideo;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.msdkremote.metrics.Counter;
+import com.msdkremote.metrics.MetricsRegistry;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The latest frames of the camera, shared by all the viewers, bounded by their count and bytes.
+ * <p>
+ * Single writer, the camera listener, adds the frames in order of their sequence, and never waits
+ * for the viewers. Every viewer reads the ring by {@link FrameCursor} of its own, so reading never
+ * takes frames away from the other viewers. The ring holds a reference to every frame it keeps,
+ * see {@link Frame#retain()}, and releases the oldest group of pictures (GOP) as a whole once it is full,
+ * whether the viewers read it or not, so the oldest frame kept is always a key frame. A second ring
+ * indexes the key frame that starts every GOP. Frames that arrive while no GOP is kept, e.g. after
+ * the only GOP was released, depend on frames that are gone, so they are skipped until the next key frame.
+ * Viewer that falls behind the oldest frame skips to a key frame, see {@link FrameCursor}.
+ * <p>
+ * The ring is also the cache new viewers start from: the newest GOP is kept even beyond the buffer size,
+ * up to the larger GOP size, and so are the latest codec parameter sets. New viewer gets a decodable
+ * picture at once, whatever the key frame interval.
+ */
+class FrameRing
+{
+    // Groups of pictures released as a whole, to make room for newer frames
+    private static final Counter GOPS_DROPPED = MetricsRegistry.getInstance().counter("video.gops_dropped");
+
+    // The most frames and groups of pictures kept, whatever their size, powers of two
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    private static final int GOP_CAPACITY = 64;
+
+    // The frames, by their sequence, from the oldest kept (head) to the next to add (tail)
+    private final AtomicReferenceArray<Frame> frames = new AtomicReferenceArray<>(CAPACITY);
+    private volatile long head = 0;
+    private volatile long tail = 0;
+
+    // Sequence of the key frame of every GOP kept, the first is at the head, used only by the writer
+    private final long[] gopStarts = new long[GOP_CAPACITY];
+    private int gopHead = 0;
+    private int gopTail = 0;
+
+    // Sequence of the newest key frame added, -1 before the first one
+    private volatile long keyFrame = -1;
+
+    // The latest parameter sets, sent in front of key frames that do not carry them
+    private volatile Frame parameterSets = null;
+
+    private final int maxBufferSize;
+    private final int maxGopSize;
+    private volatile int bufferSize = 0;
+
+    // Viewers that wait for the next frame, woken by the writer only when there are any
+    private final Object waitLock = new Object();
+    private volatile int waiting = 0;
+
+    // Called after every new frame, for viewers that do not wait on the ring
+    private final Set<Runnable> frameListeners = new CopyOnWriteArraySet<>();
+
+
+    /**
+     * @param maxBufferSize the maximum number of frame bytes kept, for all the viewers together.
+     * @param maxGopSize the maximum number of frame bytes kept while the newest GOP does not fit
+     *                   the buffer size, so new viewers can still start from its key frame.
+     *                   GOP larger than that is released too, and the frames up to the next key frame are skipped.
+     */
+    public FrameRing(int maxBufferSize, int maxGopSize) {
+        this.maxBufferSize = maxBufferSize;
+        this.maxGopSize = Math.max(maxBufferSize, maxGopSize);
+    }
+
+    public int getMaxBufferSize() {
+        return this.maxBufferSize;
+    }
+
+    public int getMaxGopSize() {
+        return this.maxGopSize;
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    /**
+     * @return sequence of the oldest frame kept.
+     */
+    public long getHead() {
+        return this.head;
+    }
+
+    /**
+     * @return sequence of the next frame to add, one after the newest frame.
+     */
+    public long getTail() {
+        return this.tail;
+    }
+
+    /**
+     * @return sequence of the newest key frame, or -1 if there was none yet.
+     */
+    public long getKeyFrame() {
+        return this.keyFrame;
+    }
+
+
+    /* ------------------- Writer ------------------- */
+
+    /**
+     * Adds the newest frame, releasing the oldest GOPs while the ring is full.
+     * The ring takes a reference of its own, the caller keeps its reference.
+     * Called by the single writer, the synchronization only guards against overlapping {@link #clear()}.
+     *
+     * @param frame the frame to add.
+     */
+    public synchronized void addFrame(@NonNull Frame frame)
+    {
+        long sequence = this.tail;
+        frame.setSequence(sequence);
+
+        if (frame.hasParameterSets())
+            setParameterSets(ParameterSets.extract(frame));
+
+        // Every frame kept belongs to a GOP, so a full ring has one to release
+        if (sequence - this.head == CAPACITY)
+            releaseOldestGop();
+
+        if (frame.isKeyFrame()) {
+            if (this.gopTail - this.gopHead == GOP_CAPACITY)
+                releaseOldestGop();
+
+            this.gopStarts[this.gopTail & (GOP_CAPACITY - 1)] = sequence;
+            this.gopTail++;
+        }
+
+        // The frame depends on frames that are gone, the viewers see its sequence as dropped
+        else if (this.gopHead == this.gopTail) {
+            this.tail = sequence + 1;
+            this.head = this.tail;
+            return;
+        }
+
+        this.frames.set((int) sequence & MASK, frame.retain());
+        this.bufferSize += frame.getSize();
+
+        if (frame.isKeyFrame())
+            this.keyFrame = sequence;
+
+        // Publishes the frame to the viewers
+        this.tail = sequence + 1;
+
+        // Release the GOPs before the newest one first, then the newest GOP only beyond its own limit
+        while (this.bufferSize > this.maxBufferSize && this.gopTail - this.gopHead > 1)
+            releaseOldestGop();
+        if (this.bufferSize > this.maxGopSize)
+            releaseOldestGop();
+
+        if (this.waiting > 0) {
+            synchronized (this.waitLock) {
+                this.waitLock.notifyAll();
+            }
+        }
+
+        for (Runnable listener : this.frameListeners)
+            listener.run();
+    }
+
+    /**
+     * Releases all the frames, e.g. once the video is stopped.
+     * Viewers continue from the next key frame added.
+     */
+    public synchronized void clear()
+    {
+        while (this.head < this.tail)
+            releaseOldest();
+
+        this.gopHead = this.gopTail;
+
+        // The next stream may have other parameters
+        setParameterSets(null);
+
+        // Skip a sequence, so even the viewers that read all the frames fall behind the head,
+        // and do not take the next frames as continuing the stream
+        this.tail++;
+        this.head = this.tail;
+    }
+
+    /**
+     * Releases the oldest GOP, up to the key frame of the next GOP, or all the frames if it is the only one.
+     * Viewers that did not read it yet will skip it. Must be called by the writer, with at least one GOP.
+     */
+    private void releaseOldestGop()
+    {
+        this.gopHead++;
+
+        long end = this.gopHead == this.gopTail
+                ? this.tail
+                : this.gopStarts[this.gopHead & (GOP_CAPACITY - 1)];
+
+        while (this.head < end)
+            releaseOldest();
+
+        GOPS_DROPPED.increment();
+    }
+
+    /**
+     * Releases the oldest frame, viewers that did not read it yet will skip it.
+     * Must be called by the writer, with at least one frame.
+     */
+    private void releaseOldest()
+    {
+        long sequence = this.head;
+        Frame frame = this.frames.getAndSet((int) sequence & MASK, null);
+        this.head = sequence + 1;
+
+        this.bufferSize -= frame.getSize();
+        frame.release();
+    }
+
+
+
+    /**
+     * Replaces the latest parameter sets, releasing the previous ones.
+     * Must be called by the writer.
+     */
+    private void setParameterSets(@Nullable Frame sets)
+    {
+        Frame previous = this.parameterSets;
+        this.parameterSets = sets;
+
+        if (previous != null)
+            previous.release();
+    }
+
+
+
+    /* ------------------- Viewers ------------------- */
+
+    /**
+     * Gets the frame of the sequence, with a reference for the caller to release.
+     * The frame may be released by the writer meanwhile, then the caller fell behind and gets null.
+     *
+     * @param sequence the sequence of the frame, below the tail.
+     * @return the frame, or null if it is no longer kept.
+     */
+    @Nullable
+    Frame getFrame(long sequence)
+    {
+        Frame frame = this.frames.get((int) sequence & MASK);
+
+        // Released, or replaced by a newer frame, since the caller checked the head
+        if (frame == null || frame.getSequence() != sequence || !frame.tryRetain())
+            return null;
+
+        return frame;
+    }
+
+    /**
+     * Gets the latest parameter sets, with a reference for the caller to release.
+     *
+     * @return the parameter sets, or null if the stream did not send any yet.
+     */
+    @Nullable
+    Frame getParameterSets()
+    {
+        while (true) {
+            Frame sets = this.parameterSets;
+
+            // Released only after newer sets replaced it, so read again
+            if (sets == null || sets.tryRetain())
+                return sets;
+        }
+    }
+
+    /**
+     * Waits until the frame of the sequence is added, or the timeout is over.
+     *
+     * @param sequence the sequence of the awaited frame.
+     * @param timeout_ms the longest time to wait.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    void awaitFrame(long sequence, long timeout_ms) throws InterruptedException
+    {
+        synchronized (this.waitLock) {
+            // Announce the wait before checking, so the writer of the frame wakes us
+            this.waiting++;
+            try {
+                if (this.tail <= sequence)
+                    this.waitLock.wait(timeout_ms);
+            }
+            finally {
+                this.waiting--;
+            }
+        }
+    }
+
+    /**
+     * Adds listener called by the writer after every new frame, it must not block.
+     *
+     * @param listener the listener to add.
+     */
+    public void addFrameListener(@NonNull Runnable listener) {
+        this.frameListeners.add(listener);
+    }
+
+    /**
+     * Removes listener that was added by {@link #addFrameListener(Runnable)}.
+     *
+     * @param listener the listener to remove.
+     */
+    public void removeFrameListener(@NonNull Runnable listener) {
+        this.frameListeners.remove(listener);
+    }
+}
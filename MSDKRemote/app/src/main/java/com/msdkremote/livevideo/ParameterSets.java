@@ -0,0 +1,157 @@
+package com.msdkremote.livevideo;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Finds the codec parameter sets (VPS, SPS and PPS) in frames of Annex-B stream.
+ * <p>
+ * The decoder needs the parameter sets before the first key frame it decodes. The camera sends them
+ * in front of some key frames only, so the frame ring keeps the latest ones, and sends them
+ * to viewers that start at key frame without them. Only the units in front of the first slice
+ * of the frame are looked at, so the rest of the frame is never scanned.
+ */
+final class ParameterSets
+{
+    // Start code written in front of every unit copied
+    private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+    // Unit types of H.264, the low 5 bits of the unit header
+    private static final int H264_SLICE_LAST = 5;
+    private static final int H264_SPS = 7;
+    private static final int H264_PPS = 8;
+
+    // Unit types of H.265, bits 1 to 6 of the unit header
+    private static final int H265_SLICE_LAST = 31;
+    private static final int H265_VPS = 32;
+    private static final int H265_PPS = 34;
+
+    private ParameterSets() { }
+
+
+    /**
+     * Checks if the frame starts with parameter sets, in front of its first slice.
+     *
+     * @param codec the codec of the frame.
+     * @param data the array of the frame.
+     * @param length the length of the frame.
+     * @return true if the frame carries parameter sets.
+     */
+    static boolean contains(@Nullable FrameCodec codec, @NonNull byte[] data, int length)
+    {
+        if (codec != FrameCodec.CODEC_H264 && codec != FrameCodec.CODEC_H265)
+            return false;
+
+        int start = findStartCode(data, 0, length);
+
+        while (start >= 0 && start + 3 < length) {
+            int type = getType(codec, data[start + 3]);
+
+            if (isParameterSet(codec, type))
+                return true;
+            if (isSlice(codec, type))
+                return false;
+
+            start = findStartCode(data, start + 3, length);
+        }
+
+        return false;
+    }
+
+    /**
+     * Copies the parameter sets in front of the first slice of the frame to frame of their own,
+     * with array of the same pool.
+     *
+     * @param frame the frame that carries parameter sets, see {@link Frame#hasParameterSets()}.
+     * @return frame with the parameter sets only, or null if the frame has none.
+     */
+    @Nullable
+    static Frame extract(@NonNull Frame frame)
+    {
+        FrameCodec codec = frame.getCodec();
+        byte[] data = frame.getData();
+        int length = frame.getSize();
+
+        // Measure first, then copy, the units are few and short
+        int size = 0;
+        for (int pass = 0; pass < 2; pass++)
+        {
+            byte[] copy = pass == 0 ? null : frame.getPool().acquire(size);
+            int copied = 0;
+
+            int start = findStartCode(data, 0, length);
+            while (start >= 0 && start + 3 < length) {
+                int type = getType(codec, data[start + 3]);
+                if (isSlice(codec, type))
+                    break;
+
+                int next = findStartCode(data, start + 3, length);
+                int end = next < 0 ? length : next;
+
+                // The first zero of 4 bytes start code is not part of the unit
+                while (end > start + 3 && data[end - 1] == 0)
+                    end--;
+
+                if (isParameterSet(codec, type)) {
+                    int unitLength = end - (start + 3);
+
+                    if (copy != null) {
+                        System.arraycopy(START_CODE, 0, copy, copied, START_CODE.length);
+                        System.arraycopy(data, start + 3, copy, copied + START_CODE.length, unitLength);
+                    }
+                    copied += START_CODE.length + unitLength;
+                }
+
+                start = next;
+            }
+
+            if (copy != null)
+                return new Frame(frame, copy, copied);
+            if (copied == 0)
+                return null;
+
+            size = copied;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Finds the next 3 bytes start code, 4 bytes start code is found by its last 3 bytes.
+     *
+     * @return index of the start code, or -1 if there is none.
+     */
+    private static int findStartCode(@NonNull byte[] data, int from, int end)
+    {
+        for (int i = from; i + 2 < end; i++) {
+            if ((data[i + 2] & 0xFF) > 1)
+                i += 2;
+            else if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1)
+                return i;
+        }
+
+        return -1;
+    }
+
+    private static int getType(@NonNull FrameCodec codec, byte header)
+    {
+        return codec == FrameCodec.CODEC_H264
+                ? header & 0x1F
+                : (header >> 1) & 0x3F;
+    }
+
+    private static boolean isParameterSet(@NonNull FrameCodec codec, int type)
+    {
+        return codec == FrameCodec.CODEC_H264
+                ? type == H264_SPS || type == H264_PPS
+                : type >= H265_VPS && type <= H265_PPS;
+    }
+
+    private static boolean isSlice(@NonNull FrameCodec codec, int type)
+    {
+        return codec == FrameCodec.CODEC_H264
+                ? type >= 1 && type <= H264_SLICE_LAST
+                : type <= H265_SLICE_LAST;
+    }
+}
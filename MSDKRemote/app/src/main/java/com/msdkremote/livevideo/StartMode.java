@@ -0,0 +1,24 @@
+package com.msdkremote.livevideo;
+
+/**
+ * Where the video of a new viewer starts, see {@link FrameCursor}.
+ */
+public enum StartMode
+{
+    /**
+     * Waits for the next key frame of the camera, which may take the whole key frame interval.
+     */
+    LIVE,
+
+    /**
+     * Starts with the cached key frame, so the viewer has a picture at once,
+     * then waits for the next key frame, to continue live.
+     */
+    KEY_FRAME,
+
+    /**
+     * Starts with the cached key frame and all the frames after it, sent at once,
+     * so the decoder fast-forwards through them to live.
+     */
+    FAST_FORWARD
+}
@@ -0,0 +1,119 @@
+package com.msdkremote.livevideo;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.msdkremote.commandserver.CommandLine;
+import com.msdkremote.commandserver.DataChannelSource;
+import com.msdkremote.commandserver.DataChannelStream;
+import com.msdkremote.commandserver.Session;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Video channel of multiplexed connections.
+ * <p>
+ * Every client that opens the channel reads the frame ring of the video server by cursor
+ * of its own, so client that falls behind loses only its own frames, and continues
+ * from a key frame, see {@link FrameCursor}.
+ * Every frame is sent as a single binary message, so the client gets the frame
+ * boundaries without parsing the stream. The client may choose where its video starts
+ * by {@code OPEN <start mode>}, e.g. {@code OPEN LIVE}, see {@link StartMode}.
+ */
+class VideoChannelSource implements DataChannelSource
+{
+    private final FrameRing frameRing;
+    private final int maxLag;
+
+    // Where the video starts, for clients that do not choose
+    private volatile StartMode startMode = StartMode.FAST_FORWARD;
+
+    /**
+     * Creates the video channel source.
+     *
+     * @param frameRing the ring the camera listener delivers the frames to.
+     * @param maxLag the most frames a client may fall behind before it drops to a key frame.
+     */
+    public VideoChannelSource(@NonNull FrameRing frameRing, int maxLag) {
+        this.frameRing = frameRing;
+        this.maxLag = maxLag;
+    }
+
+    /**
+     * Sets where the video starts for clients that do not choose, see {@link StartMode}.
+     *
+     * @param startMode the start mode of new streams.
+     */
+    public void setStartMode(@NonNull StartMode startMode) {
+        this.startMode = startMode;
+    }
+
+    @NonNull
+    @Override
+    public DataChannelStream openStream(@NonNull Session session) {
+        return new VideoStream(session, this.startMode);
+    }
+
+    @NonNull
+    @Override
+    public DataChannelStream openStream(@NonNull Session session, @NonNull CommandLine command)
+    {
+        StartMode mode = this.startMode;
+
+        if (command.getTokenCount() > 1) {
+            for (StartMode value : StartMode.values()) {
+                if (command.tokenEqualsIgnoreCase(1, value.name()))
+                    mode = value;
+            }
+        }
+
+        return new VideoStream(session, mode);
+    }
+
+
+    // The frames of a single client
+    private class VideoStream implements DataChannelStream
+    {
+        private final FrameCursor cursor;
+        private final Runnable frameListener;
+
+        // The frame being sent, released once the server copied it
+        private Frame sending = null;
+
+        VideoStream(@NonNull Session session, @NonNull StartMode startMode) {
+            this.cursor = new FrameCursor(frameRing, maxLag, startMode);
+
+            // Every new frame wakes the server to send it
+            this.frameListener = session::requestFlush;
+            frameRing.addFrameListener(this.frameListener);
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer poll()
+        {
+            Frame frame = this.cursor.pollFrame();
+            if (frame == null)
+                return null;
+
+            this.sending = frame;
+            return ByteBuffer.wrap(frame.getData(), 0, frame.getSize());
+        }
+
+        @Override
+        public void onSent()
+        {
+            if (this.sending != null) {
+                this.sending.release();
+                this.sending = null;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            // The frame being sent is still completed, and released by onSent()
+            frameRing.removeFrameListener(this.frameListener);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.msdkremote.livevideo;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Constants and helpers of the framed video protocol.
+ * <p>
+ * By default, the video port sends the raw Annex-B stream, and the client finds the frame
+ * boundaries by parsing it. The framed video port sends every frame after fixed header of
+ * {@link #HEADER_SIZE} bytes, big endian, so the client reads the header, then exactly the frame:
+ * <pre>
+ *   offset  size  field
+ *   0       1     version    - {@link #VERSION}
+ *   1       1     flags      - {@link #FLAG_KEY_FRAME}, {@link #FLAG_PARAMETER_SETS} and {@link #FLAG_CATCH_UP}
+ *   2       1     codec      - 0 unknown, 1 H.264, 2 H.265, see {@link FrameCodec#getWireId()}
+ *   3       1     frame rate - frames per second, unsigned
+ *   4       2     width      - pixels, unsigned
+ *   6       2     height     - pixels, unsigned
+ *   8       4     sequence   - low 32 bits of the frame sequence, unsigned, gaps are dropped frames
+ *   12      4     length     - unsigned, the number of frame bytes that follow
+ *   16      8     pts        - presentation time of the camera, in milliseconds
+ *   24      8     received   - wall clock time the application got the frame, in milliseconds since the epoch
+ * </pre>
+ * Key frame that carries the parameter sets has both {@link #FLAG_KEY_FRAME} and {@link #FLAG_PARAMETER_SETS}.
+ * Parameter sets sent in front of key frame that does not carry them come as frame of their own,
+ * with {@link #FLAG_PARAMETER_SETS} only, and the sequence of the frame they were taken from.
+ * Frames with {@link #FLAG_CATCH_UP} were cached before the viewer connected, see {@link StartMode},
+ * the client may decode them without showing them, to reach live sooner.
+ */
+final class VideoFraming
+{
+    // Header layout
+    static final int HEADER_SIZE = 32;
+    static final int VERSION = 1;
+
+    // Header flags
+    static final int FLAG_KEY_FRAME = 0x01;
+    static final int FLAG_PARAMETER_SETS = 0x02;
+    static final int FLAG_CATCH_UP = 0x04;
+
+
+    private VideoFraming() { }
+
+
+    /**
+     * Writes the header of a frame.
+     *
+     * @param header buffer of at least {@link #HEADER_SIZE} bytes, written from its position.
+     * @param frame the frame that follows the header.
+     * @param catchUp whether the frame is sent to catch up with live, see {@link FrameCursor#isCatchingUp()}.
+     */
+    static void writeHeader(@NonNull ByteBuffer header, @NonNull Frame frame, boolean catchUp)
+    {
+        int flags = 0;
+        if (frame.isKeyFrame())
+            flags |= FLAG_KEY_FRAME;
+        if (frame.hasParameterSets())
+            flags |= FLAG_PARAMETER_SETS;
+        if (catchUp)
+            flags |= FLAG_CATCH_UP;
+
+        FrameCodec codec = frame.getCodec();
+
+        header.put((byte) VERSION);
+        header.put((byte) flags);
+        header.put((byte) (codec == null ? 0 : codec.getWireId()));
+        header.put((byte) Math.min(frame.getFrameRate(), 0xFF));
+        header.putShort((short) frame.getWidth());
+        header.putShort((short) frame.getHeight());
+        header.putInt((int) frame.getSequence());
+        header.putInt(frame.getSize());
+        header.putLong(frame.getPresentationTimeMs());
+        header.putLong(frame.getReceiveTimeMs());
+    }
+}
@@ -3,35 +3,119 @@ package com.msdkremote.livevideo;
 import android.util.Log;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import com.msdkremote.MainActivity;
+import com.msdkremote.commandserver.SocketProfile;
+import com.msdkremote.commandserver.SocketSettings;
+import com.msdkremote.metrics.Counter;
+import com.msdkremote.metrics.Histogram;
+import com.msdkremote.metrics.MetricsRegistry;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 class VideoServer
 {
     private final String TAG = this.getClass().getSimpleName();
 
+    // The frames written to the viewers, and how long the writes blocked on the network
+    private static final Counter FRAMES_SENT = MetricsRegistry.getInstance().counter("video.frames_sent");
+    private static final Histogram WRITE_TIME = MetricsRegistry.getInstance().histogram("video.write_us");
+
+    // The most viewers served at once, each with a thread of its own
+    private static final int MAX_VIEWERS = 8;
+
     private Thread socketThread = null;
 
     private final Object threadStateLock = new Object();
 
     private ServerSocket serverSocket = null;
-    private Socket clientSocket = null;
 
-    public VideoServer() { }
+    // The connected viewers, guarded by the thread state lock
+    private final Set<Viewer> viewers = new HashSet<>();
+
+    // Where the video of new viewers starts
+    private volatile StartMode startMode = StartMode.FAST_FORWARD;
+
+    // Socket options of the clients, and the options in use by the last one
+    private final SocketProfile socketProfile;
+    private volatile SocketSettings socketSettings = null;
 
-    public synchronized void startServer (int port, FrameBuffer buffer)
+    // Every frame is sent after header, see VideoFraming
+    private final boolean framed;
+
+    public VideoServer() {
+        this(SocketProfile.DEFAULT);
+    }
+
+    public VideoServer(@NonNull SocketProfile socketProfile) {
+        this(socketProfile, false);
+    }
+
+    /**
+     * @param socketProfile the socket options of the viewers.
+     * @param framed whether every frame is sent after header, see {@link VideoFraming},
+     *               otherwise the frames are sent as raw stream.
+     */
+    public VideoServer(@NonNull SocketProfile socketProfile, boolean framed) {
+        this.socketProfile = socketProfile;
+        this.framed = framed;
+    }
+
+    /**
+     * Gets the socket options of the last client, as they are in use.
+     *
+     * @return the socket settings, or null if no client connected yet.
+     */
+    @Nullable
+    public SocketSettings getSocketSettings() {
+        return socketSettings;
+    }
+
+    /**
+     * Sets where the video of new viewers starts, see {@link StartMode}.
+     *
+     * @param startMode the start mode of new viewers.
+     */
+    public void setStartMode(@NonNull StartMode startMode) {
+        this.startMode = startMode;
+    }
+
+    /**
+     * Gets the number of viewers connected.
+     *
+     * @return the number of viewers.
+     */
+    public int getViewerCount() {
+        synchronized (threadStateLock) {
+            return viewers.size();
+        }
+    }
+
+    /**
+     * Starts the server, every viewer that connects gets the frames of the ring
+     * by cursor and thread of its own.
+     *
+     * @param port the port to listen on.
+     * @param ring the ring of the frames, shared by all the viewers.
+     * @param maxLag the most frames a viewer may fall behind before it drops to a key frame.
+     */
+    public synchronized void startServer (int port, FrameRing ring, int maxLag)
     {
         if (socketThread != null)
             return;
 
         serverSocket = null;
-        clientSocket = null;
 
         socketThread = new Thread(
             new Runnable() {
@@ -41,7 +125,9 @@ class VideoServer
                     Log.i(TAG, "Starting server port - " + port);
 
                     try {
-                        serverSocket = new ServerSocket(port);
+                        serverSocket = new ServerSocket();
+                        socketProfile.applyToServer(serverSocket);
+                        serverSocket.bind(new InetSocketAddress(port));
                     }
                     catch (IOException e) {
                         Log.e(TAG, "Could not create ServerSocket", e);
@@ -60,43 +146,36 @@ class VideoServer
 
                     while (!socketThread.isInterrupted()) {
 
-                        Log.i(TAG, "Waiting for new client");
+                        Log.i(TAG, "Waiting for new viewer");
 
+                        Socket clientSocket;
                         try {
                             clientSocket = serverSocket.accept();
-
-                            Log.i(TAG, "New client connected");
-
-                            synchronized (threadStateLock) {
-                                if (socketThread.isInterrupted()) {
-                                    cleanSockets();
-                                    return;
-                                }
-                            }
-
-                            OutputStream oStream = clientSocket.getOutputStream();
-                            buffer.nextKeyFrame();
-
-                            while (!socketThread.isInterrupted()) {
-                                Frame frame = buffer.getFrame();
-                                oStream.write(frame.getData());
-                                oStream.flush();
-                            }
-                        }
-                        catch (InterruptedException e) {
-                            socketThread.interrupt();
+                            socketSettings = socketProfile.apply(clientSocket);
                         }
                         catch (IOException e) {
-                            Log.e(TAG, "A wild IOException occurred", e);
+                            if (!socketThread.isInterrupted())
+                                Log.e(TAG, "A wild IOException occurred", e);
+                            continue;
                         }
-                        finally {
-                            Log.i(TAG, "Client disconnected");
 
-                            if (clientSocket != null) {
-                                try {
-                                    clientSocket.close();
-                                } catch (IOException ignore) { }
+                        synchronized (threadStateLock) {
+                            if (socketThread.isInterrupted()) {
+                                closeSocket(clientSocket);
+                                continue;
+                            }
+
+                            if (viewers.size() >= MAX_VIEWERS) {
+                                Log.w(TAG, "Refused viewer, " + viewers.size() + " viewers connected");
+                                closeSocket(clientSocket);
+                                continue;
                             }
+
+                            Viewer viewer = new Viewer(clientSocket, new FrameCursor(ring, maxLag, startMode));
+                            viewers.add(viewer);
+                            viewer.thread.start();
+
+                            Log.i(TAG, "New viewer connected, " + viewers.size() + " viewers, " + socketSettings);
                         }
                     }
 
@@ -112,12 +191,6 @@ class VideoServer
                             serverSocket.close();
                         } catch (IOException ignore) { }
                     }
-
-                    if (clientSocket != null) {
-                        try {
-                            clientSocket.close();
-                        } catch (IOException ignore) { }
-                    }
                 }
             }
         );
@@ -130,6 +203,7 @@ class VideoServer
         if (socketThread == null)
             return;
 
+        List<Viewer> stopped;
 
         synchronized (threadStateLock)
         {
@@ -141,14 +215,91 @@ class VideoServer
                 } catch (IOException ignore) { }
             }
 
-            if (clientSocket != null) {
-                try {
-                    clientSocket.close();
-                } catch (IOException ignore) { }
+            // No viewer is added once the server thread is interrupted
+            stopped = new ArrayList<>(viewers);
+            for (Viewer viewer : stopped) {
+                viewer.thread.interrupt();
+                closeSocket(viewer.socket);
             }
         }
 
         socketThread.join();
         socketThread = null;
+
+        for (Viewer viewer : stopped)
+            viewer.thread.join();
+    }
+
+    private static void closeSocket(@NonNull Socket socket)
+    {
+        try {
+            socket.close();
+        } catch (IOException ignore) { }
+    }
+
+
+
+    /* ------------------- Viewers ------------------- */
+
+    /**
+     * Single connected viewer, written by a thread of its own,
+     * so a slow viewer holds back only itself.
+     */
+    private class Viewer implements Runnable
+    {
+        final Socket socket;
+        final FrameCursor cursor;
+        final Thread thread;
+
+        Viewer(@NonNull Socket socket, @NonNull FrameCursor cursor) {
+            this.socket = socket;
+            this.cursor = cursor;
+            this.thread = new Thread(this, "VideoViewer-" + socket.getPort());
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                OutputStream oStream = socket.getOutputStream();
+                ByteBuffer header = framed ? ByteBuffer.allocate(VideoFraming.HEADER_SIZE) : null;
+
+                while (!thread.isInterrupted()) {
+                    Frame frame = cursor.getFrame();
+
+                    try {
+                        long start_ns = System.nanoTime();
+
+                        if (header != null) {
+                            header.clear();
+                            VideoFraming.writeHeader(header, frame, cursor.isCatchingUp());
+                            oStream.write(header.array(), 0, header.position());
+                        }
+
+                        oStream.write(frame.getData(), 0, frame.getSize());
+                        oStream.flush();
+                        WRITE_TIME.recordSince(start_ns);
+                        FRAMES_SENT.increment();
+                    }
+                    finally {
+                        frame.release();
+                    }
+                }
+            }
+            catch (InterruptedException ignore) { }
+            catch (IOException e) {
+                if (!thread.isInterrupted())
+                    Log.i(TAG, "Viewer connection ended - " + e.getMessage());
+            }
+            finally {
+                closeSocket(socket);
+
+                synchronized (threadStateLock) {
+                    viewers.remove(this);
+                }
+
+                Log.i(TAG, "Viewer disconnected, dropped " + cursor.getDroppedFrames() + " frames");
+            }
+        }
     }
 }
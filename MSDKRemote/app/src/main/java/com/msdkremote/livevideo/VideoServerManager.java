@@ -2,6 +2,16 @@ package com.msdkremote.livevideo;
 
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.msdkremote.commandserver.DataChannelSource;
+import com.msdkremote.commandserver.SocketGauges;
+import com.msdkremote.commandserver.SocketProfile;
+import com.msdkremote.commandserver.SocketSettings;
+import com.msdkremote.metrics.Gauge;
+import com.msdkremote.metrics.MetricsRegistry;
+
 import java.io.IOException;
 
 public class VideoServerManager
@@ -10,10 +20,34 @@ public class VideoServerManager
 
     private static VideoServerManager instance = null;
 
+    // The maximum number of frame bytes kept, shared by all the viewers,
+    // and the most kept while the newest GOP alone is larger, so new viewers can start from it
+    private static final int FRAME_RING_SIZE = 4_000_000;
+    private static final int MAX_GOP_SIZE = 8_000_000;
+
+    // The most frames a viewer may fall behind, a few seconds, before it drops to a key frame
+    private static final int MAX_VIEWER_LAG = 120;
+
+    // Raw stream for any decoder, and the same frames after headers, see VideoFraming
     private VideoServer videoServer = null;
+    private VideoServer framedServer = null;
+    private StartMode startMode = StartMode.FAST_FORWARD;
     private final AvailableCameraListener availableCameraListener = new AvailableCameraListener();
 
-    FrameBuffer frameBuffer = null;
+    // The frames of the camera, read by the viewers of the video server and the video channel
+    private final FrameRing frameRing = new FrameRing(FRAME_RING_SIZE, MAX_GOP_SIZE);
+
+    // Video channel of multiplexed connections, reading the same ring
+    private final VideoChannelSource channelSource = new VideoChannelSource(frameRing, MAX_VIEWER_LAG);
+
+    // Bytes kept in the ring, and the viewers of the video servers
+    private static final String BUFFER_GAUGE = "video.buffer_bytes";
+    private static final String VIEWERS_GAUGE = "video.viewers";
+    private Gauge bufferGauge = null;
+    private Gauge viewersGauge = null;
+
+    // Socket options of the last client of the raw video server, as video.socket_*
+    private SocketGauges socketGauges = null;
 
 
     public static synchronized VideoServerManager getInstance()
@@ -27,15 +61,96 @@ public class VideoServerManager
     private VideoServerManager() { }
 
     public synchronized void startServer(int port) {
+        startServer(port, -1);
+    }
+
+    /**
+     * Starts the video server, and the framed video server along with it.
+     *
+     * @param port the port of the raw video.
+     * @param framedPort the port of the framed video, see {@link VideoFraming}, or -1 for none.
+     */
+    public synchronized void startServer(int port, int framedPort) {
         if (videoServer != null)
             return;
 
-        frameBuffer = new FrameBuffer(1_000_000);
+        // Large frames, that should still not wait for Nagle
+        videoServer = new VideoServer(SocketProfile.BULK_VIDEO);
+        videoServer.setStartMode(startMode);
+        videoServer.startServer(port, frameRing, MAX_VIEWER_LAG);
+
+        if (framedPort >= 0) {
+            framedServer = new VideoServer(SocketProfile.BULK_VIDEO, true);
+            framedServer.setStartMode(startMode);
+            framedServer.startServer(framedPort, frameRing, MAX_VIEWER_LAG);
+        }
+
+        availableCameraListener.startListener(frameRing);
+
+        bufferGauge = new Gauge() {
+            @Override
+            public long getValue() {
+                return frameRing.getBufferSize();
+            }
+        };
+        MetricsRegistry.getInstance().gauge(BUFFER_GAUGE, bufferGauge);
+
+        final VideoServer server = videoServer;
+        final VideoServer framed = framedServer;
+        viewersGauge = new Gauge() {
+            @Override
+            public long getValue() {
+                return server.getViewerCount() + (framed == null ? 0 : framed.getViewerCount());
+            }
+        };
+        MetricsRegistry.getInstance().gauge(VIEWERS_GAUGE, viewersGauge);
+
+        socketGauges = new SocketGauges("video") {
+            @Nullable
+            @Override
+            protected SocketSettings getSettings() {
+                return server.getSocketSettings();
+            }
+        };
+        socketGauges.register();
+    }
+
+    /**
+     * Sets where the video of new viewers starts, on the video port and on the video channel
+     * of multiplexed connections when the client does not choose, see {@link StartMode}.
+     *
+     * @param startMode the start mode of new viewers.
+     */
+    public synchronized void setStartMode(@NonNull StartMode startMode)
+    {
+        this.startMode = startMode;
+        channelSource.setStartMode(startMode);
 
-        videoServer = new VideoServer();
-        videoServer.startServer(port, frameBuffer);
+        if (videoServer != null)
+            videoServer.setStartMode(startMode);
+        if (framedServer != null)
+            framedServer.setStartMode(startMode);
+    }
 
-        availableCameraListener.startListener(frameBuffer);
+    /**
+     * Gets the source of the video channel of multiplexed connections.
+     * The channel carries video only while the video server runs.
+     *
+     * @return the video channel source.
+     */
+    @NonNull
+    public DataChannelSource getChannelSource() {
+        return channelSource;
+    }
+
+    /**
+     * Gets the socket options of the last video client, as they are in use.
+     *
+     * @return the socket settings, or null if the server is not running or no client connected yet.
+     */
+    @Nullable
+    public synchronized SocketSettings getSocketSettings() {
+        return videoServer == null ? null : videoServer.getSocketSettings();
     }
 
     public synchronized void killServer() throws InterruptedException {
@@ -44,6 +159,21 @@ public class VideoServerManager
 
         videoServer.stopServer();
         videoServer = null;
+
+        if (framedServer != null) {
+            framedServer.stopServer();
+            framedServer = null;
+        }
+
+        MetricsRegistry.getInstance().removeGauge(BUFFER_GAUGE, bufferGauge);
+        MetricsRegistry.getInstance().removeGauge(VIEWERS_GAUGE, viewersGauge);
+        bufferGauge = null;
+        viewersGauge = null;
+        socketGauges.remove();
+        socketGauges = null;
         availableCameraListener.stopListener();
+
+        // Return the frames nobody is going to send to the pool
+        frameRing.clear();
     }
 }
@@ -0,0 +1,225 @@
+package com.msdkremote.logging;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.msdkremote.BuildConfig;
+
+/**
+ * Logging facade for the hot paths, e.g. the server threads and SDK callbacks.
+ * <p>
+ * Messages are parameterized with {@code {}} placeholders, and nothing is built on the calling thread:
+ * the level is checked first, then the format and arguments are put to a ring buffer,
+ * which is formatted and written to logcat by single background thread.
+ * Disabled level costs only the check, and enabled level never blocks - when the ring is full,
+ * the message is dropped and counted as {@code log.dropped}.
+ * <p>
+ * Arguments are formatted later, so they should not be changed after the call.
+ * Mutable arguments (e.g. reused buffers) should be logged by their {@code toString()}.
+ * Primitive arguments are boxed only when the level is enabled.
+ * <p>
+ * Verbose and debug messages are compiled out of release builds, see {@link #VERBOSE} and {@link #DEBUG}.
+ */
+public final class AsyncLog
+{
+    // Compile time guards, the code behind them is removed from release builds
+    public static final boolean VERBOSE = BuildConfig.DEBUG;
+    public static final boolean DEBUG = BuildConfig.DEBUG;
+
+    // The lowest priority written, one of the priorities of android Log
+    private static volatile int minPriority = BuildConfig.DEBUG ? Log.VERBOSE : Log.INFO;
+
+    private AsyncLog() { }
+
+
+    /* ------------------- Level ------------------- */
+
+    /**
+     * Sets the lowest priority written to logcat.
+     * Verbose and debug messages can not be enabled on release builds.
+     *
+     * @param priority priority of android Log, e.g. {@link Log#INFO}.
+     */
+    public static void setMinPriority(int priority)
+    {
+        minPriority = priority;
+    }
+
+    /**
+     * Gets the lowest priority written to logcat.
+     *
+     * @return priority of android Log.
+     */
+    public static int getMinPriority()
+    {
+        return minPriority;
+    }
+
+    /**
+     * Whether messages of the priority are written.
+     * Callers may use it to guard work needed only for the message.
+     *
+     * @param priority priority of android Log, e.g. {@link Log#VERBOSE}.
+     * @return true if enabled.
+     */
+    public static boolean isLoggable(int priority)
+    {
+        if (priority <= Log.DEBUG && !BuildConfig.DEBUG)
+            return false;
+
+        return priority >= minPriority;
+    }
+
+    /**
+     * Gets the count of messages dropped since the start, as the ring buffer was full.
+     *
+     * @return count of dropped messages.
+     */
+    public static long getDroppedCount()
+    {
+        return LogRing.getInstance().getDroppedCount();
+    }
+
+
+
+    /* ------------------- Verbose ------------------- */
+
+    public static void v(@Nullable String tag, @NonNull String format)
+    {
+        if (VERBOSE && tag != null && isLoggable(Log.VERBOSE))
+            LogRing.getInstance().put(Log.VERBOSE, tag, format, 0, null, null, null, null);
+    }
+
+    public static void v(@Nullable String tag, @NonNull String format, @Nullable Object arg0)
+    {
+        if (VERBOSE && tag != null && isLoggable(Log.VERBOSE))
+            LogRing.getInstance().put(Log.VERBOSE, tag, format, 1, arg0, null, null, null);
+    }
+
+    public static void v(@Nullable String tag, @NonNull String format, @Nullable Object arg0, @Nullable Object arg1)
+    {
+        if (VERBOSE && tag != null && isLoggable(Log.VERBOSE))
+            LogRing.getInstance().put(Log.VERBOSE, tag, format, 2, arg0, arg1, null, null);
+    }
+
+    public static void v(@Nullable String tag, @NonNull String format,
+                         @Nullable Object arg0, @Nullable Object arg1, @Nullable Object arg2)
+    {
+        if (VERBOSE && tag != null && isLoggable(Log.VERBOSE))
+            LogRing.getInstance().put(Log.VERBOSE, tag, format, 3, arg0, arg1, arg2, null);
+    }
+
+    public static void v(@Nullable String tag, @NonNull String format, long arg0)
+    {
+        if (VERBOSE && tag != null && isLoggable(Log.VERBOSE))
+            LogRing.getInstance().put(Log.VERBOSE, tag, format, 1, arg0, null, null, null);
+    }
+
+    public static void v(@Nullable String tag, @NonNull String format, long arg0, long arg1)
+    {
+        if (VERBOSE && tag != null && isLoggable(Log.VERBOSE))
+            LogRing.getInstance().put(Log.VERBOSE, tag, format, 2, arg0, arg1, null, null);
+    }
+
+
+
+    /* ------------------- Debug ------------------- */
+
+    public static void d(@Nullable String tag, @NonNull String format)
+    {
+        if (DEBUG && tag != null && isLoggable(Log.DEBUG))
+            LogRing.getInstance().put(Log.DEBUG, tag, format, 0, null, null, null, null);
+    }
+
+    public static void d(@Nullable String tag, @NonNull String format, @Nullable Object arg0)
+    {
+        if (DEBUG && tag != null && isLoggable(Log.DEBUG))
+            LogRing.getInstance().put(Log.DEBUG, tag, format, 1, arg0, null, null, null);
+    }
+
+    public static void d(@Nullable String tag, @NonNull String format, @Nullable Object arg0, @Nullable Object arg1)
+    {
+        if (DEBUG && tag != null && isLoggable(Log.DEBUG))
+            LogRing.getInstance().put(Log.DEBUG, tag, format, 2, arg0, arg1, null, null);
+    }
+
+    public static void d(@Nullable String tag, @NonNull String format, long arg0, long arg1)
+    {
+        if (DEBUG && tag != null && isLoggable(Log.DEBUG))
+            LogRing.getInstance().put(Log.DEBUG, tag, format, 2, arg0, arg1, null, null);
+    }
+
+
+
+    /* ------------------- Info ------------------- */
+
+    public static void i(@Nullable String tag, @NonNull String format)
+    {
+        if (tag != null && isLoggable(Log.INFO))
+            LogRing.getInstance().put(Log.INFO, tag, format, 0, null, null, null, null);
+    }
+
+    public static void i(@Nullable String tag, @NonNull String format, @Nullable Object arg0)
+    {
+        if (tag != null && isLoggable(Log.INFO))
+            LogRing.getInstance().put(Log.INFO, tag, format, 1, arg0, null, null, null);
+    }
+
+    public static void i(@Nullable String tag, @NonNull String format, @Nullable Object arg0, @Nullable Object arg1)
+    {
+        if (tag != null && isLoggable(Log.INFO))
+            LogRing.getInstance().put(Log.INFO, tag, format, 2, arg0, arg1, null, null);
+    }
+
+
+
+    /* ------------------- Warning ------------------- */
+
+    public static void w(@Nullable String tag, @NonNull String format)
+    {
+        if (tag != null && isLoggable(Log.WARN))
+            LogRing.getInstance().put(Log.WARN, tag, format, 0, null, null, null, null);
+    }
+
+    public static void w(@Nullable String tag, @NonNull String format, @Nullable Object arg0)
+    {
+        if (tag != null && isLoggable(Log.WARN))
+            LogRing.getInstance().put(Log.WARN, tag, format, 1, arg0, null, null, null);
+    }
+
+    public static void w(@Nullable String tag, @NonNull String format, @Nullable Object arg0, @Nullable Object arg1)
+    {
+        if (tag != null && isLoggable(Log.WARN))
+            LogRing.getInstance().put(Log.WARN, tag, format, 2, arg0, arg1, null, null);
+    }
+
+    public static void w(@Nullable String tag, @NonNull String message, @NonNull Throwable e)
+    {
+        if (tag != null && isLoggable(Log.WARN))
+            LogRing.getInstance().put(Log.WARN, tag, message, 0, null, null, null, e);
+    }
+
+
+
+    /* ------------------- Error ------------------- */
+
+    public static void e(@Nullable String tag, @NonNull String format)
+    {
+        if (tag != null && isLoggable(Log.ERROR))
+            LogRing.getInstance().put(Log.ERROR, tag, format, 0, null, null, null, null);
+    }
+
+    public static void e(@Nullable String tag, @NonNull String format, @Nullable Object arg0)
+    {
+        if (tag != null && isLoggable(Log.ERROR))
+            LogRing.getInstance().put(Log.ERROR, tag, format, 1, arg0, null, null, null);
+    }
+
+    public static void e(@Nullable String tag, @NonNull String message, @NonNull Throwable e)
+    {
+        if (tag != null && isLoggable(Log.ERROR))
+            LogRing.getInstance().put(Log.ERROR, tag, message, 0, null, null, null, e);
+    }
+}
@@ -0,0 +1,219 @@
+package com.msdkremote.logging;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.msdkremote.metrics.Counter;
+import com.msdkremote.metrics.MetricsRegistry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed ring of log messages, and the thread that writes them to logcat.
+ * <p>
+ * Any thread may put messages: it claims the next slot by compare and set, fills it,
+ * and publishes it by its sequence. The writer thread takes the slots in order,
+ * formats them and writes them. Putting never waits - if the writer is behind by the whole ring,
+ * the message is dropped instead.
+ */
+final class LogRing
+{
+    // The number of slots, power of two
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+
+    // How long the writer sleeps when there is nothing to write, unless it is woken up
+    private static final long IDLE_PARK_ns = 100_000_000L;
+
+    // Placeholder of the arguments in the format
+    private static final String PLACEHOLDER = "{}";
+
+    /**
+     * Slot of the ring, reused for every message put to its position.
+     */
+    private static final class Entry
+    {
+        int priority;
+        String tag;
+        String format;
+        int argCount;
+        Object arg0;
+        Object arg1;
+        Object arg2;
+        Throwable throwable;
+
+        // Sequence of the message in the slot, written last, so the message is complete once it matches
+        volatile long published = -1;
+    }
+
+    private final Entry[] entries = new Entry[CAPACITY];
+
+    // Sequence of the next slot to claim, by the threads that put messages
+    private final AtomicLong head = new AtomicLong();
+
+    // Sequence of the next slot to write, by the writer thread only
+    private volatile long tail = 0;
+
+    // Whether the writer waits for messages, and has to be woken up
+    private volatile boolean sleeping = false;
+
+    // Messages that did not fit in the ring
+    private final Counter dropped = MetricsRegistry.getInstance().counter("log.dropped");
+
+    // Builds the messages, used by the writer thread only
+    private final StringBuilder builder = new StringBuilder(256);
+
+    private final Thread writer;
+
+
+    /* ------------------- Singleton ------------------- */
+
+    // Log Ring instance - singleton, created with the class, so putting messages takes no lock
+    private static final LogRing instance = new LogRing();
+
+    private LogRing()
+    {
+        for (int i = 0; i < CAPACITY; i++)
+            this.entries[i] = new Entry();
+
+        this.writer = new Thread(this::writeLoop, "AsyncLog");
+        this.writer.setDaemon(true);
+        this.writer.setPriority(Thread.MIN_PRIORITY);
+        this.writer.start();
+    }
+
+    /**
+     * Get instance of LogRing
+     *
+     * @return single instance of LogRing
+     */
+    static LogRing getInstance()
+    {
+        return instance;
+    }
+
+
+
+    /* ------------------- Putting ------------------- */
+
+    /**
+     * Puts message to the ring, or drops it if the ring is full.
+     * The message is formatted later on the writer thread.
+     */
+    void put(int priority, @NonNull String tag, @NonNull String format, int argCount,
+             @Nullable Object arg0, @Nullable Object arg1, @Nullable Object arg2,
+             @Nullable Throwable throwable)
+    {
+        long sequence;
+        do {
+            sequence = this.head.get();
+
+            if (sequence - this.tail >= CAPACITY) {
+                this.dropped.increment();
+                return;
+            }
+        } while (!this.head.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = this.entries[(int) sequence & MASK];
+        entry.priority = priority;
+        entry.tag = tag;
+        entry.format = format;
+        entry.argCount = argCount;
+        entry.arg0 = arg0;
+        entry.arg1 = arg1;
+        entry.arg2 = arg2;
+        entry.throwable = throwable;
+        entry.published = sequence;
+
+        if (this.sleeping)
+            LockSupport.unpark(this.writer);
+    }
+
+    /**
+     * @return count of messages dropped as the ring was full.
+     */
+    long getDroppedCount()
+    {
+        return this.dropped.get();
+    }
+
+
+
+    /* ------------------- Writing ------------------- */
+
+    private void writeLoop()
+    {
+        while (true) {
+            long sequence = this.tail;
+            Entry entry = this.entries[(int) sequence & MASK];
+
+            if (entry.published != sequence) {
+                // Announce the sleep before checking again, so the message put meanwhile wakes us
+                this.sleeping = true;
+                if (entry.published != sequence)
+                    LockSupport.parkNanos(this, IDLE_PARK_ns);
+                this.sleeping = false;
+                continue;
+            }
+
+            int priority = entry.priority;
+            String tag = entry.tag;
+            String format = entry.format;
+            int argCount = entry.argCount;
+            Object arg0 = entry.arg0;
+            Object arg1 = entry.arg1;
+            Object arg2 = entry.arg2;
+            Throwable throwable = entry.throwable;
+
+            // Release the slot, without keeping the arguments alive
+            entry.tag = null;
+            entry.format = null;
+            entry.arg0 = null;
+            entry.arg1 = null;
+            entry.arg2 = null;
+            entry.throwable = null;
+            this.tail = sequence + 1;
+
+            try {
+                String message = format(format, argCount, arg0, arg1, arg2);
+                if (throwable != null)
+                    message = message + '\n' + Log.getStackTraceString(throwable);
+
+                Log.println(priority, tag, message);
+            }
+            catch (RuntimeException e) {
+                // Argument with broken toString(), the writer has to keep going
+            }
+        }
+    }
+
+    /**
+     * Replaces the placeholders of the format by the arguments, in order.
+     * Placeholders without argument are kept as they are.
+     */
+    @NonNull
+    private String format(@NonNull String format, int argCount, @Nullable Object arg0, @Nullable Object arg1, @Nullable Object arg2)
+    {
+        int placeholder = format.indexOf(PLACEHOLDER);
+        if (placeholder < 0 || argCount == 0)
+            return format;
+
+        StringBuilder builder = this.builder;
+        builder.setLength(0);
+
+        Object[] args = { arg0, arg1, arg2 };
+        int start = 0;
+        for (int i = 0; i < argCount && placeholder >= 0; i++) {
+            builder.append(format, start, placeholder);
+            builder.append(args[i]);
+            start = placeholder + PLACEHOLDER.length();
+            placeholder = format.indexOf(PLACEHOLDER, start);
+        }
+        builder.append(format, start, format.length());
+
+        return builder.toString();
+    }
+}
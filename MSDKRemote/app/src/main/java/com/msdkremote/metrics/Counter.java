@@ -0,0 +1,37 @@
+package com.msdkremote.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter, e.g. the number of commands that were received.
+ * Counting never blocks, and threads that count at the same time do not contend.
+ */
+public class Counter
+{
+    private final LongAdder count = new LongAdder();
+
+    Counter() { }
+
+    /**
+     * Adds one to the counter.
+     */
+    public void increment() {
+        this.count.increment();
+    }
+
+    /**
+     * Adds to the counter.
+     *
+     * @param delta the amount to add, should not be negative.
+     */
+    public void add(long delta) {
+        this.count.add(delta);
+    }
+
+    /**
+     * @return the current count.
+     */
+    public long get() {
+        return this.count.sum();
+    }
+}
@@ -0,0 +1,18 @@
+package com.msdkremote.metrics;
+
+/**
+ * Value that is read only when the metrics are read, e.g. the size of a queue.
+ * The instrumented code keeps the value where it already is, and pays nothing for it.
+ */
+public interface Gauge
+{
+    /**
+     * Reads the current value.
+     * <p>
+     * Note on implementation, this method is called on the thread that reads the metrics,
+     * so it should be fast, thread safe, and not take locks that are held for long.
+     *
+     * @return the current value.
+     */
+    public long getValue();
+}
@@ -0,0 +1,159 @@
+package com.msdkremote.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of values, e.g. latencies in microseconds, in the manner of HDR histogram.
+ * <p>
+ * Every power of two is split to {@value #SUB_BUCKETS} linear buckets, so any value
+ * from zero up to {@link Long#MAX_VALUE} is kept with relative error of at most 1/{@value #SUB_BUCKETS},
+ * in fixed memory. Recording is a few atomic additions, never blocks, and creates no objects.
+ * Reading while recording is not atomic, the percentiles may miss the values of that moment.
+ */
+public class Histogram
+{
+    // Linear buckets per power of two, and its log
+    private static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Values below SUB_BUCKETS have bucket each, then SUB_BUCKETS buckets for every power of two
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram() { }
+
+
+    /**
+     * Records single value.
+     *
+     * @param value the value, negative values are recorded as zero.
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+
+        this.counts.incrementAndGet(bucketOf(value));
+        this.count.increment();
+        this.sum.add(value);
+
+        long max;
+        while (value > (max = this.max.get()) && !this.max.compareAndSet(max, value)) { }
+    }
+
+
+    /**
+     * Records the time that passed since a moment, in microseconds.
+     *
+     * @param start_ns the moment, as returned by {@link System#nanoTime()}.
+     */
+    public void recordSince(long start_ns) {
+        record((System.nanoTime() - start_ns) / 1000);
+    }
+
+
+    /**
+     * @return the number of recorded values.
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * @return the sum of the recorded values.
+     */
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * @return the largest recorded value, zero if none was recorded.
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, zero if none was recorded.
+     */
+    public double getMean()
+    {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+
+    /**
+     * Gets the value that the given part of the recorded values are at or below.
+     *
+     * @param quantile the part of the values, between 0 and 1, e.g. 0.99.
+     * @return the highest value of the bucket of the quantile, but not above the maximum,
+     *         zero if none was recorded.
+     */
+    public long getQuantile(double quantile)
+    {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts[i] = this.counts.get(i);
+
+        if (total == 0)
+            return 0;
+
+        // The rank of the value, at least the first one
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestOf(i), getMax());
+        }
+
+        return getMax();
+    }
+
+
+    /**
+     * Gets the bucket of a value.
+     *
+     * @param value non-negative value.
+     * @return the index of its bucket.
+     */
+    static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+
+    /**
+     * Gets the highest value that falls in a bucket.
+     *
+     * @param bucket the index of the bucket.
+     * @return the highest value of the bucket.
+     */
+    static long highestOf(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+
+        // The last bucket ends at the largest long
+        return lowest > Long.MAX_VALUE - width ? Long.MAX_VALUE : lowest + width - 1;
+    }
+}
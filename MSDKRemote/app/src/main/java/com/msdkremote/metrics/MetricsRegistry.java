@@ -0,0 +1,217 @@
+package com.msdkremote.metrics;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of all the metrics of the application, by their dotted names,
+ * e.g. {@code query.commands} or {@code video.frames_dropped}.
+ * <p>
+ * Counters and histograms are created on first use, and live as long as the application,
+ * so code may keep them in static fields. Gauges are registered by their owner,
+ * and should be removed once the owner stops. Nothing here takes lock,
+ * so instrumented code is never blocked by reading the metrics.
+ */
+public class MetricsRegistry
+{
+    // The quantiles reported for every histogram, and their names on the line format
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    // Prefix of the names in the text format, so they do not collide with other exporters
+    private static final String TEXT_PREFIX = "msdk_";
+
+    // The metrics by their names, sorted so related metrics are read together
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+
+    /* ------------------- Singleton ------------------- */
+
+    // Metrics Registry instance - singleton, created with the class so getting it takes no lock
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private MetricsRegistry() { }
+
+    /**
+     * Get instance of MetricsRegistry
+     *
+     * @return single instance of MetricsRegistry
+     */
+    @NonNull
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+
+
+    /* ------------------- Registration ------------------- */
+
+    /**
+     * Gets counter, creating it on first use.
+     *
+     * @param name the dotted name of the counter.
+     * @return the counter of that name.
+     */
+    @NonNull
+    public Counter counter(@NonNull String name)
+    {
+        Counter counter = this.counters.get(name);
+        if (counter != null)
+            return counter;
+
+        Counter created = new Counter();
+        counter = this.counters.putIfAbsent(name, created);
+        return counter == null ? created : counter;
+    }
+
+
+    /**
+     * Gets histogram, creating it on first use.
+     *
+     * @param name the dotted name of the histogram, with the unit as suffix, e.g. {@code _us}.
+     * @return the histogram of that name.
+     */
+    @NonNull
+    public Histogram histogram(@NonNull String name)
+    {
+        Histogram histogram = this.histograms.get(name);
+        if (histogram != null)
+            return histogram;
+
+        Histogram created = new Histogram();
+        histogram = this.histograms.putIfAbsent(name, created);
+        return histogram == null ? created : histogram;
+    }
+
+
+    /**
+     * Registers gauge, replacing gauge of the same name.
+     *
+     * @param name the dotted name of the gauge.
+     * @param gauge reads the value of the gauge.
+     */
+    public void gauge(@NonNull String name, @NonNull Gauge gauge) {
+        this.gauges.put(name, gauge);
+    }
+
+
+    /**
+     * Removes gauge, only if it is still the registered one,
+     * so owner that stops late does not remove the gauge of its replacement.
+     *
+     * @param name the dotted name of the gauge.
+     * @param gauge the gauge to remove.
+     */
+    public void removeGauge(@NonNull String name, @NonNull Gauge gauge) {
+        this.gauges.remove(name, gauge);
+    }
+
+
+
+    /* ------------------- Reading ------------------- */
+
+    /**
+     * Writes the metrics as single line, in the manner of the other query replies,
+     * e.g. {@code {query.commands:12, query.handler_us:{count:12, mean:40.5, p50:31, ...}}}.
+     *
+     * @param prefix only metrics that their name starts with it, or null for all.
+     * @return the metrics line.
+     */
+    @NonNull
+    public String toLine(@Nullable String prefix)
+    {
+        StringBuilder builder = new StringBuilder("{");
+
+        for (Map.Entry<String, Counter> entry : this.counters.entrySet())
+            if (matches(entry.getKey(), prefix))
+                builder.append(entry.getKey()).append(':').append(entry.getValue().get()).append(", ");
+
+        for (Map.Entry<String, Gauge> entry : this.gauges.entrySet())
+            if (matches(entry.getKey(), prefix))
+                builder.append(entry.getKey()).append(':').append(entry.getValue().getValue()).append(", ");
+
+        for (Map.Entry<String, Histogram> entry : this.histograms.entrySet())
+        {
+            if (!matches(entry.getKey(), prefix))
+                continue;
+
+            Histogram histogram = entry.getValue();
+            builder.append(entry.getKey())
+                    .append(":{count:").append(histogram.getCount())
+                    .append(", mean:").append(String.format(Locale.ROOT, "%.1f", histogram.getMean()));
+
+            for (int i = 0; i < QUANTILES.length; i++)
+                builder.append(", ").append(QUANTILE_NAMES[i]).append(':')
+                        .append(histogram.getQuantile(QUANTILES[i]));
+
+            builder.append(", max:").append(histogram.getMax()).append("}, ");
+        }
+
+        // Drop the last separator
+        if (builder.length() > 1)
+            builder.setLength(builder.length() - 2);
+
+        return builder.append('}').toString();
+    }
+
+
+    /**
+     * Writes the metrics in the plain text format of Prometheus, one value per line.
+     * The dots of the names are written as underscores, and histograms are written as summaries.
+     *
+     * @return the metrics text.
+     */
+    @NonNull
+    public String toText()
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, Counter> entry : this.counters.entrySet())
+        {
+            String name = textName(entry.getKey());
+            builder.append("# TYPE ").append(name).append(" counter\n")
+                    .append(name).append(' ').append(entry.getValue().get()).append('\n');
+        }
+
+        for (Map.Entry<String, Gauge> entry : this.gauges.entrySet())
+        {
+            String name = textName(entry.getKey());
+            builder.append("# TYPE ").append(name).append(" gauge\n")
+                    .append(name).append(' ').append(entry.getValue().getValue()).append('\n');
+        }
+
+        for (Map.Entry<String, Histogram> entry : this.histograms.entrySet())
+        {
+            String name = textName(entry.getKey());
+            Histogram histogram = entry.getValue();
+
+            builder.append("# TYPE ").append(name).append(" summary\n");
+            for (double quantile : QUANTILES)
+                builder.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.getQuantile(quantile)).append('\n');
+
+            builder.append(name).append("_sum ").append(histogram.getSum()).append('\n')
+                    .append(name).append("_count ").append(histogram.getCount()).append('\n')
+                    .append(name).append("_max ").append(histogram.getMax()).append('\n');
+        }
+
+        return builder.toString();
+    }
+
+
+    private static boolean matches(@NonNull String name, @Nullable String prefix) {
+        return prefix == null || name.startsWith(prefix);
+    }
+
+    @NonNull
+    private static String textName(@NonNull String name) {
+        return TEXT_PREFIX + name.replace('.', '_');
+    }
+}
@@ -0,0 +1,143 @@
+package com.msdkremote.metrics;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Plain text scrape endpoint, every connection gets the metrics once and is closed.
+ * <p>
+ * Client that sends HTTP request, e.g. Prometheus or curl, gets HTTP response.
+ * Client that sends nothing, e.g. {@code nc <phone> 9995}, gets the bare text after short wait.
+ * Clients are served one at a time, on a single thread.
+ */
+class MetricsServer
+{
+    private final String TAG = this.getClass().getSimpleName();
+
+    // How long to wait for the request of a client, before answering without it
+    private static final int REQUEST_TIMEOUT_ms = 300;
+
+    private Thread socketThread = null;
+    private volatile ServerSocket serverSocket = null;
+
+    public MetricsServer() { }
+
+    public synchronized void startServer(int port)
+    {
+        if (socketThread != null)
+            return;
+
+        socketThread = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                ServerSocket serverSocket;
+
+                try {
+                    serverSocket = new ServerSocket(port);
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Could not create ServerSocket", e);
+                    return;
+                }
+
+                MetricsServer.this.serverSocket = serverSocket;
+                Log.i(TAG, "Metrics server ready, port - " + port);
+
+                // Stopped before the socket was set
+                if (Thread.currentThread().isInterrupted()) {
+                    try {
+                        serverSocket.close();
+                    } catch (IOException ignore) { }
+                }
+
+                while (!serverSocket.isClosed())
+                {
+                    try (Socket clientSocket = serverSocket.accept()) {
+                        serveClient(clientSocket);
+                    }
+                    catch (IOException ignored) {
+                        // Closed by stopServer(), or the client went away
+                    }
+                }
+
+                Log.i(TAG, "Stopping metrics server port - " + port);
+            }
+        });
+
+        socketThread.start();
+    }
+
+    public synchronized void stopServer() throws InterruptedException
+    {
+        if (socketThread == null)
+            return;
+
+        socketThread.interrupt();
+
+        ServerSocket serverSocket = this.serverSocket;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException ignore) { }
+        }
+
+        socketThread.join();
+        socketThread = null;
+        this.serverSocket = null;
+    }
+
+
+    /**
+     * Answers single client with the metrics.
+     *
+     * @param clientSocket the socket of the client.
+     * @throws IOException if the client went away.
+     */
+    private void serveClient(Socket clientSocket) throws IOException
+    {
+        clientSocket.setSoTimeout(REQUEST_TIMEOUT_ms);
+
+        // Read the request until its empty line, if there is any
+        boolean http = false;
+        InputStream iStream = clientSocket.getInputStream();
+        try {
+            byte[] request = new byte[1024];
+            int length = 0;
+            int read;
+
+            while (length < request.length
+                    && (read = iStream.read(request, length, request.length - length)) > 0)
+            {
+                length += read;
+                String text = new String(request, 0, length, StandardCharsets.US_ASCII);
+                http = text.startsWith("GET ");
+
+                if (text.contains("\r\n\r\n") || text.contains("\n\n"))
+                    break;
+            }
+        }
+        catch (SocketTimeoutException ignored) { }
+
+        byte[] body = MetricsRegistry.getInstance().toText().getBytes(StandardCharsets.UTF_8);
+
+        OutputStream oStream = clientSocket.getOutputStream();
+        if (http) {
+            oStream.write(("HTTP/1.0 200 OK\r\n" +
+                    "Content-Type: text/plain; version=0.0.4\r\n" +
+                    "Content-Length: " + body.length + "\r\n" +
+                    "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        oStream.write(body);
+        oStream.flush();
+        clientSocket.shutdownOutput();
+    }
+}
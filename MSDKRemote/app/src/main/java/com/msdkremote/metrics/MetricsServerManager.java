@@ -0,0 +1,79 @@
+package com.msdkremote.metrics;
+
+import android.util.Log;
+
+/**
+ * Manages the scrape endpoint of the metrics, see {@link MetricsRegistry}.
+ */
+public class MetricsServerManager
+{
+    // Logging TAG
+    private final String TAG = this.getClass().getSimpleName();
+
+    // Metrics Server instance
+    private MetricsServer metricsServer = null;
+
+
+    /* ------------------- Singleton ------------------- */
+
+    // Metrics Server Manager instance - singleton
+    private static MetricsServerManager instance = null;
+
+    private MetricsServerManager() {
+        Log.i(TAG, "MetricsServer was created for the first time!");
+    }
+
+    /**
+     * Get instance of MetricsServerManager
+     *
+     * @return single instance of MetricsServerManager
+     */
+    public static synchronized MetricsServerManager getInstance()
+    {
+        if (instance == null)
+            instance = new MetricsServerManager();
+
+        return instance;
+    }
+
+
+
+    /* ------------------- Server Control ------------------- */
+
+    /**
+     * Initiate MetricsServer on specific port.
+     *
+     * @param port port number used by server.
+     */
+    public synchronized void startServer(int port)
+    {
+        // Check if server already running
+        if (this.metricsServer != null) {
+            Log.w(TAG, "Metrics Server already running.");
+            return;
+        }
+
+        Log.i(TAG, "Starting new Metrics Server, port : " + port + ".");
+        this.metricsServer = new MetricsServer();
+        this.metricsServer.startServer(port);
+    }
+
+
+    /**
+     * Stops the MetricsServer.
+     *
+     * @throws InterruptedException if current thread was interrupted mid waiting.
+     */
+    public synchronized void killServer() throws InterruptedException
+    {
+        // Check if server already terminated
+        if (this.metricsServer == null) {
+            Log.w(TAG, "Metrics Server already closed.");
+            return;
+        }
+
+        Log.i(TAG, "Stop Metrics Server.");
+        this.metricsServer.stopServer();
+        this.metricsServer = null;
+    }
+}
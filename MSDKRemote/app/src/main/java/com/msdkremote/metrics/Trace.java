@@ -0,0 +1,80 @@
+package com.msdkremote.metrics;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The timestamps of a single sampled request, one per {@link TraceStage}.
+ * <p>
+ * Every stage keeps its first timestamp, so the stages of a request that has many replies,
+ * e.g. LISTEN, tell about its first reply. Stages may be stamped by any thread.
+ */
+public final class Trace
+{
+    private final long id;
+    private final String command;
+    private final int sessionId;
+
+    // System.nanoTime() of every stage, zero until stamped
+    private final AtomicLongArray stamps = new AtomicLongArray(TraceStage.values().length);
+
+
+    Trace(long id, @NonNull String command, int sessionId)
+    {
+        this.id = id;
+        this.command = command;
+        this.sessionId = sessionId;
+    }
+
+
+    /**
+     * Stamps stage with the current time, unless it was already stamped.
+     *
+     * @param stage the stage that was reached.
+     * @return true if this was the first stamp of the stage.
+     */
+    public boolean stamp(@NonNull TraceStage stage) {
+        return stamp(stage, System.nanoTime());
+    }
+
+
+    /**
+     * Stamps stage with a given time, unless it was already stamped.
+     *
+     * @param stage the stage that was reached.
+     * @param time_ns the time it was reached, as returned by {@link System#nanoTime()}.
+     * @return true if this was the first stamp of the stage.
+     */
+    public boolean stamp(@NonNull TraceStage stage, long time_ns) {
+        return time_ns != 0 && this.stamps.compareAndSet(stage.ordinal(), 0, time_ns);
+    }
+
+
+    /**
+     * Writes the trace as array, the id, the command, the session,
+     * and the time of every stage in microseconds since the first stamped stage, -1 if not reached.
+     *
+     * @param builder the builder to append to.
+     */
+    void appendTo(@NonNull StringBuilder builder)
+    {
+        int stages = this.stamps.length();
+
+        long start_ns = 0;
+        for (int i = 0; i < stages && start_ns == 0; i++)
+            start_ns = this.stamps.get(i);
+
+        builder.append('[').append(this.id)
+                .append(",'").append(this.command).append('\'')
+                .append(',').append(this.sessionId);
+
+        for (int i = 0; i < stages; i++)
+        {
+            long stamp_ns = this.stamps.get(i);
+            builder.append(',').append(stamp_ns == 0 ? -1 : (stamp_ns - start_ns) / 1000);
+        }
+
+        builder.append(']');
+    }
+}
@@ -0,0 +1,34 @@
+package com.msdkremote.metrics;
+
+/**
+ * The stages of a request, in the order they usually happen, see {@link Trace}.
+ */
+public enum TraceStage
+{
+    /** The server started reading the bytes of the command from the socket. */
+    READ,
+
+    /** The command line was complete and routed. */
+    PARSED,
+
+    /** The handler started, after the dispatch queue if there is one. */
+    DISPATCHED,
+
+    /** The handler returned. */
+    HANDLED,
+
+    /** The request was given to the SDK. */
+    SDK_CALL,
+
+    /** The SDK called back with the result. */
+    SDK_CALLBACK,
+
+    /** The first reply was added to the outbound queue of the session. */
+    ENQUEUED,
+
+    /** The server took the first reply from the queue into the write batch. */
+    DEQUEUED,
+
+    /** The batch of the first reply was completely written to the socket. */
+    WRITTEN
+}
@@ -0,0 +1,244 @@
+package com.msdkremote.metrics;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Samples requests, and keeps the traces of the latest ones in fixed ring.
+ * <p>
+ * The server samples every N-th command and makes its trace current on the handler thread,
+ * see {@link #current()}. Code that continues the request on other thread, e.g. SDK callback,
+ * takes the trace with it and resumes it by {@link #resume(Trace, TraceStage)}.
+ * Replies that are sent while a trace is current are followed through the queue and the writer.
+ * <p>
+ * While sampling is off, which is the default, tracing costs a single volatile read per command.
+ */
+public class Tracer
+{
+    // The number of traces kept, power of two
+    private static final int CAPACITY = 256;
+
+    // The traces, the newest overwrites the oldest
+    private final AtomicReferenceArray<Trace> ring = new AtomicReferenceArray<>(CAPACITY);
+
+    // Commands seen while sampling, and the traces taken, which are also the trace ids
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong traces = new AtomicLong();
+
+    // Trace one command of every sampleEvery, zero to not trace
+    private volatile int sampleEvery = 0;
+
+    // Set once sampling was ever turned on, so code on hot paths may skip the thread local
+    private static volatile boolean active = false;
+
+    // The trace of the request the current thread handles
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+    // Scope of no trace, nothing to restore
+    private static final Scope NO_SCOPE = new Scope(null, false);
+
+
+    /* ------------------- Singleton ------------------- */
+
+    // Tracer instance - singleton, created with the class so getting it on hot paths takes no lock
+    private static final Tracer instance = new Tracer();
+
+    private Tracer() { }
+
+    /**
+     * Get instance of Tracer
+     *
+     * @return single instance of Tracer
+     */
+    @NonNull
+    public static Tracer getInstance() {
+        return instance;
+    }
+
+
+
+    /* ------------------- Sampling ------------------- */
+
+    /**
+     * Sets how many commands are traced.
+     *
+     * @param sampleEvery trace one of every this many commands, 1 to trace all, 0 to not trace.
+     */
+    public void setSampling(@IntRange(from = 0) int sampleEvery)
+    {
+        if (sampleEvery < 0)
+            throw new IllegalArgumentException("Sampling cannot be negative.");
+
+        if (sampleEvery > 0)
+            active = true;
+
+        this.sampleEvery = sampleEvery;
+    }
+
+
+    /**
+     * @return trace one of every this many commands, 0 if not tracing.
+     */
+    public int getSampling() {
+        return this.sampleEvery;
+    }
+
+
+    /**
+     * Decides whether to trace the next command. While sampling is off, it is a single volatile read,
+     * so the caller checks it before it builds anything for the trace.
+     *
+     * @return true if the command is traced, the caller starts its trace by {@link #start(String, int)}.
+     */
+    public boolean sampleNext()
+    {
+        int sampleEvery = this.sampleEvery;
+        return sampleEvery != 0 && this.commands.incrementAndGet() % sampleEvery == 0;
+    }
+
+
+    /**
+     * Starts the trace of a command that was sampled, see {@link #sampleNext()}.
+     *
+     * @param command the command word, e.g. GET.
+     * @param sessionId the session the command arrived on.
+     * @return new trace, already kept in the ring.
+     */
+    @NonNull
+    public Trace start(@NonNull String command, int sessionId)
+    {
+        long id = this.traces.incrementAndGet();
+        Trace trace = new Trace(id, command.toUpperCase(Locale.ROOT), sessionId);
+        this.ring.set((int) (id & (CAPACITY - 1)), trace);
+        return trace;
+    }
+
+
+    /**
+     * Checks cheaply whether any trace may be current, before looking it up.
+     *
+     * @return false if sampling was never turned on.
+     */
+    public static boolean isActive() {
+        return active;
+    }
+
+
+    /**
+     * Gets the trace of the request the current thread handles.
+     *
+     * @return the current trace, or null.
+     */
+    @Nullable
+    public static Trace current() {
+        return active ? CURRENT.get() : null;
+    }
+
+
+    /**
+     * Makes trace current on this thread, until the scope is closed in finally block, e.g.
+     * {@code Tracer.Scope scope = Tracer.resume(trace, stage); try { ... } finally { scope.close(); }}
+     *
+     * @param trace the trace to resume, or null for no trace.
+     * @param stage the stage to stamp, or null.
+     * @return scope that restores the previous trace once closed.
+     */
+    @NonNull
+    public static Scope resume(@Nullable Trace trace, @Nullable TraceStage stage)
+    {
+        if (trace == null)
+            return NO_SCOPE;
+
+        if (stage != null)
+            trace.stamp(stage);
+
+        Trace previous = CURRENT.get();
+        CURRENT.set(trace);
+        return new Scope(previous, true);
+    }
+
+
+
+    /* ------------------- Reading ------------------- */
+
+    /**
+     * Writes the kept traces, oldest first, as single line. Every trace is array of
+     * its id, command, session, and the microseconds from its first stage to every stage,
+     * -1 for stage that was not reached, e.g.
+     * {@code {sampling:10, stages:[read,...,written], traces:[[7,'GET',2,0,12,30,...],...]}}.
+     *
+     * @return the traces line.
+     */
+    @NonNull
+    public String dump()
+    {
+        StringBuilder builder = new StringBuilder("{sampling:").append(this.sampleEvery).append(", stages:[");
+
+        for (TraceStage stage : TraceStage.values())
+            builder.append(stage.name().toLowerCase(Locale.ROOT)).append(',');
+        builder.setCharAt(builder.length() - 1, ']');
+
+        builder.append(", traces:[");
+
+        long newest = this.traces.get();
+        boolean first = true;
+
+        for (long id = Math.max(1, newest - CAPACITY + 1); id <= newest; id++)
+        {
+            Trace trace = this.ring.get((int) (id & (CAPACITY - 1)));
+            if (trace == null)
+                continue;
+
+            if (!first)
+                builder.append(',');
+
+            trace.appendTo(builder);
+            first = false;
+        }
+
+        return builder.append("]}").toString();
+    }
+
+
+    /**
+     * Forgets the kept traces.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < CAPACITY; i++)
+            this.ring.set(i, null);
+    }
+
+
+
+    /**
+     * Restores the trace that was current before {@link #resume(Trace, TraceStage)}.
+     */
+    public static final class Scope implements AutoCloseable
+    {
+        private final Trace previous;
+        private final boolean restore;
+
+        private Scope(@Nullable Trace previous, boolean restore) {
+            this.previous = previous;
+            this.restore = restore;
+        }
+
+        @Override
+        public void close()
+        {
+            if (!this.restore)
+                return;
+
+            if (this.previous == null)
+                CURRENT.remove();
+            else
+                CURRENT.set(this.previous);
+        }
+    }
+}
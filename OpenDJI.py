@@ -1,4 +1,5 @@
 import socket
+import struct
 from threading import Thread, Lock, Event
 import queue
 
@@ -38,8 +39,9 @@ class OpenDJI:
     PORT_VIDEO   = 9999
     PORT_CONTROL = 9998
     PORT_QUERY   = 9997
+    PORT_VIDEO_FRAMED = 9994
 
-    def __init__(self, host : str):
+    def __init__(self, host : str, framed_video : bool = False):
         """
         Connect the class to a drone. Given 'host' IP address, the constructor
         connects on all the data ports to the application.
@@ -47,9 +49,12 @@ class OpenDJI:
 
         Args:
             host (str): the IP address of the phone with an open MSDK Remote.
+            framed_video (bool): get the video with a header on every frame,
+                so the frames are not parsed, and getFrameInfo() is available.
         """
 
         self.host_address = host
+        self._framed_video = framed_video
 
         # Establish network connection
         self._socket_video = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
@@ -58,7 +63,8 @@ class OpenDJI:
 
         try:
             # Try to connect on all the ports
-            self._socket_video.connect((self.host_address, self.PORT_VIDEO))
+            self._socket_video.connect((self.host_address,
+                self.PORT_VIDEO_FRAMED if framed_video else self.PORT_VIDEO))
             self._socket_control.connect((self.host_address, self.PORT_CONTROL))
             self._socket_query.connect((self.host_address, self.PORT_QUERY))
             
@@ -72,7 +78,7 @@ class OpenDJI:
         # In this point - all network is set.
 
         # Set background threads
-        self._background_frames = BackgroundVideoCodec(self._socket_video)
+        self._background_frames = BackgroundVideoCodec(self._socket_video, framed_video)
         self._background_control_messages = BackgroundCommandsQueue(self._socket_control)
         self._background_query_messages = BackgroundCommandListener(self._socket_query)
 
@@ -113,6 +119,18 @@ class OpenDJI:
         return self._background_frames.read()
 
 
+    def getFrameInfo(self) -> dict | None:
+        """
+        Retrive the header of the latest frame, only with framed video,
+        or None if no frame available. The keys are 'key_frame', 'codec',
+        'width', 'height', 'frame_rate', 'sequence', 'pts' (milliseconds),
+        and 'received' - the time the application got the frame, in
+        milliseconds since the epoch, so 'time.time() * 1000 - received' is
+        the latency, if the clocks are synchronized.
+        """
+        return self._background_frames.readInfo()
+
+
     def frameListener(self, eventHandler : EventListener):
         """
         Set frame listener - an EventListener class that will be called on
@@ -749,30 +767,47 @@ class BackgroundVideoCodec:
     so the frame processing doesn't lag the program,
     and the most recent frame will return instantly.
 
-    Currently retrive the frames only in H264 format.
+    Raw video is retrived only in H264 format.
     The drone also supports H265, but doesn't use it for now.
     If there are errors, feel free to change the codec.
+    Framed video tells the codec of every frame, so it is changed as needed.
 
     Used internally.
     """
 
-    def __init__(self, sock : socket.socket):
+    # Header of every frame of framed video, big endian:
+    # version, flags, codec, frame rate, width, height,
+    # sequence, length, pts (ms), received (ms since epoch)
+    HEADER = struct.Struct('>BBBBHHIIqq')
+
+    # Header flags
+    FLAG_KEY_FRAME = 0x01
+    FLAG_PARAMETER_SETS = 0x02
+    FLAG_CATCH_UP = 0x04
+
+    # Codec of the header, to the codec name of PyAV
+    CODECS = { 1 : 'h264', 2 : 'hevc' }
+
+    def __init__(self, sock : socket.socket, framed : bool = False):
         """
         Initiate background video codec, and start it right away.
         Expecting a open and connected socket to retrive the frames from.
 
         Args:
             sock (socket.socket): socket receiving the video from.
+            framed (bool): whether every frame comes after a header.
         """
         # Internal variables
         self._sock = sock
         self._frame = None
+        self._info = None
+        self._codec_name = 'h264'
         self._codec = av.codec.context.CodecContext.create('h264', 'r')
         self._live = True
         self._listener = None
 
         # Starting the background thread
-        self._thread = Thread(target = self.__ReadFrames__)
+        self._thread = Thread(target = self.__ReadFramed__ if framed else self.__ReadFrames__)
         self._thread.daemon = True
         self._thread.start()
 
@@ -812,11 +847,94 @@ class BackgroundVideoCodec:
         self._frame = None
 
 
+    def __ReceiveExactly__(self, size : int) -> bytes | None:
+        """
+        Receive exactly 'size' bytes, or None if the connection is closed.
+        """
+        data = bytearray()
+
+        while len(data) < size:
+            try:
+                chunk = self._sock.recv(size - len(data))
+            except (ConnectionAbortedError, OSError):
+                return None
+
+            if len(chunk) == 0:
+                return None
+            data += chunk
+
+        return bytes(data)
+
+
+    def __ReadFramed__(self):
+        """
+        Reads frame in the background, each after its header.
+        """
+
+        # Iterate while flag is on.
+        while self._live:
+
+            # Read the header, then exactly the frame.
+            header = self.__ReceiveExactly__(self.HEADER.size)
+            if header is None:
+                break
+
+            (version, flags, codec, frame_rate, width, height,
+             sequence, length, pts, received) = self.HEADER.unpack(header)
+
+            data = self.__ReceiveExactly__(length)
+            if data is None:
+                break
+
+            # New codec, e.g. the camera changed it mid-stream.
+            codec_name = self.CODECS.get(codec, self._codec_name)
+            if codec_name != self._codec_name:
+                self._codec_name = codec_name
+                self._codec = av.codec.context.CodecContext.create(codec_name, 'r')
+
+            try:
+                decoded = self._codec.decode(av.Packet(data))
+            except av.error.InvalidDataError:
+                continue
+
+            # Frames sent to catch up with live are decoded, but not shown.
+            if flags & self.FLAG_CATCH_UP:
+                continue
+
+            for frame in decoded:
+
+                self._frame = frame.to_ndarray(format = 'bgr24')
+                self._info = {
+                    'key_frame' : bool(flags & self.FLAG_KEY_FRAME),
+                    'codec' : codec_name,
+                    'width' : width,
+                    'height' : height,
+                    'frame_rate' : frame_rate,
+                    'sequence' : sequence,
+                    'pts' : pts,
+                    'received' : received,
+                }
+
+                listener : EventListener = self._listener
+
+                if listener:
+                    listener.onValue(self._frame)
+
+        # Set frame to None, if connection / thread interuptted.
+        self._frame = None
+        self._info = None
+
+
     def read(self):
         """ Get the last available frame from this video stream. """
         return self._frame
 
 
+    def readInfo(self):
+        """ Get the header of the last available frame, only with framed video. """
+        return self._info
+
+
     def stop(self, timeout : float | None = None):
         """
         Stop the thread. (Also closes the socket)